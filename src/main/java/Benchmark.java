@@ -0,0 +1,279 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Standalone load driver in the manner of redis-benchmark, for comparing the server's modes (for example
+ * {@code --io-threads 1} against {@code --io-threads 4}) on the same machine:
+ * <pre>
+ * java -cp codecrafters-redis.jar Benchmark --port 6379 --clients 50 --requests 100000 --pipeline 16 --tests set,get
+ * </pre>
+ * The tests are {@code set}, {@code get}, {@code lrange_100} (the first 100 elements of a list) and
+ * {@code xrange_100} (the first 100 entries of a stream); the list and the stream are filled before their test.
+ * Each client is a thread with a blocking connection that sends {@code --pipeline} commands in one write and
+ * waits for all of their replies; the round trip of such a batch counts for each command in it. Keys are
+ * spread over {@code --keyspace} names and values are {@code --size} bytes long. Every test reports the
+ * requests per second over all clients and the 50th and 99th percentile round trip.
+ */
+public class Benchmark {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final String LIST_KEY = "benchmark:list";
+    private static final String STREAM_KEY = "benchmark:stream";
+
+    private String host = "127.0.0.1";
+    private int port = 6379;
+    private int clients = 50;
+    private int requests = 100000;
+    private int pipeline = 1;
+    private int keyspace = 10000;
+    private int valueSize = 3;
+    private List<String> tests = List.of("set", "get");
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark();
+        benchmark.processArguments(args);
+        for (String test : benchmark.tests) {
+            benchmark.run(test);
+        }
+    }
+
+    private void processArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (++i >= args.length) {
+                throw new IllegalArgumentException("Missing value after " + arg);
+            }
+            String value = args[i];
+            switch (arg) {
+                case "--host" -> host = value;
+                case "--port" -> port = positive(arg, value);
+                case "--clients" -> clients = positive(arg, value);
+                case "--requests" -> requests = positive(arg, value);
+                case "--pipeline" -> pipeline = positive(arg, value);
+                case "--keyspace" -> keyspace = positive(arg, value);
+                case "--size" -> valueSize = positive(arg, value);
+                case "--tests" -> tests = List.of(value.toLowerCase().split(","));
+                default -> throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+    }
+
+    private static int positive(String option, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number < 1) {
+                throw new NumberFormatException(option + " must be at least 1");
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + option.substring(2) + " value: " + value, e);
+        }
+    }
+
+    private void run(String test) throws Exception {
+        byte[] value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        seed(test, value);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Client> running = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int count = requests / clients + (c < requests % clients ? 1 : 0);
+            Client client = new Client(test, value, c, count, start);
+            running.add(client);
+            client.thread.start();
+        }
+        long startedAt = System.nanoTime();
+        start.countDown();
+        long[] latencies = new long[requests];
+        int filled = 0;
+        long errors = 0;
+        for (Client client : running) {
+            client.thread.join();
+            if (client.failure != null) {
+                throw new IOException("Client failed during " + test, client.failure);
+            }
+            System.arraycopy(client.latencies, 0, latencies, filled, client.latencies.length);
+            filled += client.latencies.length;
+            errors += client.errors;
+        }
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        Arrays.sort(latencies);
+        System.out.printf("%s: %.2f requests per second, p50=%.3f ms, p99=%.3f ms (%d requests, %d clients, pipeline %d%s)%n",
+                test.toUpperCase(), requests / seconds, latencies[requests / 2] / 1e6,
+                latencies[(int) (requests * 0.99)] / 1e6, requests, clients, pipeline,
+                errors > 0 ? ", " + errors + " error replies" : "");
+    }
+
+    /**
+     * Fills the list or stream a range test reads. Earlier runs may have filled them already, which only
+     * makes them longer than the 100 elements read.
+     */
+    private void seed(String test, byte[] value) throws IOException {
+        byte[] frame = switch (test) {
+            case "lrange_100" -> {
+                byte[][] args = new byte[102][];
+                args[0] = ascii("RPUSH");
+                args[1] = ascii(LIST_KEY);
+                Arrays.fill(args, 2, args.length, value);
+                yield encode(args);
+            }
+            case "xrange_100" -> {
+                ByteArrayOutputStream frames = new ByteArrayOutputStream();
+                for (int i = 0; i < 100; i++) {
+                    frames.writeBytes(encode(ascii("XADD"), ascii(STREAM_KEY), ascii("*"), ascii("field"), value));
+                }
+                yield frames.toByteArray();
+            }
+            default -> null;
+        };
+        if (frame == null) {
+            return;
+        }
+        int replies = test.equals("xrange_100") ? 100 : 1;
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            ByteBuffer out = ByteBuffer.wrap(frame);
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            int next = 0;
+            while (replies > 0) {
+                int end = skipReply(in.array(), next, in.position());
+                if (end >= 0) {
+                    if (in.get(next) == '-') {
+                        String error = new String(in.array(), next, end - next, StandardCharsets.UTF_8).trim();
+                        throw new IOException("Filling " + test + " failed: " + error);
+                    }
+                    next = end;
+                    replies--;
+                } else if (channel.read(in) < 0) {
+                    throw new IOException("Server closed the connection");
+                }
+            }
+        }
+    }
+
+    private final class Client implements Runnable {
+        final Thread thread = new Thread(this);
+        final String test;
+        final byte[] value;
+        final int id;
+        final long[] latencies;
+        final CountDownLatch start;
+        final SocketChannel channel;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long errors = 0;
+        Exception failure;
+
+        Client(String test, byte[] value, int id, int count, CountDownLatch start) throws IOException {
+            this.test = test;
+            this.value = value;
+            this.id = id;
+            this.latencies = new long[count];
+            this.start = start;
+            this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.socket().setTcpNoDelay(true);
+        }
+
+        @Override
+        public void run() {
+            try (channel) {
+                start.await();
+                for (int i = 0; i < latencies.length; i += pipeline) {
+                    int batch = Math.min(pipeline, latencies.length - i);
+                    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+                    for (int j = 0; j < batch; j++) {
+                        frames.writeBytes(command(id + (i + j) * clients));
+                    }
+                    ByteBuffer out = ByteBuffer.wrap(frames.toByteArray());
+                    long sentAt = System.nanoTime();
+                    while (out.hasRemaining()) {
+                        channel.write(out);
+                    }
+                    for (int j = 0; j < batch; j++) {
+                        readReply();
+                    }
+                    Arrays.fill(latencies, i, i + batch, System.nanoTime() - sentAt);
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private byte[] command(int n) {
+            byte[] key = ascii("key:" + n % keyspace);
+            return switch (test) {
+                case "set" -> encode(ascii("SET"), key, value);
+                case "get" -> encode(ascii("GET"), key);
+                case "lrange_100" -> encode(ascii("LRANGE"), ascii(LIST_KEY), ascii("0"), ascii("99"));
+                case "xrange_100" -> encode(ascii("XRANGE"), ascii(STREAM_KEY), ascii("-"), ascii("+"), ascii("COUNT"), ascii("100"));
+                default -> throw new IllegalArgumentException("Unknown test " + test);
+            };
+        }
+
+        private void readReply() throws IOException {
+            int end;
+            while ((end = skipReply(in.array(), 0, in.position())) < 0) {
+                if (!in.hasRemaining()) {
+                    in = ByteBuffer.allocate(in.capacity() * 2).put(in.flip());
+                }
+                if (channel.read(in) < 0) {
+                    throw new IOException("Server closed the connection");
+                }
+            }
+            if (in.get(0) == '-') {
+                errors++;
+            }
+            in.flip().position(end);
+            in.compact();
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] encode(byte[]... args) {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + Arrays.stream(args).mapToInt(arg -> arg.length + 16).sum());
+        buffer.put(ascii("*" + args.length + "\r\n"));
+        for (byte[] arg : args) {
+            buffer.put(ascii("$" + arg.length + "\r\n")).put(arg).put((byte) '\r').put((byte) '\n');
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * @return the index just past the reply starting at {@code from}, or -1 if it has not fully arrived
+     */
+    private static int skipReply(byte[] bytes, int from, int end) {
+        int lineEnd = from;
+        while (lineEnd + 1 < end && (bytes[lineEnd] != '\r' || bytes[lineEnd + 1] != '\n')) {
+            lineEnd++;
+        }
+        if (from >= end || lineEnd + 1 >= end) {
+            return -1;
+        }
+        int next = lineEnd + 2;
+        return switch (bytes[from]) {
+            case '$' -> {
+                long length = Long.parseLong(new String(bytes, from + 1, lineEnd - from - 1, StandardCharsets.US_ASCII));
+                yield length < 0 ? next : next + length + 2 <= end ? (int) (next + length + 2) : -1;
+            }
+            case '*' -> {
+                long count = Long.parseLong(new String(bytes, from + 1, lineEnd - from - 1, StandardCharsets.US_ASCII));
+                for (long i = 0; i < count && next >= 0; i++) {
+                    next = skipReply(bytes, next, end);
+                }
+                yield next;
+            }
+            default -> next;
+        };
+    }
+}
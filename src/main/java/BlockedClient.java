@@ -1,6 +1,5 @@
 import java.nio.channels.SocketChannel;
 import java.util.List;
-import java.util.function.Consumer;
 
 /**
  * @param streamKeys STREAMS keys
@@ -8,6 +7,6 @@ import java.util.function.Consumer;
  * @param count      Max entries to return
  * @param unblockAt  System.currentTimeMillis() + blockMillis
  */
-public record BlockedClient(SocketChannel clientChannel, List<String> streamKeys, List<String> streamIds, int count,
-                            long unblockAt, Consumer<String> stringWriter, Consumer<byte[]> byteWriter) {
+public record BlockedClient(SocketChannel clientChannel, List<ByteString> streamKeys, List<String> streamIds, int count,
+                            long unblockAt, ReplyWriter reply) {
 }
@@ -0,0 +1,258 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Immutable, binary-safe string of bytes used for keys, values and command arguments.
+ * <p>
+ * Bytes travel from the parser through {@link Cache} to the encoder without being decoded, so values that
+ * are not valid UTF-8 survive a SET/GET round trip and nothing is transcoded on the hot path. The hash is
+ * computed once and cached, which makes instances cheap map keys. {@link #toString()} decodes as UTF-8 and
+ * is meant for logging, error messages and the few places that need text.
+ * <p>
+ * A string may be a {@link #slice} of a larger array, as the arguments of a command are slices of one copy
+ * of the command. Whatever keeps a string beyond the command stores its {@link #compact()} form, so a small
+ * key or value does not hold on to the whole command.
+ */
+public final class ByteString implements Comparable<ByteString> {
+    public static final ByteString EMPTY = new ByteString(new byte[0]);
+
+    private static final int SHARED_INTEGERS = 10000;
+    /** The decimal strings of 0-9999, shared like Redis's shared integers. */
+    private static final ByteString[] INTEGERS = new ByteString[SHARED_INTEGERS];
+
+    static {
+        for (int i = 0; i < SHARED_INTEGERS; i++) {
+            INTEGERS[i] = new ByteString(Integer.toString(i).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private int hash;
+
+    private ByteString(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    private ByteString(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Wraps an array without copying it. The caller gives up ownership and must not modify it afterwards.
+     */
+    public static ByteString wrap(byte[] bytes) {
+        return new ByteString(bytes);
+    }
+
+    public static ByteString copyOf(byte[] source, int offset, int length) {
+        return new ByteString(Arrays.copyOfRange(source, offset, offset + length));
+    }
+
+    /**
+     * Views part of an array without copying it. The caller gives up ownership of the array and must not
+     * modify it afterwards.
+     */
+    public static ByteString slice(byte[] source, int offset, int length) {
+        return new ByteString(source, offset, length);
+    }
+
+    public static ByteString of(String s) {
+        return new ByteString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the decimal string of {@code value}, a shared instance for 0-9999
+     */
+    public static ByteString valueOf(long value) {
+        if (value >= 0 && value < SHARED_INTEGERS) {
+            return INTEGERS[(int) value];
+        }
+        return new ByteString(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte byteAt(int index) {
+        return bytes[offset + index];
+    }
+
+    /**
+     * @return the bytes in an array of exactly this length, which must not be modified: the backing array,
+     * or a copy for a slice of a larger one
+     */
+    public byte[] getBytes() {
+        return offset == 0 && length == bytes.length ? bytes : Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+    /**
+     * @return the backing array, which must not be modified; the string starts at {@link #arrayOffset()}
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int arrayOffset() {
+        return offset;
+    }
+
+    /**
+     * @return this string if it takes up at least half of its backing array, otherwise a copy with an array
+     * of its own, for keeping it after the command it came with
+     */
+    public ByteString compact() {
+        return length >= bytes.length / 2 ? this : new ByteString(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+
+    /**
+     * Compares with a lowercase ASCII word, ignoring the case of this string.
+     */
+    public boolean equalsIgnoreCase(String lowercase) {
+        if (length != lowercase.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowercase.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a signed decimal long with the strictness of Redis' string2ll: no sign other than a leading
+     * '-', no whitespace, no leading zeros and no overflow.
+     *
+     * @throws NumberFormatException if the bytes are not such a number
+     */
+    public long parseLong() {
+        if (length == 0 || length > 20) {
+            throw new NumberFormatException("Not an integer: " + this);
+        }
+        if (length == 1 && bytes[offset] == '0') {
+            return 0;
+        }
+        boolean negative = bytes[offset] == '-';
+        int i = negative ? 1 : 0;
+        if (i == length || byteAt(i) < '1' || byteAt(i) > '9') {
+            throw new NumberFormatException("Not an integer: " + this);
+        }
+        long value = 0;
+        for (; i < length; i++) {
+            int digit = bytes[offset + i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not an integer: " + this);
+            }
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("Integer out of range: " + this);
+            }
+            // accumulate negatively so that Long.MIN_VALUE parses
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw new NumberFormatException("Integer out of range: " + this);
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the bytes look like a decimal integer as {@link #parseLong()} accepts it: an optional
+     * minus sign and up to 19 digits without leading zeros. Cheap enough to check every short string stored.
+     */
+    public boolean isCanonicalLong() {
+        if (length == 0 || length > 20) {
+            return false;
+        }
+        if (length == 1 && bytes[offset] == '0') {
+            return true;
+        }
+        int i = bytes[offset] == '-' ? 1 : 0;
+        if (i == length || length - i > 19 || byteAt(i) < '1' || byteAt(i) > '9') {
+            return false;
+        }
+        for (; i < length; i++) {
+            if (byteAt(i) < '0' || byteAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @throws NumberFormatException if the bytes are not a decimal integer in int range
+     */
+    public int parseInt() {
+        long value = parseLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Integer out of range: " + this);
+        }
+        return (int) value;
+    }
+
+    /**
+     * @throws NumberFormatException if the bytes are not a floating point number
+     */
+    public double parseDouble() {
+        return Double.parseDouble(toString());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ByteString other)) {
+            return false;
+        }
+        if (hash != 0 && other.hash != 0 && hash != other.hash) {
+            return false;
+        }
+        return Arrays.equals(bytes, offset, offset + length, other.bytes, other.offset, other.offset + other.length);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            if (offset == 0 && length == bytes.length) {
+                h = Arrays.hashCode(bytes);
+            } else {
+                // The same hash for a slice.
+                h = 1;
+                for (int i = offset; i < offset + length; i++) {
+                    h = 31 * h + bytes[i];
+                }
+            }
+            if (h == 0) {
+                h = 1;
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * Orders by unsigned byte values, like memcmp.
+     */
+    @Override
+    public int compareTo(ByteString other) {
+        return Arrays.compareUnsigned(bytes, offset, offset + length, other.bytes, other.offset, other.offset + other.length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+}
@@ -1,67 +1,911 @@
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
 
+/**
+ * The keyspace, split into shards by key hash.
+ * <p>
+ * With {@code exec-threads} above 1 commands run on several threads and the shards are lock-striped: a
+ * command holds the read or write lock of every shard its keys hash to, taken in ascending shard order so
+ * two multi-key commands cannot deadlock, and everything else that touches the keyspace as a whole takes
+ * the keyspace lock, which waits for every shard holder. Readers sharing a shard leave expired keys in place
+ * for writers and the active expiry to drop. With a single command thread all locking is skipped and reads
+ * drop expired keys themselves.
+ * <p>
+ * Each shard's keys live in a {@link Dict}, which resizes incrementally; {@link #rehashIncrementally()}
+ * finishes resizes of shards that see no writes.
+ * <p>
+ * The methods reading and writing keys do not lock; callers hold the lock of the key's shard.
+ * <p>
+ * A key's expiration time is kept in its {@link Value}, so reading or writing a key is a single probe of
+ * the shard's table. Keys with an expiration time are also indexed in a second, usually much smaller table
+ * that active expiry samples, and by deadline in an {@link ExpiryIndex} that active expiry drains.
+ * <p>
+ * With {@code key-index} set to {@code radix}, each shard also keeps its keys in a {@link RadixTree}, so KEYS
+ * and SCAN patterns with a literal prefix visit only the keys under it, in lexicographic order.
+ * <p>
+ * In shared-nothing mode ({@code shard-threads}) every {@link KeyspaceShard} has a partition of its own,
+ * created with {@link #newPartition(int, int)}, which only the shard's thread touches.
+ * <p>
+ * With {@code value-storage} set to {@code offheap}, stored strings that fit an {@link OffHeapStore} slot are
+ * moved there and their slots freed when the key is overwritten or removed.
+ * <p>
+ * Large KEYS and LRANGE replies read their shard in place between commands through a {@link Reader}. Whatever
+ * is about to change what a reader reads first detaches it, and the shard does not finish resizes in the
+ * background while its keys are being read.
+ */
 public class Cache {
+    public static final int MAX_SHARDS = 32;
+
     private static volatile Cache instance;
 
-    private final Map<String, Value> data;
-    private final Map<String, Long> expirations;
+    private final Shard[] shards;
+    private final int shardMask;
+    private final boolean concurrent;
+    private final int partitions;
+    /** Which of the {@code partitions} this cache holds, 0 unless in shared-nothing mode. */
+    private final int partition;
+    /** Whether values track access frequency (LFU) rather than recency (LRU); see {@link Value#touch}. */
+    private volatile boolean lfu = false;
+    private final ReentrantReadWriteLock keyspaceLock = new ReentrantReadWriteLock();
+    /** Where string values are moved, or null to keep them on the heap. */
+    private final OffHeapStore offHeap = OffHeapStore.getInstance();
+    private long lastRehash = 0L;
 
     public static final String TYPE_STRING = "string";
     public static final String TYPE_STREAM = "stream";
     public static final String TYPE_LIST = "list";
 
+    private static final class Shard {
+        final Dict<Value> data;
+        /** The keys with an expiration time, mapped to the same values as in {@code data}. */
+        final Dict<Value> volatileKeys;
+        final ExpiryIndex deadlines = new ExpiryIndex();
+        /** The same keys as {@code data} in key order, or null unless {@code key-index} is {@code radix}. */
+        final RadixTree keyIndex;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        /**
+         * Bytes taken by the shard's keys and values, as {@link MemoryAccountant} estimates them; changed under
+         * the shard's write lock.
+         */
+        volatile long usedMemory = 0;
+        /**
+         * The streamed replies reading the shard in place; changed under the shard's lock, read or write, and
+         * synchronized on itself, since several threads may hold the read lock.
+         */
+        final List<Reader> readers = new ArrayList<>(0);
+
+        Shard(int dataSize, int expireDBSize, boolean indexed) {
+            data = new Dict<>(dataSize);
+            volatileKeys = new Dict<>(expireDBSize);
+            keyIndex = indexed ? new RadixTree() : null;
+        }
+    }
+
+    /**
+     * A streamed reply reading a shard in place, one piece at a time under the shard's read lock. Before
+     * anything changes what it reads, it is detached under the shard's write lock: it copies references to the
+     * elements it has yet to write and stops reading the shard.
+     */
+    interface Reader {
+        /**
+         * @return the stored list the reader reads, or null if it reads the shard's keys
+         */
+        Object source();
+
+        void detach();
+    }
+
     private Cache() {
         this(128, 32);
     }
 
     private Cache(int dataSize, int expireDBSize) {
-        data = new HashMap<>(dataSize);
-        expirations = new HashMap<>(expireDBSize);
+        this(dataSize, expireDBSize, Configs.getIntConfiguration("exec-threads", 1) > 1, 0, 1);
     }
 
-    public Value get(String key) {
-        if (isExpired(key)) {
-            data.remove(key);
-            expirations.remove(key);
+    private Cache(int dataSize, int expireDBSize, boolean concurrent, int partition, int partitions) {
+        this.concurrent = concurrent;
+        this.partition = partition;
+        this.partitions = partitions;
+        int shardCount = concurrent ? shardCount(Configs.getIntConfiguration("keyspace-shards", Configs.DEFAULT_KEYSPACE_SHARDS)) : 1;
+        boolean indexed = "radix".equalsIgnoreCase(Configs.getConfiguration("key-index"));
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(Math.max(dataSize / shardCount, 16), Math.max(expireDBSize / shardCount, 4), indexed);
+        }
+        shardMask = shardCount - 1;
+        MemoryAccountant.register(this);
+    }
+
+    /**
+     * @return the requested shard count rounded up to a power of two between 1 and {@link #MAX_SHARDS}
+     */
+    private static int shardCount(int requested) {
+        int count = 1;
+        while (count < requested && count < MAX_SHARDS) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    public Value get(ByteString key) {
+        Shard shard = shardFor(key);
+        Value value = shard.data.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (value.isExpired(System.currentTimeMillis())) {
+            if (!concurrent) {
+                removeEntry(shard, key);
+            }
             return null;
         }
-        return data.get(key);
+        value.touch(lfu);
+        return value;
     }
 
-    public void put(String key, Value value, long ttlMillis) {
-        data.put(key, value);
-        if (ttlMillis > 0) {
-            expirations.put(key, System.currentTimeMillis() + ttlMillis);
+    /**
+     * @param ttlMillis time to live, or 0 for a key that does not expire
+     */
+    public void put(ByteString key, Value value, long ttlMillis) {
+        putAt(key, value, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0);
+    }
+
+    /**
+     * @param expiresAtMillis Unix time in milliseconds at which the key expires, or 0 for a key that does not
+     */
+    public void putAt(ByteString key, Value value, long expiresAtMillis) {
+        key = key.compact();
+        Shard shard = shardFor(key);
+        detachReaders(shard, null);
+        if (offHeap != null) {
+            value.moveOffHeap(offHeap);
+        }
+        value.expiresAt = expiresAtMillis;
+        value.memory = MemoryAccountant.ofEntry(key, value);
+        Value previous = shard.data.put(key, value);
+        if (previous != null && previous != value) {
+            previous.release();
+        }
+        // The key's entry in the deadline index, if any, stays with the key.
+        value.indexedAt = previous == null ? 0 : previous.indexedAt;
+        if (previous != null && lfu) {
+            // An overwritten key keeps its access frequency, as in Redis.
+            value.access = previous.access;
         } else {
-            expirations.remove(key);
+            value.initAccess(lfu);
         }
+        shard.usedMemory += value.memory - (previous == null ? 0 : previous.memory);
+        if (previous == null && shard.keyIndex != null) {
+            shard.keyIndex.insert(key);
+        }
+        if (expiresAtMillis != 0) {
+            shard.volatileKeys.put(key, value);
+            index(shard, key, value, expiresAtMillis);
+        } else if (previous != null && previous.expiresAt != 0) {
+            shard.volatileKeys.remove(key);
+        }
+    }
+
+    public void putFromDB(ByteString key, Value value, long timeStampMillis) {
+        putAt(key, value, timeStampMillis);
     }
 
-    public void putFromDB(String key, Value value, long timeStampMillis) {
-        data.put(key, value);
-        if (timeStampMillis > 0) {
-            expirations.put(key, timeStampMillis);
+    /**
+     * @return true if the key existed and was not expired
+     */
+    public boolean remove(ByteString key) {
+        Value removed = removeEntry(shardFor(key), key);
+        return removed != null && !removed.isExpired(System.currentTimeMillis());
+    }
+
+    private static Value removeEntry(Shard shard, ByteString key) {
+        // Even a miss may move buckets of a resize in progress.
+        detachReaders(shard, null);
+        Value removed = shard.data.remove(key);
+        if (removed == null) {
+            return null;
+        }
+        if (removed.expiresAt != 0) {
+            shard.volatileKeys.remove(key);
         }
+        if (shard.keyIndex != null) {
+            shard.keyIndex.remove(key);
+        }
+        shard.usedMemory -= removed.memory;
+        removed.release();
+        return removed;
     }
 
-    public Iterator<Map.Entry<String, Long>> expirableIterator() {
-        return expirations.entrySet().iterator();
+    /**
+     * Sets the expiration time of a live key; 0 makes it persistent.
+     *
+     * @return false if there is no such key
+     */
+    public boolean setExpiresAt(ByteString key, long expiresAtMillis) {
+        Value value = get(key);
+        if (value == null) {
+            return false;
+        }
+        Shard shard = shardFor(key);
+        detachReaders(shard, null);
+        if (expiresAtMillis != 0 && value.expiresAt == 0) {
+            shard.volatileKeys.put(key.compact(), value);
+        } else if (expiresAtMillis == 0 && value.expiresAt != 0) {
+            shard.volatileKeys.remove(key);
+        }
+        if (expiresAtMillis != 0) {
+            index(shard, key, value, expiresAtMillis);
+        }
+        value.expiresAt = expiresAtMillis;
+        return true;
+    }
+
+    /**
+     * Adds a key to the deadline index when it is not in it yet or its new deadline is earlier than the one
+     * it is indexed under. A later deadline is left to {@link #expireDue}, which re-files the entry when the
+     * old deadline comes, so each key has one entry however often its expiration time slides forward.
+     */
+    private static void index(Shard shard, ByteString key, Value value, long expiresAtMillis) {
+        if (value.indexedAt == 0 || expiresAtMillis < value.indexedAt) {
+            shard.deadlines.add(key.compact(), expiresAtMillis);
+            value.indexedAt = expiresAtMillis;
+        }
+    }
+
+    /**
+     * Moves every key, with its expiration time, into the cache {@code owner} picks for it and leaves this
+     * cache empty.
+     */
+    public void moveTo(Function<ByteString, Cache> owner) {
+        for (Shard shard : shards) {
+            detachReaders(shard, null);
+            shard.data.forEach((key, value) -> owner.apply(key).putAt(key, value, value.expiresAt));
+            shard.data.clear();
+            shard.volatileKeys.clear();
+            shard.deadlines.clear();
+            if (shard.keyIndex != null) {
+                shard.keyIndex.clear();
+            }
+            shard.usedMemory = 0;
+        }
+    }
+
+    /**
+     * Outcome of {@link #expireSample} and {@link #expireDue}: the cursor to continue from, and how many keys
+     * were checked and removed.
+     */
+    public record ExpireBatch(long cursor, int checked, int expired) {
+    }
+
+    /**
+     * Removes the keys of one shard whose expiration time passed by {@code now}, in deadline order, checking
+     * at most {@code limit} entries of the shard's {@link ExpiryIndex}; the caller holds that shard's write
+     * lock. The batch checked fewer than {@code limit} entries once nothing more is due.
+     */
+    public ExpireBatch expireDue(int shard, long now, int limit) {
+        Shard target = shards[shard];
+        int[] expired = {0};
+        int checked = target.deadlines.drain(now, limit, (key, deadline) -> {
+            Value value = target.data.get(key);
+            if (value == null || value.indexedAt != deadline) {
+                // Stale: the key was deleted, or indexed again under an earlier deadline.
+                return 0;
+            }
+            if (value.isExpired(now)) {
+                removeEntry(target, key);
+                expired[0]++;
+                return 0;
+            }
+            // The deadline moved later, or the key was made persistent, since it was indexed.
+            value.indexedAt = value.expiresAt;
+            return value.expiresAt;
+        });
+        return new ExpireBatch(0, checked, expired[0]);
+    }
+
+    /**
+     * Checks about {@code count} keys with an expiration time of one shard, continuing a scan of the shard's
+     * volatile keys from {@code cursor}, and removes those that expired by {@code now}. Visits at most
+     * {@code count} times {@link Configs#EXPIRY_SAMPLE_EMPTY_BUCKETS} buckets, so a sparse table cannot make
+     * it run long. The caller holds that shard's write lock.
+     */
+    public ExpireBatch expireSample(int shard, long cursor, int count, long now) {
+        Shard target = shards[shard];
+        if (target.volatileKeys.isEmpty()) {
+            return new ExpireBatch(0, 0, 0);
+        }
+        List<ByteString> expired = new ArrayList<>();
+        int[] sampled = {0};
+        int maxBuckets = count * Configs.EXPIRY_SAMPLE_EMPTY_BUCKETS;
+        long next = cursor;
+        do {
+            next = target.volatileKeys.scan(next, (key, value) -> {
+                sampled[0]++;
+                if (value.isExpired(now)) {
+                    expired.add(key);
+                }
+            });
+        } while (next != 0 && sampled[0] < count && --maxBuckets > 0);
+        for (ByteString key : expired) {
+            removeEntry(target, key);
+        }
+        return new ExpireBatch(next, sampled[0], expired.size());
+    }
+
+    /**
+     * Continues a SCAN of the keyspace from {@code cursor}, calling {@code action} for the keys of the buckets
+     * visited, expired ones included. Stops once it passed about {@code count} keys or visited {@code count}
+     * times {@link Configs#SCAN_EMPTY_BUCKETS} buckets, so each call does bounded work however sparse the
+     * tables are. The caller holds every shard's lock.
+     * <p>
+     * A scan of a partition that starts with a {@code prefix} all keys must have, when the shards keep a
+     * {@link RadixTree}, first walks the keys under the prefix. If there are no more than {@code count} times
+     * {@link Configs#SCAN_EMPTY_BUCKETS}, the call passes them all and the scan moves on to the next
+     * partition; otherwise it forgets them and scans the tables as usual.
+     * <p>
+     * The cursor packs, from the lowest digits up, the partition (in base {@code partitions}), the shard (in
+     * binary) and the {@link Dict#scan} cursor of that shard, so shards and then partitions are visited one
+     * after another, and the guarantees of {@link Dict#scan} hold for the whole keyspace.
+     *
+     * @return the cursor of the next call, or 0 once the last partition has been visited
+     */
+    public long scan(long cursor, int count, byte[] prefix, BiConsumer<ByteString, Value> action) {
+        int shardBits = Integer.numberOfTrailingZeros(shards.length);
+        long local = Long.divideUnsigned(cursor, partitions);
+        if (local == 0 && prefix.length > 0 && shards[0].keyIndex != null) {
+            List<ByteString> keys = new ArrayList<>();
+            int limit = Math.max(1, count) * Configs.SCAN_EMPTY_BUCKETS;
+            boolean complete = true;
+            for (int i = 0; i < shards.length && complete; i++) {
+                complete = shards[i].keyIndex.forEachWithPrefix(prefix, key -> keys.size() < limit && keys.add(key));
+            }
+            if (complete) {
+                for (ByteString key : keys) {
+                    action.accept(key, shardFor(key).data.get(key));
+                }
+                return partition + 1 < partitions ? partition + 1 : 0;
+            }
+        }
+        int shard = (int) (local & shardMask);
+        long dictCursor = local >>> shardBits;
+        int[] passed = {0};
+        int maxBuckets = Math.max(1, count) * Configs.SCAN_EMPTY_BUCKETS;
+        do {
+            dictCursor = shards[shard].data.scan(dictCursor, (key, value) -> {
+                passed[0]++;
+                action.accept(key, value);
+            });
+            if (dictCursor == 0 && ++shard == shards.length) {
+                return partition + 1 < partitions ? partition + 1 : 0;
+            }
+        } while (passed[0] < count && --maxBuckets > 0);
+        return (((dictCursor << shardBits) | shard) * partitions) + partition;
+    }
+
+    /**
+     * @return which of the {@code partitions} parts of the keyspace a SCAN cursor continues in
+     */
+    public static int partitionOf(long cursor, int partitions) {
+        return (int) Long.remainderUnsigned(cursor, partitions);
     }
 
-    public void expired(String key) {
-        data.remove(key);
+    public int volatileKeyCount(int shard) {
+        return shards[shard].volatileKeys.size();
     }
 
-    private boolean isExpired(String key) {
-        Long expiration = expirations.get(key);
-        if (expiration == null) {
+    /**
+     * Calls {@code action} for about {@code count} keys of one shard, from all keys or only from those with
+     * an expiration time, as eviction candidates. Does not change access times. The caller holds that shard's
+     * lock.
+     */
+    public void sampleKeys(int shard, boolean volatileOnly, int count, BiConsumer<ByteString, Value> action) {
+        Shard target = shards[shard];
+        (volatileOnly ? target.volatileKeys : target.data).sample(count, action);
+    }
+
+    /**
+     * Removes a key chosen for eviction if it still holds {@code value}; the caller holds the shard's write
+     * lock.
+     *
+     * @return false if the key was deleted or overwritten since it was sampled
+     */
+    public boolean evict(int shard, ByteString key, Value value) {
+        Shard target = shards[shard];
+        if (target.data.get(key) != value) {
             return false;
         }
-        return System.currentTimeMillis() >= expiration;
+        removeEntry(target, key);
+        return true;
+    }
+
+    /**
+     * Records that a stored list or stream grew or shrank in place by {@code delta} bytes, as
+     * {@link MemoryAccountant} estimates them; the caller holds the key's shard write lock.
+     */
+    public void adjustMemory(ByteString key, Value value, long delta) {
+        value.memory += delta;
+        shardFor(key).usedMemory += delta;
     }
 
-    public String[] keys() {
-        return data.keySet().toArray(new String[0]);
+    /**
+     * @return the estimated bytes taken by all shards: keys and values, and the tables holding them
+     */
+    public long usedMemory() {
+        return datasetMemory() + mainTableMemory() + expiresTableMemory();
+    }
+
+    /**
+     * @return the estimated bytes taken by the keys and values of all shards
+     */
+    public long datasetMemory() {
+        long used = 0;
+        for (Shard shard : shards) {
+            used += shard.usedMemory;
+        }
+        return used;
+    }
+
+    /**
+     * @return the estimated bytes taken by the tables of all keys. Other threads may read it while the tables
+     * change, which only makes the estimate stale.
+     */
+    public long mainTableMemory() {
+        long used = 0;
+        for (Shard shard : shards) {
+            used += MemoryAccountant.ofDict(shard.data);
+            if (shard.keyIndex != null) {
+                used += MemoryAccountant.ofRadixTree(shard.keyIndex);
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return the estimated bytes taken by the tables and deadline indexes of keys with an expiration time
+     */
+    public long expiresTableMemory() {
+        long used = 0;
+        for (Shard shard : shards) {
+            used += MemoryAccountant.ofDict(shard.volatileKeys) + MemoryAccountant.ofExpiryIndex(shard.deadlines);
+        }
+        return used;
+    }
+
+    public long keyCount() {
+        long keys = 0;
+        for (Shard shard : shards) {
+            keys += shard.data.size();
+        }
+        return keys;
+    }
+
+    /**
+     * @return how many caches share the memory limit: the number of keyspace shard partitions, or 1
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Switches what values track on access: frequency for the LFU eviction policies, recency otherwise.
+     */
+    public void setLfu(boolean lfu) {
+        this.lfu = lfu;
+    }
+
+    /**
+     * @return a reply listing the keys of all shards that start with {@code prefix} and whose key and value
+     * pass {@code filter}, in key order within each shard when the shards keep a {@link RadixTree}. The keys
+     * are counted now and read again as the reply is written, so the filter must give the same answer for an
+     * unchanged key and value. The caller holds every shard's lock.
+     */
+    public ReplyStream streamKeys(byte[] prefix, BiPredicate<ByteString, Value> filter) {
+        return new KeysStream(prefix, filter);
+    }
+
+    /**
+     * @return a reply listing the elements {@code start} to {@code end}, inclusive, of the list stored at
+     * {@code key}; the caller holds the key's shard lock, and the range lies within the list
+     */
+    public ReplyStream streamRange(ByteString key, List<ByteString> list, int start, int end) {
+        return new RangeStream(shardOf(key), list, start, end);
+    }
+
+    /**
+     * Detaches the replies reading a list stored at {@code key} before it is changed in place; the caller
+     * holds the key's shard write lock.
+     */
+    public void beforeChange(ByteString key, Object stored) {
+        detachReaders(shardFor(key), stored);
+    }
+
+    private static void openReader(Shard shard, Reader reader) {
+        synchronized (shard.readers) {
+            shard.readers.add(reader);
+        }
+    }
+
+    private static void closeReader(Shard shard, Reader reader) {
+        synchronized (shard.readers) {
+            shard.readers.remove(reader);
+        }
+    }
+
+    /**
+     * Detaches the readers of {@code source}, a stored list, or of the shard's keys if it is null; the caller
+     * holds the shard's write lock.
+     */
+    private static void detachReaders(Shard shard, Object source) {
+        if (shard.readers.isEmpty()) {
+            return;
+        }
+        synchronized (shard.readers) {
+            shard.readers.removeIf(reader -> {
+                if (reader.source() != source) {
+                    return false;
+                }
+                reader.detach();
+                return true;
+            });
+        }
+    }
+
+    private static boolean readsKeys(Shard shard) {
+        if (shard.readers.isEmpty()) {
+            return false;
+        }
+        synchronized (shard.readers) {
+            for (Reader reader : shard.readers) {
+                if (reader.source() == null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The reply of KEYS: counts the matching keys of every shard up front, for the array header, then reads
+     * each shard's table (or radix tree) again from where the last piece stopped. A shard's table does not
+     * change while it is read, since anything changing it first detaches the reader, so the second pass
+     * meets exactly the keys the first one counted.
+     */
+    private final class KeysStream implements ReplyStream {
+        private final ShardKeys[] parts = new ShardKeys[shards.length];
+        private final int count;
+        private int current = 0;
+        private boolean headerWritten = false;
+
+        KeysStream(byte[] prefix, BiPredicate<ByteString, Value> filter) {
+            int total = 0;
+            for (int i = 0; i < shards.length; i++) {
+                parts[i] = new ShardKeys(shards[i], prefix, filter);
+                total += parts[i].remaining;
+                if (parts[i].remaining > 0) {
+                    openReader(shards[i], parts[i]);
+                }
+            }
+            count = total;
+        }
+
+        @Override
+        public boolean writeNext(ReplyWriter out) {
+            long start = out.getBytesWritten();
+            if (!headerWritten) {
+                out.arrayHeader(count);
+                headerWritten = true;
+            }
+            while (current < parts.length) {
+                lockShards(1L << current, false);
+                try {
+                    if (!parts[current].writeTo(out, start)) {
+                        return false;
+                    }
+                    closeReader(shards[current], parts[current]);
+                } finally {
+                    unlockShards(1L << current, false);
+                }
+                current++;
+                if (out.getBytesWritten() - start >= Configs.OUTPUT_CHUNK_SIZE) {
+                    break;
+                }
+            }
+            return current == parts.length;
+        }
+
+        @Override
+        public void close() {
+            for (; current < parts.length; current++) {
+                lockShards(1L << current, false);
+                try {
+                    closeReader(shards[current], parts[current]);
+                } finally {
+                    unlockShards(1L << current, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * The keys of one shard for a {@link KeysStream}, read a bucket (or a key of the radix tree) at a time
+     * into {@code pending}, or all at once when detached.
+     */
+    private static final class ShardKeys implements Reader {
+        private final Shard shard;
+        private final byte[] prefix;
+        private final BiPredicate<ByteString, Value> filter;
+        private final ArrayDeque<ByteString> pending = new ArrayDeque<>();
+        /** The keys still to be written, counted when the reply was created. */
+        private int remaining;
+        private RadixTree.Walk walk;
+        private long cursor = 0;
+        private boolean exhausted = false;
+
+        ShardKeys(Shard shard, byte[] prefix, BiPredicate<ByteString, Value> filter) {
+            this.shard = shard;
+            this.prefix = prefix;
+            this.filter = filter;
+            remaining = count();
+        }
+
+        private int count() {
+            int[] count = {0};
+            if (shard.keyIndex != null) {
+                shard.keyIndex.forEachWithPrefix(prefix, key -> {
+                    if (filter.test(key, shard.data.get(key))) {
+                        count[0]++;
+                    }
+                    return true;
+                });
+            } else {
+                shard.data.forEach((key, value) -> {
+                    if (filter.test(key, value)) {
+                        count[0]++;
+                    }
+                });
+            }
+            return count[0];
+        }
+
+        /**
+         * Writes keys until {@link Configs#OUTPUT_CHUNK_SIZE} bytes have been written since {@code start}.
+         *
+         * @return true once every key of the shard has been written
+         */
+        boolean writeTo(ReplyWriter out, long start) {
+            while (remaining > 0) {
+                ByteString key = pending.poll();
+                if (key == null) {
+                    read();
+                    continue;
+                }
+                out.bulkString(key);
+                remaining--;
+                if (out.getBytesWritten() - start >= Configs.OUTPUT_CHUNK_SIZE) {
+                    break;
+                }
+            }
+            return remaining == 0;
+        }
+
+        /**
+         * Reads the next bucket, or the next key of the radix tree, into {@code pending}.
+         */
+        private void read() {
+            if (exhausted) {
+                // The array header promised more keys than the shard holds: something changed it unseen.
+                throw new IllegalStateException("Keyspace shard changed under a streamed KEYS reply");
+            }
+            if (shard.keyIndex != null) {
+                if (walk == null) {
+                    walk = shard.keyIndex.walk(prefix);
+                }
+                ByteString key = walk.next();
+                if (key == null) {
+                    exhausted = true;
+                } else if (filter.test(key, shard.data.get(key))) {
+                    pending.add(key);
+                }
+                return;
+            }
+            cursor = shard.data.scan(cursor, (key, value) -> {
+                if (filter.test(key, value)) {
+                    pending.add(key);
+                }
+            });
+            exhausted = cursor == 0;
+        }
+
+        @Override
+        public Object source() {
+            return null;
+        }
+
+        @Override
+        public void detach() {
+            while (pending.size() < remaining) {
+                read();
+            }
+        }
+    }
+
+    /**
+     * The reply of LRANGE: walks the stored list with an iterator, or a copy of the rest of the range once
+     * detached.
+     */
+    private final class RangeStream implements ReplyStream, Reader {
+        private final int shard;
+        private final List<ByteString> list;
+        private final int count;
+        private Iterator<ByteString> elements;
+        private int remaining;
+        private boolean headerWritten = false;
+
+        RangeStream(int shard, List<ByteString> list, int start, int end) {
+            this.shard = shard;
+            this.list = list;
+            this.count = end - start + 1;
+            this.remaining = count;
+            this.elements = list.listIterator(start);
+            openReader(shards[shard], this);
+        }
+
+        @Override
+        public boolean writeNext(ReplyWriter out) {
+            long start = out.getBytesWritten();
+            lockShards(1L << shard, false);
+            try {
+                if (!headerWritten) {
+                    out.arrayHeader(count);
+                    headerWritten = true;
+                }
+                while (remaining > 0) {
+                    out.bulkString(elements.next());
+                    remaining--;
+                    if (out.getBytesWritten() - start >= Configs.OUTPUT_CHUNK_SIZE) {
+                        break;
+                    }
+                }
+                if (remaining == 0) {
+                    closeReader(shards[shard], this);
+                }
+            } finally {
+                unlockShards(1L << shard, false);
+            }
+            return remaining == 0;
+        }
+
+        @Override
+        public void close() {
+            lockShards(1L << shard, false);
+            try {
+                closeReader(shards[shard], this);
+            } finally {
+                unlockShards(1L << shard, false);
+            }
+        }
+
+        @Override
+        public Object source() {
+            return list;
+        }
+
+        @Override
+        public void detach() {
+            List<ByteString> rest = new ArrayList<>(remaining);
+            for (int i = 0; i < remaining; i++) {
+                rest.add(elements.next());
+            }
+            elements = rest.iterator();
+        }
+    }
+
+    /**
+     * Moves buckets of the shards being resized for up to {@link Configs#REHASH_CRON_BUDGET_MS} per
+     * {@link Configs#REHASH_CRON_INTERVAL_MS}, so a resize completes even on a shard that sees no more writes.
+     * Called from the loop that expires keys.
+     */
+    public void rehashIncrementally() {
+        long now = System.currentTimeMillis();
+        if ((now - lastRehash) < Configs.REHASH_CRON_INTERVAL_MS) {
+            return;
+        }
+        lastRehash = now;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Configs.REHASH_CRON_BUDGET_MS);
+        for (int i = 0; i < shards.length && System.nanoTime() - deadline < 0; i++) {
+            lockShards(1L << i, true);
+            try {
+                // A resize would move the keys a streamed KEYS reply is reading; it resumes once the reply is done.
+                if (!readsKeys(shards[i])) {
+                    shards[i].data.rehashUntil(deadline);
+                }
+                shards[i].volatileKeys.rehashUntil(deadline);
+            } finally {
+                unlockShards(1L << i, true);
+            }
+        }
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int shardOf(ByteString key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & shardMask;
+    }
+
+    /**
+     * @return a mask with the bit of every shard set
+     */
+    public long allShards() {
+        return (1L << shards.length) - 1;
+    }
+
+    private Shard shardFor(ByteString key) {
+        return shards[shardOf(key)];
+    }
+
+    /**
+     * Locks the shards whose bits are set in {@code shardMask}, lowest first, after taking the keyspace lock
+     * shared. An empty mask takes only the keyspace lock, which keeps the caller apart from
+     * {@link #lockKeyspace()}. Does nothing unless commands run on several threads.
+     */
+    public void lockShards(long shardMask, boolean write) {
+        if (!concurrent) {
+            return;
+        }
+        keyspaceLock.readLock().lock();
+        for (long remaining = shardMask; remaining != 0; remaining &= remaining - 1) {
+            ReentrantReadWriteLock lock = shards[Long.numberOfTrailingZeros(remaining)].lock;
+            if (write) {
+                lock.writeLock().lock();
+            } else {
+                lock.readLock().lock();
+            }
+        }
+    }
+
+    public void unlockShards(long shardMask, boolean write) {
+        if (!concurrent) {
+            return;
+        }
+        for (long remaining = shardMask; remaining != 0; remaining &= remaining - 1) {
+            ReentrantReadWriteLock lock = shards[Long.numberOfTrailingZeros(remaining)].lock;
+            if (write) {
+                lock.writeLock().unlock();
+            } else {
+                lock.readLock().unlock();
+            }
+        }
+        keyspaceLock.readLock().unlock();
+    }
+
+    /**
+     * Waits until no thread holds a shard and keeps all of them out until {@link #unlockKeyspace()}. Does
+     * nothing unless commands run on several threads.
+     */
+    public void lockKeyspace() {
+        if (concurrent) {
+            keyspaceLock.writeLock().lock();
+        }
+    }
+
+    public void unlockKeyspace() {
+        if (concurrent) {
+            keyspaceLock.writeLock().unlock();
+        }
     }
 
     public static Cache getInstance() {
@@ -75,6 +919,14 @@ public class Cache {
         return instance;
     }
 
+    /**
+     * @return a new single-threaded cache, separate from the shared instance, holding part {@code partition}
+     * of {@code partitions} parts of the keyspace
+     */
+    public static Cache newPartition(int partition, int partitions) {
+        return new Cache(128, 32, false, partition, partitions);
+    }
+
     public static Cache getInstance(int dataSize, int expireDBSize) {
         if (instance == null) {
             synchronized (Cache.class) {
@@ -86,21 +938,221 @@ public class Cache {
         return instance;
     }
 
+    /**
+     * A stored value. Strings that are canonical decimal integers are kept as a primitive long, so counters
+     * are updated in place with {@link #setLong}; {@link #getValue()} still hands out their digits, from
+     * {@link ByteString#valueOf(long)}'s shared strings for 0-9999. Strings moved to an {@link OffHeapStore}
+     * keep the slot's handle in the same long, and {@link #getValue()} copies them back.
+     */
     public static class Value {
-        private final Object value;
+        public static final String ENCODING_INT = "int";
+        public static final String ENCODING_EMBSTR = "embstr";
+        public static final String ENCODING_RAW = "raw";
+        /** Longest string Redis embeds in its object header, so reported as {@code embstr}. */
+        private static final int EMBSTR_MAX_LENGTH = 44;
+
+        /** Marks a string held off heap. */
+        private static final Object OFF_HEAP = new Object();
+        /** Marks an off-heap string whose slot was freed when the key was overwritten or removed. */
+        private static final Object RELEASED = new Object();
+
+        /** The payload, null for an integer-encoded string, or {@code OFF_HEAP}. */
+        private Object value;
         private final String type;
+        /** The integer of an integer-encoded string, or the handle of an off-heap one. */
+        private long number;
+        /** Unix time in milliseconds at which the key expires, or 0; set when the value is stored. */
+        private long expiresAt = 0;
+        /** The deadline the key is filed under in its shard's {@link ExpiryIndex}, or 0 if it is not. */
+        private long indexedAt = 0;
+        /**
+         * LRU clock (low 32 bits of the time in milliseconds), or for LFU the last decrement time in minutes
+         * (16 bits) and a log counter (8 bits).
+         */
+        private int access;
+        /** Estimated footprint of the key and value in bytes; set when the value is stored. */
+        private long memory;
 
         public Value(Object value, String type) {
             this.value = value;
             this.type = type;
         }
 
+        private Value(long number) {
+            this.value = null;
+            this.type = TYPE_STRING;
+            this.number = number;
+        }
+
+        /**
+         * @return a string value, integer-encoded if the bytes are a canonical decimal integer
+         */
+        public static Value ofString(ByteString string) {
+            if (string.isCanonicalLong()) {
+                try {
+                    return new Value(string.parseLong());
+                } catch (NumberFormatException e) {
+                    // 19 digits beyond the range of a long stay a plain string.
+                }
+            }
+            return new Value(string.compact(), TYPE_STRING);
+        }
+
+        public static Value ofLong(long number) {
+            return new Value(number);
+        }
+
+        /**
+         * @return the payload; for an integer-encoded string its decimal digits, for an off-heap one a heap
+         * copy, which replies avoid by writing the slot with {@link ReplyWriter#bulkString(OffHeapStore, long)}
+         */
         public Object getValue() {
+            if (value == null) {
+                return ByteString.valueOf(number);
+            }
+            if (value == OFF_HEAP) {
+                return ByteString.wrap(OffHeapStore.getInstance().read(number));
+            }
+            if (value == RELEASED) {
+                throw new IllegalStateException("Off-heap value read after its key was overwritten or removed");
+            }
             return value;
         }
 
+        public boolean isInteger() {
+            return value == null;
+        }
+
+        public boolean isOffHeap() {
+            return value == OFF_HEAP;
+        }
+
+        /**
+         * @return the {@link OffHeapStore} handle of an off-heap string
+         */
+        public long getHandle() {
+            return number;
+        }
+
+        /**
+         * Copies a string that fits a slot of {@code store} there and drops the heap copy.
+         */
+        void moveOffHeap(OffHeapStore store) {
+            if (value instanceof ByteString string && string.length() <= store.maxLength()) {
+                number = store.store(string.array(), string.arrayOffset(), string.length());
+                value = OFF_HEAP;
+            }
+        }
+
+        /**
+         * Frees the slot of an off-heap string once the value has left the keyspace.
+         */
+        void release() {
+            if (value == OFF_HEAP) {
+                OffHeapStore.getInstance().free(number);
+                value = RELEASED;
+            }
+        }
+
+        /**
+         * @return the integer of an integer-encoded string
+         */
+        public long getLong() {
+            return number;
+        }
+
+        /**
+         * Changes an integer-encoded string in place; the caller holds the key's shard write lock.
+         */
+        public void setLong(long number) {
+            this.number = number;
+        }
+
+        /**
+         * @return the OBJECT ENCODING name: int, embstr or raw for strings, after their Redis counterparts,
+         * linkedlist for lists and stream for streams
+         */
+        public String getEncoding() {
+            if (value == null) {
+                return ENCODING_INT;
+            }
+            if (value instanceof ByteString string) {
+                return string.length() <= EMBSTR_MAX_LENGTH ? ENCODING_EMBSTR : ENCODING_RAW;
+            }
+            if (value == OFF_HEAP) {
+                return OffHeapStore.getInstance().length(number) <= EMBSTR_MAX_LENGTH ? ENCODING_EMBSTR : ENCODING_RAW;
+            }
+            return TYPE_LIST.equals(type) ? "linkedlist" : type;
+        }
+
         public String getType() {
             return type;
         }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public long getMemory() {
+            return memory;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && now >= expiresAt;
+        }
+
+        public int getAccess() {
+            return access;
+        }
+
+        void initAccess(boolean lfu) {
+            access = lfu ? (lfuMinutes() << 8) | Configs.LFU_INIT_VALUE : lruClock();
+        }
+
+        /**
+         * Records an access: the LRU clock, or an LFU counter decayed by the minutes since its last decrement
+         * and then incremented with a probability that falls as it grows, after Redis's LFULogIncr. Readers may
+         * race on it; the result only steers eviction.
+         */
+        void touch(boolean lfu) {
+            if (!lfu) {
+                access = lruClock();
+                return;
+            }
+            int counter = lfuDecayedCounter(access);
+            if (counter < 255) {
+                double base = Math.max(0, counter - Configs.LFU_INIT_VALUE);
+                if (ThreadLocalRandom.current().nextDouble() < 1.0 / (base * Configs.LFU_LOG_FACTOR + 1)) {
+                    counter++;
+                }
+            }
+            access = (lfuMinutes() << 8) | counter;
+        }
+
+        static int lruClock() {
+            return (int) System.currentTimeMillis();
+        }
+
+        /**
+         * @return milliseconds since the last access; the clock wraps every 49 days
+         */
+        static long idleMillis(int access) {
+            return Integer.toUnsignedLong(lruClock() - access);
+        }
+
+        static int lfuMinutes() {
+            return (int) ((System.currentTimeMillis() / 60_000) & 0xFFFF);
+        }
+
+        /**
+         * @return the LFU counter held in {@code access}, less one per {@link Configs#LFU_DECAY_MINUTES} since
+         * its last decrement
+         */
+        static int lfuDecayedCounter(int access) {
+            int elapsed = (lfuMinutes() - (access >>> 8)) & 0xFFFF;
+            int counter = access & 0xFF;
+            int decay = Configs.LFU_DECAY_MINUTES > 0 ? elapsed / Configs.LFU_DECAY_MINUTES : 0;
+            return Math.max(0, counter - decay);
+        }
     }
 }
@@ -0,0 +1,71 @@
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Output buffer limits per client class, configured like redis.conf's {@code client-output-buffer-limit}:
+ * a list of {@code <class> <hard limit> <soft limit> <soft seconds>} groups, for example
+ * {@code "normal 0 0 0 replica 256mb 64mb 60"}. A client is disconnected as soon as its pending output
+ * reaches the hard limit, or once it has stayed at or above the soft limit for the given number of
+ * seconds. A limit of 0 disables the check.
+ */
+public class ClientOutputLimits {
+
+    public enum ClientClass {
+        NORMAL, REPLICA, PUBSUB;
+
+        static ClientClass fromName(String name) {
+            return switch (name.toLowerCase()) {
+                case "normal" -> NORMAL;
+                case "replica", "slave" -> REPLICA;
+                case "pubsub" -> PUBSUB;
+                default -> throw new IllegalArgumentException("Unknown client class: " + name);
+            };
+        }
+    }
+
+    public record Limit(long hardBytes, long softBytes, long softSeconds) {
+    }
+
+    private final Map<ClientClass, Limit> limits = new EnumMap<>(ClientClass.class);
+
+    public ClientOutputLimits() {
+        limits.put(ClientClass.NORMAL, new Limit(0, 0, 0));
+        limits.put(ClientClass.REPLICA, new Limit(256L * 1024 * 1024, 64L * 1024 * 1024, 60));
+        limits.put(ClientClass.PUBSUB, new Limit(32L * 1024 * 1024, 8L * 1024 * 1024, 60));
+    }
+
+    public static ClientOutputLimits fromConfig() {
+        ClientOutputLimits outputLimits = new ClientOutputLimits();
+        String value = Configs.getConfiguration("client-output-buffer-limit");
+        if (value != null) {
+            try {
+                outputLimits.parse(value);
+            } catch (IllegalArgumentException e) {
+                LoggingService.logWarn("Invalid client-output-buffer-limit '" + value + "': " + e.getMessage() + ". Using defaults.");
+                return new ClientOutputLimits();
+            }
+        }
+        return outputLimits;
+    }
+
+    private void parse(String value) {
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length % 4 != 0) {
+            throw new IllegalArgumentException("expected groups of <class> <hard> <soft> <seconds>");
+        }
+        for (int i = 0; i < parts.length; i += 4) {
+            ClientClass clientClass = ClientClass.fromName(parts[i]);
+            long hard = Configs.parseMemory(parts[i + 1]);
+            long soft = Configs.parseMemory(parts[i + 2]);
+            long seconds = Long.parseLong(parts[i + 3]);
+            if (hard < 0 || soft < 0 || seconds < 0) {
+                throw new IllegalArgumentException("limits must not be negative");
+            }
+            limits.put(clientClass, new Limit(hard, soft, seconds));
+        }
+    }
+
+    public Limit forClass(ClientClass clientClass) {
+        return limits.get(clientClass);
+    }
+}
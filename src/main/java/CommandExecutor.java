@@ -1,18 +1,17 @@
-import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.Consumer;
-import java.util.regex.Pattern;
+import java.util.function.BiConsumer;
 import java.nio.channels.SocketChannel;
 
 public class CommandExecutor {
 
     public interface CommandHandler {
-        void handleCommand(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed);
+        void handleCommand(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed);
     }
 
     public interface ReplicationNotifier {
-        void replicateCommand(List<String> commandParts);
+        void replicateCommand(List<ByteString> commandParts);
         void registerSlaveChannel(SocketChannel slaveChannel);
         void removeConnectedSlave(SocketChannel slaveChannel);
         long getReplicationOffset();
@@ -20,394 +19,1344 @@ public class CommandExecutor {
         Set<SocketChannel> getConnectedSlaves();
     }
 
+    private static final List<ByteString> GETACK_COMMAND =
+            List.of(ByteString.of("REPLCONF"), ByteString.of("GETACK"), ByteString.of("*"));
+    private static final List<ByteString> MULTI_COMMAND = List.of(ByteString.of("MULTI"));
+    private static final List<ByteString> EXEC_COMMAND = List.of(ByteString.of("EXEC"));
+    private static final ByteString LPOP = ByteString.of("LPOP");
+    private static final ByteString SET = ByteString.of("SET");
+    private static final ByteString KEEPTTL = ByteString.of("KEEPTTL");
+
+    /**
+     * Commands queued between MULTI and EXEC. A command rejected while queuing aborts the transaction, and
+     * EXEC then discards it.
+     */
+    private static final class Transaction {
+        final List<QueuedCommand> commands = new ArrayList<>();
+        boolean aborted = false;
+    }
+
+    private record QueuedCommand(CommandTable.Command command, ByteString name, List<ByteString> args, int bytesConsumed) {
+    }
+
+    /**
+     * What the thread running a command knows about it. Commands run on the event loop thread or, with
+     * {@code exec-threads} above 1, on several command workers at once, so this is kept per thread.
+     */
+    private static final class CallState {
+        int lockDepth = 0;
+        boolean executingTransaction = false;
+        boolean propagatingCall = false;
+        List<ByteString> propagatedCommand;
+        final List<List<ByteString>> alsoPropagated = new ArrayList<>();
+        /** Lists and streams that received data while clients were blocked on them. */
+        final Set<ByteString> readyLists = new LinkedHashSet<>();
+        final Set<ByteString> readyStreams = new LinkedHashSet<>();
+    }
+
+    /** Lock "mask" of commands that must run while no other command runs. */
+    private static final long EXCLUSIVE = -1L;
+
+    /** Shard "index" of commands that run on the event loop in shared-nothing mode. */
+    private static final int NO_SHARD = -1;
+    private static final int ALL_SHARDS = -2;
+    private static final int CROSS_SHARD = -3;
+
     private final Cache cache;
-    private final Map<String, CommandHandler> commandHandlers = new HashMap<>();
+    private final CommandTable commandTable = new CommandTable();
     private ReplicationNotifier replicationNotifier;
+    private TimingWheel timers;
 
-    private final ConcurrentLinkedQueue<PendingWaitRequest> pendingWaitRequests = new ConcurrentLinkedQueue<>();
+    private final NavigableMap<Long, List<PendingWaitRequest>> pendingWaitRequests = new TreeMap<>();
+    private boolean getAckRequested = false;
 
-    public final ConcurrentMap<String, List<BlockedClient>> blockedClientsPerStream = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ByteString, List<BlockedClient>> blockedClientsPerStream = new ConcurrentHashMap<>();
 
-    private final Map<SocketChannel, List<List<Object>>> transactionCommands = new HashMap<>();
+    private final Map<SocketChannel, Transaction> transactions = Collections.synchronizedMap(new HashMap<>());
+    private final CommandTable.Command execCommand;
+    private final CommandTable.Command xreadCommand;
+    private final CommandTable.Command memoryCommand;
+    private final CommandTable.Command scanCommand;
+    private final CommandTable.Command delCommand;
+    private final CommandTable.Command mgetCommand;
+    private final CommandTable.Command msetCommand;
+    private final Evictor evictor;
+    private ShardRouter shardRouter;
 
-    public final ConcurrentMap<String, List<BlockedClient>> blockedClientsPerList = new ConcurrentHashMap<>();
+    private final ThreadLocal<CallState> callState = ThreadLocal.withInitial(CallState::new);
+
+    private final ConcurrentMap<ByteString, List<BlockedClient>> blockedClientsPerList = new ConcurrentHashMap<>();
+
+    private final Map<BlockedClient, TimingWheel.Timer> blockedClientTimeouts = new IdentityHashMap<>();
 
     public CommandExecutor() {
-        this.cache = Cache.getInstance();
-
-        commandHandlers.put("command", this::handleCommandsRequest);
-        commandHandlers.put("ping", this::handlePing);
-        commandHandlers.put("echo", this::handleEchoRequest);
-        commandHandlers.put("set", this::handleSetRequest);
-        commandHandlers.put("get", this::handleGetRequest);
-        commandHandlers.put("config", this::handleConfigRequest);
-        commandHandlers.put("keys", this::handleKeysRequest);
-        commandHandlers.put("info", this::handleInfoRequest);
-        commandHandlers.put("replconf", this::handleReplConfRequest);
-        commandHandlers.put("psync", this::handlePSyncRequest);
-        commandHandlers.put("wait", this::handleWaitRequest);
-        commandHandlers.put("type", this::handleTypeRequest);
-        commandHandlers.put("xadd", this::handleXaddRequest);
-        commandHandlers.put("xrange", this::handleXRangeRequest);
-        commandHandlers.put("xread", this::handleXReadRequest);
-        commandHandlers.put("incr", this::handleIncrRequest);
-        commandHandlers.put("multi", this::handleMultiRequest);
-        commandHandlers.put("exec", this::handleExecRequest);
-        commandHandlers.put("discard", this::handleDiscardRequest);
-        commandHandlers.put("rpush", this::handleRPushRequest);
-        commandHandlers.put("lpush", this::handleLPushRequest);
-        commandHandlers.put("lrange", this::handleLRangeRequest);
-        commandHandlers.put("llen", this::handleLLenRequest);
-        commandHandlers.put("lpop", this::handleLPopRequest);
-        commandHandlers.put("blpop", this::handleBLPopRequest);
+        this(Cache.getInstance());
+    }
+
+    public CommandExecutor(Cache cache) {
+        this.cache = cache;
+
+        commandTable.register("command", -1, 0, 0, 0, 0, this::handleCommandsRequest);
+        commandTable.register("ping", -1, CommandTable.FAST, 0, 0, 0, this::handlePing);
+        commandTable.register("echo", 2, CommandTable.FAST, 0, 0, 0, this::handleEchoRequest);
+        commandTable.register("set", -3, CommandTable.WRITE | CommandTable.DENYOOM, 1, 1, 1, this::handleSetRequest);
+        commandTable.register("get", 2, CommandTable.READONLY | CommandTable.FAST, 1, 1, 1, this::handleGetRequest);
+        commandTable.register("config", -3, CommandTable.ADMIN, 0, 0, 0, this::handleConfigRequest);
+        commandTable.register("keys", 2, CommandTable.READONLY, 0, 0, 0, this::handleKeysRequest);
+        commandTable.register("scan", -2, CommandTable.READONLY, 0, 0, 0, this::handleScanRequest);
+        commandTable.register("info", -1, 0, 0, 0, 0, this::handleInfoRequest);
+        commandTable.register("replconf", -2, CommandTable.ADMIN | CommandTable.NO_MULTI, 0, 0, 0, this::handleReplConfRequest);
+        commandTable.register("psync", 3, CommandTable.ADMIN | CommandTable.NO_MULTI, 0, 0, 0, this::handlePSyncRequest);
+        commandTable.register("wait", 3, CommandTable.BLOCKING, 0, 0, 0, this::handleWaitRequest);
+        commandTable.register("type", 2, CommandTable.READONLY | CommandTable.FAST, 1, 1, 1, this::handleTypeRequest);
+        commandTable.register("xadd", -5, CommandTable.WRITE | CommandTable.DENYOOM | CommandTable.FAST, 1, 1, 1, this::handleXaddRequest);
+        commandTable.register("xrange", -4, CommandTable.READONLY, 1, 1, 1, this::handleXRangeRequest);
+        commandTable.register("xread", -4, CommandTable.READONLY | CommandTable.BLOCKING, 0, 0, 0, this::handleXReadRequest);
+        commandTable.register("incr", 2, CommandTable.WRITE | CommandTable.DENYOOM | CommandTable.FAST, 1, 1, 1, this::handleIncrRequest);
+        commandTable.register("decr", 2, CommandTable.WRITE | CommandTable.DENYOOM | CommandTable.FAST, 1, 1, 1, this::handleDecrRequest);
+        commandTable.register("incrby", 3, CommandTable.WRITE | CommandTable.DENYOOM | CommandTable.FAST, 1, 1, 1, this::handleIncrByRequest);
+        commandTable.register("decrby", 3, CommandTable.WRITE | CommandTable.DENYOOM | CommandTable.FAST, 1, 1, 1, this::handleDecrByRequest);
+        commandTable.register("incrbyfloat", 3, CommandTable.WRITE | CommandTable.DENYOOM | CommandTable.FAST, 1, 1, 1, this::handleIncrByFloatRequest);
+        commandTable.register("mget", -2, CommandTable.READONLY | CommandTable.FAST, 1, -1, 1, this::handleMGetRequest);
+        commandTable.register("mset", -3, CommandTable.WRITE | CommandTable.DENYOOM, 1, -1, 2, this::handleMSetRequest);
+        commandTable.register("object", -2, CommandTable.READONLY, 2, 2, 1, this::handleObjectRequest);
+        commandTable.register("multi", 1, CommandTable.TRANSACTION | CommandTable.FAST, 0, 0, 0, this::handleMultiRequest);
+        commandTable.register("exec", 1, CommandTable.TRANSACTION, 0, 0, 0, this::handleExecRequest);
+        commandTable.register("discard", 1, CommandTable.TRANSACTION | CommandTable.FAST, 0, 0, 0, this::handleDiscardRequest);
+        commandTable.register("rpush", -3, CommandTable.WRITE | CommandTable.DENYOOM | CommandTable.FAST, 1, 1, 1, this::handleRPushRequest);
+        commandTable.register("lpush", -3, CommandTable.WRITE | CommandTable.DENYOOM | CommandTable.FAST, 1, 1, 1, this::handleLPushRequest);
+        commandTable.register("lrange", 4, CommandTable.READONLY, 1, 1, 1, this::handleLRangeRequest);
+        commandTable.register("llen", 2, CommandTable.READONLY | CommandTable.FAST, 1, 1, 1, this::handleLLenRequest);
+        commandTable.register("lpop", -2, CommandTable.WRITE | CommandTable.FAST, 1, 1, 1, this::handleLPopRequest);
+        commandTable.register("blpop", -3, CommandTable.WRITE | CommandTable.BLOCKING, 1, -2, 1, this::handleBLPopRequest);
+        commandTable.register("del", -2, CommandTable.WRITE, 1, -1, 1, this::handleDelRequest);
+        commandTable.register("expire", -3, CommandTable.WRITE | CommandTable.FAST, 1, 1, 1, this::handleExpireRequest);
+        commandTable.register("pexpire", -3, CommandTable.WRITE | CommandTable.FAST, 1, 1, 1, this::handlePExpireRequest);
+        commandTable.register("expireat", -3, CommandTable.WRITE | CommandTable.FAST, 1, 1, 1, this::handleExpireAtRequest);
+        commandTable.register("pexpireat", -3, CommandTable.WRITE | CommandTable.FAST, 1, 1, 1, this::handlePExpireAtRequest);
+        commandTable.register("ttl", 2, CommandTable.READONLY | CommandTable.FAST, 1, 1, 1, this::handleTtlRequest);
+        commandTable.register("pttl", 2, CommandTable.READONLY | CommandTable.FAST, 1, 1, 1, this::handlePTtlRequest);
+        commandTable.register("memory", -2, CommandTable.READONLY, 0, 0, 0, this::handleMemoryRequest);
+        commandTable.register("persist", 2, CommandTable.WRITE | CommandTable.FAST, 1, 1, 1, this::handlePersistRequest);
+        execCommand = commandTable.lookup(ByteString.of("exec"));
+        xreadCommand = commandTable.lookup(ByteString.of("xread"));
+        memoryCommand = commandTable.lookup(ByteString.of("memory"));
+        scanCommand = commandTable.lookup(ByteString.of("scan"));
+        delCommand = commandTable.lookup(ByteString.of("del"));
+        mgetCommand = commandTable.lookup(ByteString.of("mget"));
+        msetCommand = commandTable.lookup(ByteString.of("mset"));
+        evictor = Evictor.create(cache, this::propagateEviction);
     }
 
     public void setReplicationNotifier(ReplicationNotifier notifier) {
         this.replicationNotifier = notifier;
     }
 
-    public void executeCommand(SocketChannel clientChannel, String command, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        command = command.toLowerCase();
-        CommandHandler handler = commandHandlers.get(command);
+    /**
+     * Switches to shared-nothing mode: commands on keys are sent to the shard owning them instead of running
+     * against this executor's cache.
+     */
+    public void setShardRouter(ShardRouter router) {
+        this.shardRouter = router;
+    }
+
+    /**
+     * Sets the timing wheel of the event loop, which fires the timeouts of BLPOP, XREAD BLOCK and WAIT.
+     */
+    public void setTimingWheel(TimingWheel timers) {
+        this.timers = timers;
+    }
 
-        if ("master".equalsIgnoreCase(Configs.getReplicationInfoAsString("role"))) {
-            if (command.equals("set") && replicationNotifier != null) {
-                List<String> fullCommand = new ArrayList<>();
-                fullCommand.add(command);
-                fullCommand.addAll(args);
-                replicationNotifier.replicateCommand(fullCommand);
-                LoggingService.logFine("Replicated SET command to connected replicas: " + fullCommand);
+    /**
+     * Looks the command up, checks its arity and either queues it into the client's open transaction or
+     * runs it, holding the keyspace locks it needs when commands run on several threads.
+     *
+     * @param name the command name as the client sent it, in any letter case
+     */
+    public void executeCommand(SocketChannel clientChannel, ByteString name, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        CommandTable.Command command = commandTable.lookup(name);
+        Transaction transaction = transactions.get(clientChannel);
+        if (shardRouter != null && routeToShard(command, clientChannel, name, args, reply, bytesConsumed, transaction)) {
+            return;
+        }
+        // Replicas leave eviction to their master, which propagates it.
+        if (clientChannel != null && mayGrowKeyspace(command, args, transaction) && !evictor.makeRoom()) {
+            if (transaction != null) {
+                transactions.remove(clientChannel);
             }
+            reply.error("OOM command not allowed when used memory > 'maxmemory'.");
+            return;
         }
+        long shards = shardsToLock(command, args, transaction);
+        boolean write = shards != EXCLUSIVE && !isReadOnly(command, transaction);
 
-        if (handler != null) {
-            handler.handleCommand(clientChannel, args, stringWriter, byteWriter, bytesConsumed);
-        } else {
-            LoggingService.logError("Unknown command: " + command + " with args: " + args);
-            stringWriter.accept(RESPEncoder.encodeError("ERR unknown command '" + command + "'"));
+        lock(shards, write);
+        try {
+            dispatch(command, clientChannel, name, args, reply, bytesConsumed, transaction);
+        } finally {
+            unlock(shards, write);
         }
     }
 
-    public void processPendingWaitRequests() {
-        if (replicationNotifier == null) {
-            LoggingService.logWarn("Cannot process pending WAIT requests: ReplicationNotifier not set.");
+    /**
+     * Runs work that writes to clients outside of a command, such as continuing a streamed reply, so it never
+     * overlaps with exclusive work answering the same client.
+     */
+    public void runShared(Runnable task) {
+        lock(0, false);
+        try {
+            task.run();
+        } finally {
+            unlock(0, false);
+        }
+    }
+
+    /**
+     * Runs event loop work on the state commands share, such as firing the timeouts of blocked clients and
+     * WAITs, while no command runs.
+     */
+    public void runExclusively(Runnable task) {
+        lock(EXCLUSIVE, true);
+        try {
+            task.run();
+        } finally {
+            unlock(EXCLUSIVE, true);
+        }
+    }
+
+    private void dispatch(CommandTable.Command command, SocketChannel clientChannel, ByteString name, List<ByteString> args,
+                          ReplyWriter reply, int bytesConsumed, Transaction transaction) {
+        if (command == null) {
+            LoggingService.logError("Unknown command: " + name + " with args: " + args);
+            abortTransaction(transaction);
+            reply.error("ERR unknown command '" + name + "'");
             return;
         }
+        if (!command.acceptsArgumentCount(args.size() + 1)) {
+            abortTransaction(transaction);
+            reply.error("ERR wrong number of arguments for '" + command.name() + "' command");
+            return;
+        }
+        if (transaction != null && !command.hasFlag(CommandTable.TRANSACTION)) {
+            if (command.hasFlag(CommandTable.NO_MULTI)) {
+                abortTransaction(transaction);
+                reply.error("ERR Command not allowed inside a transaction");
+                return;
+            }
+            transaction.commands.add(new QueuedCommand(command, name, args, bytesConsumed));
+            LoggingService.logFine(() -> "Added " + command.name() + " command to transaction queue for client: " + clientChannel);
+            reply.queued();
+            return;
+        }
+        call(command, clientChannel, name, args, reply, bytesConsumed);
+    }
 
-        Iterator<PendingWaitRequest> iterator = pendingWaitRequests.iterator();
+    private static void abortTransaction(Transaction transaction) {
+        if (transaction != null) {
+            transaction.aborted = true;
+        }
+    }
 
-        while (iterator.hasNext()) {
-            PendingWaitRequest pending = iterator.next();
+    /**
+     * In shared-nothing mode, sends the command to the shard owning its keys, to every shard for KEYS, split
+     * into one command per shard for DEL, MGET and MSET on keys of several shards, or defers it until the
+     * client's earlier commands have completed when it must run here on the event loop. A transaction is sent
+     * whole, with its queue, to the one shard its keys belong to.
+     *
+     * @return false if the command runs here and now
+     */
+    private boolean routeToShard(CommandTable.Command command, SocketChannel clientChannel, ByteString name,
+                                 List<ByteString> args, ReplyWriter reply, int bytesConsumed, Transaction transaction) {
+        int target = shardTarget(command, args, transaction);
+        ShardRouter.Merge merge = target == CROSS_SHARD ? mergeOf(command) : null;
+        boolean runsHere = target == NO_SHARD || (target == CROSS_SHARD && merge == null);
+        if (!shardRouter.isIdle(reply) && (runsHere || shardRouter.hasDeferred(reply))) {
+            shardRouter.defer(reply, () -> executeCommand(clientChannel, name, args, reply, bytesConsumed));
+            return true;
+        }
+        if (target == NO_SHARD) {
+            return false;
+        }
+        if (merge != null) {
+            splitByShard(command, clientChannel, name, args, reply, bytesConsumed, merge);
+            return true;
+        }
+        if (target == CROSS_SHARD) {
+            if (transaction != null) {
+                transactions.remove(clientChannel);
+            }
+            reply.error("CROSSSLOT Keys in request don't hash to the same shard");
+            return true;
+        }
+        if (target == ALL_SHARDS) {
+            shardRouter.fanOut(reply, (shard, shardReply) -> shard.executeCommand(clientChannel, name, args, shardReply, bytesConsumed));
+        } else if (transaction != null) {
+            transactions.remove(clientChannel);
+            shardRouter.submit(reply, target, (shard, shardReply) -> {
+                shard.transactions.put(clientChannel, shard.adopt(transaction));
+                shard.executeCommand(clientChannel, name, args, shardReply, bytesConsumed);
+            });
+        } else {
+            shardRouter.submit(reply, target, (shard, shardReply) -> shard.executeCommand(clientChannel, name, args, shardReply, bytesConsumed));
+        }
+        return true;
+    }
 
-            long acknowledgedSlaves = replicationNotifier.getSlaveAckOffsets().values().stream()
-                .filter(offset -> offset >= pending.masterOffset)
-                .count();
+    /**
+     * @return the shard owning the command's keys, {@link #ALL_SHARDS} for keyless reads (KEYS),
+     * {@link #CROSS_SHARD} if its keys belong to several shards, or {@link #NO_SHARD} for commands that do
+     * not touch the keyspace, fail before running, or are only queued into a transaction. For EXEC, the
+     * shards of its queued commands decide.
+     */
+    private int shardTarget(CommandTable.Command command, List<ByteString> args, Transaction transaction) {
+        if (command == null || !command.acceptsArgumentCount(args.size() + 1)) {
+            return NO_SHARD;
+        }
+        if (transaction != null) {
+            if (command != execCommand || transaction.aborted) {
+                return NO_SHARD;
+            }
+            int target = NO_SHARD;
+            for (QueuedCommand queued : transaction.commands) {
+                int queuedTarget = shardTarget(queued.command(), queued.args(), null);
+                if (queuedTarget == NO_SHARD) {
+                    continue;
+                }
+                if (queuedTarget < 0 || (target != NO_SHARD && target != queuedTarget)) {
+                    return CROSS_SHARD;
+                }
+                target = queuedTarget;
+            }
+            return target;
+        }
+        if (command.hasFlag(CommandTable.TRANSACTION)) {
+            return NO_SHARD;
+        }
+        int first;
+        int last;
+        int step;
+        if (command == xreadCommand) {
+            int streams = indexOfIgnoreCase(args, "streams");
+            if (streams < 0 || (args.size() - streams - 1) % 2 != 0) {
+                return NO_SHARD;
+            }
+            first = streams + 2;
+            last = streams + 1 + (args.size() - streams - 1) / 2;
+            step = 1;
+        } else if (command == scanCommand) {
+            // The cursor says which partition the scan continues in; an invalid one is refused here.
+            try {
+                return Cache.partitionOf(Long.parseUnsignedLong(args.getFirst().toString()), shardRouter.getShardCount());
+            } catch (NumberFormatException e) {
+                return NO_SHARD;
+            }
+        } else if (command == memoryCommand) {
+            // MEMORY USAGE reads its key where it lives; MEMORY STATS adds up every partition from here.
+            if (!args.getFirst().equalsIgnoreCase("usage") || args.size() < 2) {
+                return NO_SHARD;
+            }
+            first = 2;
+            last = 2;
+            step = 1;
+        } else if (command == msetCommand && args.size() % 2 != 0) {
+            // Refused here as a whole, rather than by the shards owning the key missing its value.
+            return NO_SHARD;
+        } else if (command.firstKey() == 0) {
+            return command.hasFlag(CommandTable.READONLY) && !command.hasFlag(CommandTable.BLOCKING) ? ALL_SHARDS : NO_SHARD;
+        } else {
+            first = command.firstKey();
+            last = command.lastKeyIndex(args.size() + 1);
+            step = command.keyStep();
+        }
+        int target = NO_SHARD;
+        for (int i = first; i <= last && i <= args.size(); i += step) {
+            int shard = shardRouter.shardOf(args.get(i - 1));
+            if (target != NO_SHARD && target != shard) {
+                return CROSS_SHARD;
+            }
+            target = shard;
+        }
+        return target;
+    }
 
-            if (acknowledgedSlaves >= pending.requiredSlaves) {
-                LoggingService.logInfo("Master: WAIT condition met for client " + pending.clientChannel + ". Slaves acknowledged: " + acknowledgedSlaves);
-                try {
-                    pending.stringWriter.accept(RESPEncoder.encodeInteger(acknowledgedSlaves));
-                } catch (Exception e) {
-                    LoggingService.logError("Error writing WAIT response to client " + pending.clientChannel + ": " + e.getMessage(), e);
+    /**
+     * Rebinds the commands of a transaction queued on the event loop to this executor's handlers, which run
+     * against this executor's cache, so a keyspace shard can run it.
+     */
+    private Transaction adopt(Transaction transaction) {
+        List<QueuedCommand> commands = transaction.commands;
+        for (int i = 0; i < commands.size(); i++) {
+            QueuedCommand queued = commands.get(i);
+            commands.set(i, new QueuedCommand(commandTable.lookup(queued.name()), queued.name(), queued.args(), queued.bytesConsumed()));
+        }
+        return transaction;
+    }
+
+    /**
+     * @return how the replies are merged when a command on keys of several shards is split into one command
+     * per shard, or null if it cannot be split and is refused
+     */
+    private ShardRouter.Merge mergeOf(CommandTable.Command command) {
+        if (command == delCommand) {
+            return ShardRouter.Merge.SUM;
+        } else if (command == mgetCommand) {
+            return ShardRouter.Merge.BY_KEY;
+        } else if (command == msetCommand) {
+            return ShardRouter.Merge.ALL_OK;
+        }
+        return null;
+    }
+
+    /**
+     * Sends every shard owning some of the command's keys the command with just those keys, each followed by
+     * the arguments up to the next key, in the order the client sent them.
+     */
+    private void splitByShard(CommandTable.Command command, SocketChannel clientChannel, ByteString name,
+                              List<ByteString> args, ReplyWriter reply, int bytesConsumed, ShardRouter.Merge merge) {
+        int[] partOfShard = new int[shardRouter.getShardCount()];
+        Arrays.fill(partOfShard, -1);
+        int[] targets = new int[partOfShard.length];
+        List<List<ByteString>> partArgs = new ArrayList<>();
+        int last = command.lastKeyIndex(args.size() + 1);
+        int[] keyParts = new int[(last - command.firstKey()) / command.keyStep() + 1];
+        for (int i = command.firstKey(), key = 0; i <= last && i <= args.size(); i += command.keyStep(), key++) {
+            int shard = shardRouter.shardOf(args.get(i - 1));
+            if (partOfShard[shard] < 0) {
+                partOfShard[shard] = partArgs.size();
+                targets[partArgs.size()] = shard;
+                partArgs.add(new ArrayList<>());
+            }
+            keyParts[key] = partOfShard[shard];
+            List<ByteString> part = partArgs.get(partOfShard[shard]);
+            for (int j = i; j < i + command.keyStep() && j <= args.size(); j++) {
+                part.add(args.get(j - 1));
+            }
+        }
+        List<BiConsumer<CommandExecutor, ReplyWriter>> work = new ArrayList<>(partArgs.size());
+        for (List<ByteString> part : partArgs) {
+            work.add((shard, shardReply) -> shard.executeCommand(clientChannel, name, part, shardReply, bytesConsumed));
+        }
+        shardRouter.split(reply, Arrays.copyOf(targets, partArgs.size()), work, merge, keyParts);
+    }
+
+    private static int indexOfIgnoreCase(List<ByteString> args, String value) {
+        for (int i = 0; i < args.size(); i++) {
+            if (args.get(i).equalsIgnoreCase(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the shards a command locks when commands run on several threads: those its keys hash to, all of
+     * them for KEYS, none (only the shared keyspace lock) for commands that touch no data or are only queued,
+     * or {@link #EXCLUSIVE} for commands that touch state beyond the keyspace, such as blocked clients, WAITs,
+     * replication and configuration. EXEC locks what its queued commands need.
+     */
+    private long shardsToLock(CommandTable.Command command, List<ByteString> args, Transaction transaction) {
+        if (!cache.isConcurrent() || command == null || !command.acceptsArgumentCount(args.size() + 1)) {
+            return 0;
+        }
+        if (transaction != null && !command.hasFlag(CommandTable.TRANSACTION)) {
+            return 0;
+        }
+        if (command == execCommand) {
+            if (transaction == null || transaction.aborted) {
+                return 0;
+            }
+            long shards = 0;
+            for (QueuedCommand queued : transaction.commands) {
+                long queuedShards = shardsToLock(queued.command(), queued.args(), null);
+                if (queuedShards == EXCLUSIVE) {
+                    return EXCLUSIVE;
                 }
-                pending.latch.countDown();
-                iterator.remove();
-            } else if (pending.timeoutMillis > 0 && (System.currentTimeMillis() - pending.startTime >= pending.timeoutMillis)) {
-                LoggingService.logInfo("Master: Pending WAIT command timed out for client " + pending.clientChannel + ". Slaves acknowledged: " + acknowledgedSlaves);
-                try {
-                    pending.stringWriter.accept(RESPEncoder.encodeInteger(acknowledgedSlaves));
-                } catch (Exception e) {
-                    LoggingService.logError("Error writing WAIT timeout response to client " + pending.clientChannel + ": " + e.getMessage(), e);
+                shards |= queuedShards;
+            }
+            return shards;
+        }
+        if (command.hasFlag(CommandTable.BLOCKING) || command.hasFlag(CommandTable.ADMIN)) {
+            return EXCLUSIVE;
+        }
+        if (command.firstKey() == 0) {
+            if (command.hasFlag(CommandTable.READONLY)) {
+                return cache.allShards();
+            }
+            return command.hasFlag(CommandTable.FAST) ? 0 : EXCLUSIVE;
+        }
+        int argc = args.size() + 1;
+        int last = command.lastKeyIndex(argc);
+        long shards = 0;
+        for (int i = command.firstKey(); i <= last && i < argc; i += command.keyStep()) {
+            shards |= 1L << cache.shardOf(args.get(i - 1));
+        }
+        return shards;
+    }
+
+    /**
+     * @return true if the command is about to run and may add to the keyspace: a DENYOOM command, or EXEC of
+     * a transaction holding one
+     */
+    private boolean mayGrowKeyspace(CommandTable.Command command, List<ByteString> args, Transaction transaction) {
+        if (command == null || !command.acceptsArgumentCount(args.size() + 1)) {
+            return false;
+        }
+        if (transaction == null) {
+            return command.hasFlag(CommandTable.DENYOOM);
+        }
+        if (command != execCommand || transaction.aborted) {
+            return false;
+        }
+        for (QueuedCommand queued : transaction.commands) {
+            if (queued.command().hasFlag(CommandTable.DENYOOM)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the deletion of an evicted key to the replicas. Called with the key's shard locked.
+     */
+    private void propagateEviction(ByteString key) {
+        if (isPropagating()) {
+            propagate(List.of(ByteString.of("DEL"), key));
+        }
+    }
+
+    private boolean isReadOnly(CommandTable.Command command, Transaction transaction) {
+        if (command == null) {
+            return true;
+        }
+        if (command == execCommand && transaction != null) {
+            for (QueuedCommand queued : transaction.commands) {
+                if (!queued.command().hasFlag(CommandTable.READONLY)) {
+                    return false;
                 }
-                pending.latch.countDown();
-                iterator.remove();
             }
+            return true;
         }
+        return command.hasFlag(CommandTable.READONLY);
     }
 
-    private void handleCommandsRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        List<String> commands = commandHandlers.keySet().stream().toList();
-        if (args.isEmpty()) {
-            LoggingService.logFine("Sending command list COMMAND.");
-            stringWriter.accept(RESPEncoder.encodeStringArray(commands));
+    private void lock(long shards, boolean write) {
+        if (shards == EXCLUSIVE) {
+            cache.lockKeyspace();
         } else {
-            String arg = args.getFirst();
-            if (arg.equalsIgnoreCase("docs")) {
-                if (args.size() > 1) {
-                    stringWriter.accept(RESPEncoder.encodeError("ERR Unimplemented subcommand 'docs' for 'command' command"));
-                    return;
-                }
-                List<Object> commandDocs = new ArrayList<>();
-                for (String commandName : commands) {
-                    List<String> docs = new ArrayList<>();
-                    docs.add("summary");
-                    docs.add("Summary of " + commandName + " command");
-                    docs.add("since");
-                    docs.add("1.0.0");
-                    commandDocs.add(commandName);
-                    commandDocs.add(docs);
+            cache.lockShards(shards, write);
+        }
+        callState.get().lockDepth++;
+    }
+
+    /**
+     * Releases what {@link #lock} took and, once the thread holds nothing, serves the clients blocked on keys
+     * that the work made ready.
+     */
+    private void unlock(long shards, boolean write) {
+        CallState state = callState.get();
+        state.lockDepth--;
+        if (shards == EXCLUSIVE) {
+            cache.unlockKeyspace();
+        } else {
+            cache.unlockShards(shards, write);
+        }
+        if (state.lockDepth == 0 && (!state.readyLists.isEmpty() || !state.readyStreams.isEmpty())) {
+            serveReadyKeys(state);
+        }
+    }
+
+    /**
+     * Runs a command and, on a master, propagates write commands to the replicas once they have run, so the
+     * handler can rewrite what is propagated ({@link #rewritePropagatedArgument}, {@link #suppressPropagation})
+     * and add commands for effects it had on other clients ({@link #alsoPropagate}).
+     */
+    private void call(CommandTable.Command command, SocketChannel clientChannel, ByteString name, List<ByteString> args,
+                      ReplyWriter reply, int bytesConsumed) {
+        if (!command.hasFlag(CommandTable.WRITE) || !isPropagating()) {
+            command.handler().handleCommand(clientChannel, args, reply, bytesConsumed);
+            return;
+        }
+        List<ByteString> fullCommand = new ArrayList<>(args.size() + 1);
+        fullCommand.add(name);
+        fullCommand.addAll(args);
+        CallState state = callState.get();
+        state.propagatingCall = true;
+        state.propagatedCommand = fullCommand;
+        try {
+            command.handler().handleCommand(clientChannel, args, reply, bytesConsumed);
+            if (state.propagatedCommand != null) {
+                propagate(state.propagatedCommand);
+            }
+            for (List<ByteString> extra : state.alsoPropagated) {
+                propagate(extra);
+            }
+        } finally {
+            state.propagatingCall = false;
+            state.propagatedCommand = null;
+            state.alsoPropagated.clear();
+        }
+    }
+
+    private boolean isPropagating() {
+        return replicationNotifier != null && "master".equalsIgnoreCase(Configs.getReplicationInfoAsString("role"));
+    }
+
+    /**
+     * Sends a command to the replicas. Called with the locks of the keys it changed still held, so the
+     * replicas see the changes to any one key in the order they were made.
+     */
+    private void propagate(List<ByteString> command) {
+        // Shared by every executor propagating to the same replicas, including keyspace shards.
+        synchronized (replicationNotifier) {
+            replicationNotifier.replicateCommand(command);
+            long offset = (long) Configs.getReplicationInfo("master_repl_offset");
+            Configs.setReplicationInfo("master_repl_offset", offset + RESPEncoder.bulkArrayLength(command));
+        }
+        LoggingService.logFine(() -> "Replicated command to connected replicas: " + command);
+    }
+
+    /**
+     * Replaces an argument of the command being propagated, for example an ID generated by the master.
+     */
+    private void rewritePropagatedArgument(int index, ByteString value) {
+        List<ByteString> propagatedCommand = callState.get().propagatedCommand;
+        if (propagatedCommand != null) {
+            propagatedCommand.set(index + 1, value);
+        }
+    }
+
+    private void suppressPropagation() {
+        callState.get().propagatedCommand = null;
+    }
+
+    /**
+     * Propagates a command after the one being run, for changes it caused beyond its own, such as serving a
+     * blocked client.
+     */
+    private void alsoPropagate(List<ByteString> command) {
+        CallState state = callState.get();
+        if (state.propagatingCall) {
+            state.alsoPropagated.add(command);
+        }
+    }
+
+    /**
+     * Sends one REPLCONF GETACK to the replicas if any WAIT asked for acknowledgements since the last call.
+     * Called by the event loop once per iteration, so a burst of WAITs costs a single broadcast.
+     */
+    public void sendPendingGetAck() {
+        if (!getAckRequested || replicationNotifier == null) {
+            return;
+        }
+        getAckRequested = false;
+        replicationNotifier.replicateCommand(GETACK_COMMAND);
+        LoggingService.logFine("Master: Sent REPLCONF GETACK * to all slaves for pending WAIT commands.");
+    }
+
+    /**
+     * Completes, in one pass, every WAIT that the acknowledgement of a replica moving from
+     * {@code previousOffset} to {@code ackOffset} may have satisfied. Only targets in that range can have
+     * gained an acknowledgement, and they are visited in offset order.
+     */
+    private void completeSatisfiedWaits(long previousOffset, long ackOffset) {
+        if (ackOffset <= previousOffset || pendingWaitRequests.isEmpty()) {
+            return;
+        }
+        long[] ackOffsets = sortedAckOffsets();
+        Iterator<Map.Entry<Long, List<PendingWaitRequest>>> entries =
+                pendingWaitRequests.subMap(previousOffset, false, ackOffset, true).entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, List<PendingWaitRequest>> entry = entries.next();
+            long acknowledgedSlaves = countAcknowledged(ackOffsets, entry.getKey());
+            Iterator<PendingWaitRequest> waiters = entry.getValue().iterator();
+            while (waiters.hasNext()) {
+                PendingWaitRequest pending = waiters.next();
+                if (acknowledgedSlaves >= pending.requiredSlaves) {
+                    waiters.remove();
+                    timers.cancel(pending.timeout);
+                    LoggingService.logFine(() -> "Master: WAIT condition met for client " + pending.clientChannel + ". Slaves acknowledged: " + acknowledgedSlaves);
+                    replyToWait(pending, acknowledgedSlaves);
                 }
-                LoggingService.logInfo("Sending command list DOCUMENTATION.");
-                stringWriter.accept(RESPEncoder.encodeArray(commandDocs));
+            }
+            if (entry.getValue().isEmpty()) {
+                entries.remove();
+            }
+        }
+    }
+
+    private void timeOutWait(PendingWaitRequest pending) {
+        List<PendingWaitRequest> waiters = pendingWaitRequests.get(pending.masterOffset);
+        if (waiters == null || !waiters.remove(pending)) {
+            return;
+        }
+        if (waiters.isEmpty()) {
+            pendingWaitRequests.remove(pending.masterOffset);
+        }
+        long acknowledgedSlaves = countAcknowledged(sortedAckOffsets(), pending.masterOffset);
+        LoggingService.logFine(() -> "Master: Pending WAIT command timed out for client " + pending.clientChannel + ". Slaves acknowledged: " + acknowledgedSlaves);
+        replyToWait(pending, acknowledgedSlaves);
+    }
+
+    private void replyToWait(PendingWaitRequest pending, long acknowledgedSlaves) {
+        try {
+            pending.reply.integer(acknowledgedSlaves);
+        } catch (Exception e) {
+            LoggingService.logError("Error writing WAIT response to client " + pending.clientChannel + ": " + e.getMessage(), e);
+        }
+    }
+
+    private long[] sortedAckOffsets() {
+        return replicationNotifier.getSlaveAckOffsets().values().stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    /**
+     * @return number of replicas whose acknowledged offset is at least {@code targetOffset}
+     */
+    private static long countAcknowledged(long[] sortedAckOffsets, long targetOffset) {
+        int low = 0;
+        int high = sortedAckOffsets.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedAckOffsets[mid] < targetOffset) {
+                low = mid + 1;
             } else {
-                stringWriter.accept(RESPEncoder.encodeError("ERR unknown command '" + arg + "' for 'command' command"));
+                high = mid;
             }
         }
+        return sortedAckOffsets.length - low;
     }
 
-    private void handlePing(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        String response = args.isEmpty() ? "PONG" : args.getFirst();
-        LoggingService.logFine("Responding to PING with: " + response);
-        stringWriter.accept(RESPEncoder.encodeSimpleString(response));
+    private void handleCommandsRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        if (args.isEmpty()) {
+            LoggingService.logFine(() -> "Sending command list COMMAND.");
+            List<Object> infos = new ArrayList<>(commandTable.size());
+            for (CommandTable.Command command : commandTable.getCommands()) {
+                infos.add(commandInfo(command));
+            }
+            reply.array(infos);
+            return;
+        }
+        ByteString arg = args.getFirst();
+        if (arg.equalsIgnoreCase("count")) {
+            if (args.size() != 1) {
+                reply.error("ERR wrong number of arguments for 'command|count' command");
+                return;
+            }
+            reply.integer(commandTable.size());
+        } else if (arg.equalsIgnoreCase("info")) {
+            List<Object> infos = new ArrayList<>(args.size() - 1);
+            for (ByteString name : args.subList(1, args.size())) {
+                CommandTable.Command command = commandTable.lookup(name);
+                infos.add(command == null ? null : commandInfo(command));
+            }
+            reply.array(infos);
+        } else if (arg.equalsIgnoreCase("getkeys")) {
+            if (args.size() < 2) {
+                reply.error("ERR wrong number of arguments for 'command|getkeys' command");
+                return;
+            }
+            CommandTable.Command command = commandTable.lookup(args.get(1));
+            List<ByteString> commandArgs = args.subList(2, args.size());
+            if (command == null) {
+                reply.error("ERR Invalid command specified");
+            } else if (!command.acceptsArgumentCount(commandArgs.size() + 1)) {
+                reply.error("ERR Invalid number of arguments specified for command");
+            } else {
+                List<ByteString> keys = command.keys(commandArgs);
+                if (keys.isEmpty()) {
+                    reply.error("ERR The command has no key arguments");
+                } else {
+                    reply.bulkArray(keys);
+                }
+            }
+        } else if (arg.equalsIgnoreCase("docs")) {
+            if (args.size() > 1) {
+                reply.error("ERR Unimplemented subcommand 'docs' for 'command' command");
+                return;
+            }
+            List<Object> commandDocs = new ArrayList<>();
+            for (CommandTable.Command command : commandTable.getCommands()) {
+                List<String> docs = new ArrayList<>();
+                docs.add("summary");
+                docs.add("Summary of " + command.name() + " command");
+                docs.add("since");
+                docs.add("1.0.0");
+                commandDocs.add(command.name());
+                commandDocs.add(docs);
+            }
+            LoggingService.logInfo("Sending command list DOCUMENTATION.");
+            reply.array(commandDocs);
+        } else {
+            reply.error("ERR unknown command '" + arg + "' for 'command' command");
+        }
     }
 
-    private void handleEchoRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
+    /**
+     * @return the COMMAND INFO entry of a command: name, arity, flags, first key, last key and key step,
+     * followed by the empty ACL categories, tips, key specs and subcommands
+     */
+    private static List<Object> commandInfo(CommandTable.Command command) {
+        return List.of(command.name(), command.arity(), command.flagNames(),
+                command.firstKey(), command.lastKey(), command.keyStep(),
+                List.of(), List.of(), List.of(), List.of());
+    }
+
+    private void handlePing(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
         if (args.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'echo' command"));
+            LoggingService.logFine(() -> "Responding to PING with: PONG");
+            reply.simpleString("PONG");
             return;
         }
-        String arg = args.getFirst();
-        LoggingService.logFine("Echoing: " + arg);
-        stringWriter.accept(RESPEncoder.encodeBulkString(arg));
+        LoggingService.logFine(() -> "Responding to PING with: " + args.getFirst());
+        reply.bulkString(args.getFirst());
+    }
+
+    private void handleEchoRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString arg = args.getFirst();
+        LoggingService.logFine(() -> "Echoing: " + arg);
+        reply.bulkString(arg);
     }
 
-    private void handleSetRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (transactionCommands.containsKey(clientChannel)) {
-            List<List<Object>> commands = transactionCommands.computeIfAbsent(clientChannel, _ -> new LinkedList<>());
-            commands.add(List.of("set", args, bytesConsumed));
-            LoggingService.logFine("Added SET command to transaction queue for client: " + clientChannel);
-            stringWriter.accept(RESPEncoder.encodeSimpleString("QUEUED"));
+    /**
+     * SET key value [NX | XX] [GET] [EX seconds | PX milliseconds | EXAT unix-seconds | PXAT unix-milliseconds | KEEPTTL].
+     * A relative expiration time is propagated as PXAT, so replicas expire the key at the same moment.
+     */
+    private void handleSetRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+
+        ByteString key = args.getFirst();
+        ByteString value = args.get(1);
+        boolean nx = false;
+        boolean xx = false;
+        boolean get = false;
+        boolean keepTtl = false;
+        int expireOptionIndex = -1;
+
+        for (int i = 2; i < args.size(); i++) {
+            ByteString option = args.get(i);
+            if (option.equalsIgnoreCase("nx") && !xx) {
+                nx = true;
+            } else if (option.equalsIgnoreCase("xx") && !nx) {
+                xx = true;
+            } else if (option.equalsIgnoreCase("get")) {
+                get = true;
+            } else if (option.equalsIgnoreCase("keepttl") && expireOptionIndex < 0) {
+                keepTtl = true;
+            } else if ((option.equalsIgnoreCase("ex") || option.equalsIgnoreCase("px")
+                    || option.equalsIgnoreCase("exat") || option.equalsIgnoreCase("pxat"))
+                    && expireOptionIndex < 0 && !keepTtl && i + 1 < args.size()) {
+                expireOptionIndex = i++;
+            } else {
+                reply.error("ERR syntax error");
+                return;
+            }
+        }
+
+        long expiresAt = 0;
+        if (expireOptionIndex >= 0) {
+            ByteString option = args.get(expireOptionIndex);
+            long time;
+            try {
+                time = args.get(expireOptionIndex + 1).parseLong();
+            } catch (NumberFormatException e) {
+                reply.error("ERR value is not an integer or out of range");
+                return;
+            }
+            boolean seconds = option.equalsIgnoreCase("ex") || option.equalsIgnoreCase("exat");
+            boolean absolute = option.equalsIgnoreCase("exat") || option.equalsIgnoreCase("pxat");
+            expiresAt = time <= 0 ? -1 : expirationTime(time, seconds ? 1000 : 1, absolute);
+            if (expiresAt <= 0) {
+                reply.error("ERR invalid expire time in 'set' command");
+                return;
+            }
+        }
+
+        // A plain SET does not read the key, so it stays a single probe of the keyspace.
+        Cache.Value current = nx || xx || get || keepTtl ? cache.get(key) : null;
+        if (get && current != null && !Cache.TYPE_STRING.equals(current.getType())) {
+            reply.error("WRONGTYPE Operation against a key holding the wrong kind of value");
             return;
         }
-        if (args.size() < 2) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'set' command"));
+        if ((nx && current != null) || (xx && current == null)) {
+            suppressPropagation();
+            replyPreviousValue(reply, get, current);
             return;
         }
 
-        String key = args.getFirst();
-        String value = args.get(1);
-        long expiresMillis = 0;
+        // Read before the value is replaced, which frees an off-heap one.
+        ByteString previous = get && current != null ? (ByteString) current.getValue() : null;
+        cache.putAt(key, Cache.Value.ofString(value), keepTtl && current != null ? current.getExpiresAt() : expiresAt);
+        if (expireOptionIndex >= 0 && !args.get(expireOptionIndex).equalsIgnoreCase("pxat")) {
+            rewritePropagatedArgument(expireOptionIndex, ByteString.of("PXAT"));
+            rewritePropagatedArgument(expireOptionIndex + 1, ByteString.valueOf(expiresAt));
+        }
+        long expiresAtMillis = expiresAt;
+        LoggingService.logFine(() -> "Set key '" + key + "' expiring at: " + expiresAtMillis);
+        if (get) {
+            reply.bulkString(previous);
+        } else {
+            reply.ok();
+        }
+    }
 
-        for (int i = 2; i < args.size(); i++) {
-            String option = args.get(i).toLowerCase();
-            if (option.equals("px")) {
-                if (i + 1 >= args.size()) {
-                    stringWriter.accept(RESPEncoder.encodeError("ERR syntax error: PX requires a millisecond timeout"));
-                    return;
-                }
-                try {
-                    expiresMillis = Long.parseLong(args.get(i + 1));
-                    if (expiresMillis <= 0) {
-                        stringWriter.accept(RESPEncoder.encodeError("ERR PX milliseconds must be positive"));
-                        return;
-                    }
-                } catch (NumberFormatException e) {
-                    stringWriter.accept(RESPEncoder.encodeError("ERR PX argument must be a number"));
-                    return;
-                }
-                i++;
+    private static void replyPreviousValue(ReplyWriter reply, boolean get, Cache.Value previous) {
+        if (get && previous != null) {
+            replyString(reply, previous);
+        } else {
+            reply.nullBulkString();
+        }
+    }
+
+    /**
+     * @return the Unix time in milliseconds {@code time} stands for, in units of {@code unitMillis} and relative
+     * to now unless {@code absolute}, or -1 if that overflows
+     */
+    private static long expirationTime(long time, long unitMillis, boolean absolute) {
+        try {
+            long millis = Math.multiplyExact(time, unitMillis);
+            return absolute ? millis : Math.addExact(millis, System.currentTimeMillis());
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    private void handleExpireRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        expire("expire", args, reply, 1000, false);
+    }
+
+    private void handlePExpireRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        expire("pexpire", args, reply, 1, false);
+    }
+
+    private void handleExpireAtRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        expire("expireat", args, reply, 1000, true);
+    }
+
+    private void handlePExpireAtRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        expire("pexpireat", args, reply, 1, true);
+    }
+
+    /**
+     * EXPIRE key time [NX | XX | GT | LT] and its variants. A time already past deletes the key. Propagated as
+     * PEXPIREAT, so replicas expire the key at the same moment.
+     */
+    private void expire(String name, List<ByteString> args, ReplyWriter reply, long unitMillis, boolean absolute) {
+        ByteString key = args.getFirst();
+        long time;
+        try {
+            time = args.get(1).parseLong();
+        } catch (NumberFormatException e) {
+            reply.error("ERR value is not an integer or out of range");
+            return;
+        }
+        boolean nx = false;
+        boolean xx = false;
+        boolean gt = false;
+        boolean lt = false;
+        for (ByteString option : args.subList(2, args.size())) {
+            if (option.equalsIgnoreCase("nx")) {
+                nx = true;
+            } else if (option.equalsIgnoreCase("xx")) {
+                xx = true;
+            } else if (option.equalsIgnoreCase("gt")) {
+                gt = true;
+            } else if (option.equalsIgnoreCase("lt")) {
+                lt = true;
             } else {
-                stringWriter.accept(RESPEncoder.encodeError("ERR unknown option '" + option + "' for 'set' command"));
+                reply.error("ERR Unsupported option " + option);
                 return;
             }
         }
+        if (nx && (xx || gt || lt)) {
+            reply.error("ERR NX and XX, GT or LT options at the same time are not compatible");
+            return;
+        }
+        if (gt && lt) {
+            reply.error("ERR GT and LT options at the same time are not compatible");
+            return;
+        }
+        long expiresAt = expirationTime(time, unitMillis, absolute);
+        if (expiresAt == -1 && time >= 0) {
+            reply.error("ERR invalid expire time in '" + name + "' command");
+            return;
+        }
 
-        cache.put(key, new Cache.Value(value, Cache.TYPE_STRING), expiresMillis);
-        LoggingService.logFine("Set key '" + key + "' with TTL: " + expiresMillis + "ms");
-        stringWriter.accept(RESPEncoder.encodeSimpleString("OK"));
-        if ("master".equalsIgnoreCase(Configs.getReplicationInfoAsString("role"))) {
-            long offset = (long) Configs.getReplicationInfo("master_repl_offset");
-            Configs.setReplicationInfo("master_repl_offset", offset + bytesConsumed);
+        Cache.Value value = cache.get(key);
+        // A key without an expiration time counts as expiring never: later than any time for GT and LT.
+        long current = value == null ? 0 : value.getExpiresAt();
+        if (value == null
+                || (nx && current != 0)
+                || (xx && current == 0)
+                || (gt && (current == 0 || expiresAt <= current))
+                || (lt && current != 0 && expiresAt >= current)) {
+            suppressPropagation();
+            reply.integer(0);
+            return;
         }
+        if (expiresAt <= System.currentTimeMillis()) {
+            cache.remove(key);
+        } else {
+            cache.setExpiresAt(key, expiresAt);
+        }
+        suppressPropagation();
+        alsoPropagate(List.of(ByteString.of("PEXPIREAT"), key, ByteString.valueOf(expiresAt)));
+        reply.integer(1);
     }
 
-    private void handleGetRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (transactionCommands.containsKey(clientChannel)) {
-            List<List<Object>> commands = transactionCommands.computeIfAbsent(clientChannel, _ -> new LinkedList<>());
-            commands.add(List.of("get", args, bytesConsumed));
-            LoggingService.logFine("Added GET command to transaction queue for client: " + clientChannel);
-            stringWriter.accept(RESPEncoder.encodeSimpleString("QUEUED"));
-            return;
+    private void handleDelRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        long removed = 0;
+        for (ByteString key : args) {
+            if (cache.remove(key)) {
+                removed++;
+            }
         }
-        if (args.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'get' command"));
+        if (removed == 0) {
+            suppressPropagation();
+        }
+        reply.integer(removed);
+    }
+
+    private void handleTtlRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        replyTimeToLive(args.getFirst(), reply, 1000);
+    }
+
+    private void handlePTtlRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        replyTimeToLive(args.getFirst(), reply, 1);
+    }
+
+    /**
+     * Replies with the time to live of a key in units of {@code unitMillis}, rounded to the nearest unit, or
+     * -2 if the key does not exist and -1 if it has no expiration time.
+     */
+    private void replyTimeToLive(ByteString key, ReplyWriter reply, long unitMillis) {
+        Cache.Value value = cache.get(key);
+        if (value == null) {
+            reply.integer(-2);
+        } else if (value.getExpiresAt() == 0) {
+            reply.integer(-1);
+        } else {
+            long ttl = Math.max(0, value.getExpiresAt() - System.currentTimeMillis());
+            reply.integer((ttl + unitMillis / 2) / unitMillis);
+        }
+    }
+
+    private void handlePersistRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString key = args.getFirst();
+        Cache.Value value = cache.get(key);
+        if (value == null || value.getExpiresAt() == 0) {
+            suppressPropagation();
+            reply.integer(0);
             return;
         }
-        String key = args.getFirst();
+        cache.setExpiresAt(key, 0);
+        reply.integer(1);
+    }
+
+    private void handleGetRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString key = args.getFirst();
         Cache.Value value = cache.get(key);
-        String strValue = value != null ? value.getValue().toString() : null;
-        stringWriter.accept(RESPEncoder.encodeBulkString(strValue));
+        if (value == null) {
+            reply.nullBulkString();
+        } else if (Cache.TYPE_STRING.equals(value.getType())) {
+            replyString(reply, value);
+        } else {
+            reply.error("WRONGTYPE Operation against a key holding the wrong kind of value");
+        }
+    }
+
+    /**
+     * Replies with a string value without a ByteString: the digits of an integer-encoded one are formatted,
+     * the bytes of an off-heap one copied from its slot.
+     */
+    private static void replyString(ReplyWriter reply, Cache.Value value) {
+        if (value.isInteger()) {
+            reply.bulkInteger(value.getLong());
+        } else if (value.isOffHeap()) {
+            reply.bulkString(OffHeapStore.getInstance(), value.getHandle());
+        } else {
+            reply.bulkString((ByteString) value.getValue());
+        }
+    }
+
+    /**
+     * MGET key [key ...]. Keys that do not exist or do not hold a string reply null.
+     */
+    private void handleMGetRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        reply.arrayHeader(args.size());
+        for (ByteString key : args) {
+            Cache.Value value = cache.get(key);
+            if (value != null && Cache.TYPE_STRING.equals(value.getType())) {
+                replyString(reply, value);
+            } else {
+                reply.nullBulkString();
+            }
+        }
     }
 
-    private void handleConfigRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.size() < 2) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'config' command"));
+    /**
+     * MSET key value [key value ...]. A key holding an integer-encoded string without an expiration time is
+     * set to a canonical integer in place, allocating nothing; every other pair stores a new value, which
+     * also clears the key's expiration time.
+     */
+    private void handleMSetRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        if (args.size() % 2 != 0) {
+            reply.error("ERR wrong number of arguments for 'mset' command");
             return;
         }
-        String subCommand = args.getFirst().toLowerCase();
+        for (int i = 0; i < args.size(); i += 2) {
+            ByteString key = args.get(i);
+            ByteString argument = args.get(i + 1);
+            Cache.Value current = cache.get(key);
+            if (current != null && current.isInteger() && current.getExpiresAt() == 0 && argument.isCanonicalLong()) {
+                try {
+                    current.setLong(argument.parseLong());
+                    continue;
+                } catch (NumberFormatException e) {
+                    // 19 digits beyond the range of a long are stored as a plain string.
+                }
+            }
+            cache.putAt(key, Cache.Value.ofString(argument), 0);
+        }
+        LoggingService.logFine(() -> "Set " + args.size() / 2 + " keys with MSET");
+        reply.ok();
+    }
+
+    private void handleConfigRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        String subCommand = args.getFirst().toString().toLowerCase();
         if (subCommand.equals("get")) {
-            String key = args.get(1);
+            String key = args.get(1).toString();
             String value = Configs.getConfiguration(key);
-            stringWriter.accept(value == null ? RESPEncoder.encodeStringArray(Collections.emptyList()) : RESPEncoder.encodeStringArray(List.of(key, value)));
+            if (value == null) {
+                reply.emptyArray();
+            } else {
+                reply.array(List.of(key, value));
+            }
         } else if (subCommand.equals("set")) {
             if (args.size() < 3) {
-                stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'config set' command"));
+                reply.error("ERR wrong number of arguments for 'config set' command");
                 return;
             }
-            String key = args.get(1);
-            String value = args.get(2);
+            String key = args.get(1).toString();
+            String value = args.get(2).toString();
             Configs.setConfiguration(key, value);
-            stringWriter.accept(RESPEncoder.encodeSimpleString("OK"));
+            reply.ok();
         } else {
-            stringWriter.accept(RESPEncoder.encodeError("ERR unknown sub command '" + subCommand + "' for 'config' command"));
+            reply.error("ERR unknown sub command '" + subCommand + "' for 'config' command");
         }
     }
 
-    private void handleKeysRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'keys' command"));
+    private void handleKeysRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString arg = args.getFirst();
+        GlobPattern pattern = GlobPattern.compile(arg);
+        long now = System.currentTimeMillis();
+        LoggingService.logFine(() -> "Sending keys for pattern '" + arg + "'");
+        reply.stream(cache.streamKeys(pattern.literalPrefix(), (key, value) -> !value.isExpired(now) && pattern.matches(key)));
+    }
+
+    private void handleScanRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        long cursor;
+        try {
+            cursor = Long.parseUnsignedLong(args.getFirst().toString());
+        } catch (NumberFormatException e) {
+            reply.error("ERR invalid cursor");
             return;
         }
-        String arg = args.getFirst();
-        List<String> resultKeys;
-        if (arg.equalsIgnoreCase("*")) {
-            resultKeys = Arrays.asList(cache.keys());
-        } else {
-            String regexPattern = Globs.toRegexPattern(arg);
-            Pattern pattern = Pattern.compile(regexPattern);
-            resultKeys = Arrays.stream(cache.keys()).filter(key -> pattern.matcher(key).matches()).toList();
+        int count = Configs.DEFAULT_SCAN_COUNT;
+        GlobPattern pattern = null;
+        String type = null;
+        for (int i = 1; i < args.size(); i += 2) {
+            if (i + 1 >= args.size()) {
+                reply.error("ERR syntax error");
+                return;
+            }
+            ByteString option = args.get(i);
+            ByteString argument = args.get(i + 1);
+            if (option.equalsIgnoreCase("count")) {
+                try {
+                    count = argument.parseInt();
+                } catch (NumberFormatException e) {
+                    reply.error("ERR value is not an integer or out of range");
+                    return;
+                }
+                if (count < 1) {
+                    reply.error("ERR syntax error");
+                    return;
+                }
+            } else if (option.equalsIgnoreCase("match")) {
+                pattern = GlobPattern.compile(argument);
+                if (pattern.matchesAll()) {
+                    pattern = null;
+                }
+            } else if (option.equalsIgnoreCase("type")) {
+                type = argument.toString();
+            } else {
+                reply.error("ERR syntax error");
+                return;
+            }
         }
-        LoggingService.logFine("Sending keys list for prefix '" + arg + "': " + resultKeys);
-        stringWriter.accept(RESPEncoder.encodeStringArray(resultKeys));
+
+        // Filters apply to the keys a call passes, so COUNT bounds the work and not the size of the reply.
+        long now = System.currentTimeMillis();
+        GlobPattern matching = pattern;
+        String matchingType = type;
+        List<ByteString> keys = new ArrayList<>();
+        long next = cache.scan(cursor, count, matching == null ? new byte[0] : matching.literalPrefix(), (key, value) -> {
+            if (value.isExpired(now)
+                    || (matchingType != null && !value.getType().equalsIgnoreCase(matchingType))
+                    || (matching != null && !matching.matches(key))) {
+                return;
+            }
+            keys.add(key);
+        });
+        reply.array(List.of(Long.toUnsignedString(next), keys));
     }
 
-    private void handleInfoRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
+    private void handleInfoRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
         if (args.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR empty info command unimplemented"));
+            reply.error("ERR empty info command unimplemented");
             return;
         }
-        String arg = args.getFirst();
+        String arg = args.getFirst().toString();
         if (arg.equalsIgnoreCase("replication")) {
             StringBuilder sb = new StringBuilder();
             for (Map.Entry<String, Object> entry : Configs.getReplicationInfo().entrySet()) {
                 sb.append(entry.getKey()).append(":").append(entry.getValue().toString()).append("\n");
             }
-            stringWriter.accept(RESPEncoder.encodeBulkString(sb.toString()));
+            reply.bulkString(sb.toString());
+        } else if (ServerStats.hasSection(arg)) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            ServerStats.collect(arg, info);
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Object> entry : info.entrySet()) {
+                sb.append(entry.getKey()).append(":").append(entry.getValue().toString()).append("\n");
+            }
+            reply.bulkString(sb.toString());
         } else {
-            stringWriter.accept(RESPEncoder.encodeError("ERR unknown info subcommand '" + arg + "'"));
+            reply.error("ERR unknown info subcommand '" + arg + "'");
         }
     }
 
-    private void handleReplConfRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR empty replconf command unimplemented"));
-            return;
+    private void handleMemoryRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString subCommand = args.getFirst();
+        if (subCommand.equalsIgnoreCase("usage")) {
+            // SAMPLES is accepted for compatibility; sizes are kept up to date, so nothing needs sampling.
+            if (args.size() != 2 && !(args.size() == 4 && args.get(2).equalsIgnoreCase("samples"))) {
+                reply.error("ERR syntax error");
+                return;
+            }
+            Cache.Value value = cache.get(args.get(1));
+            if (value == null) {
+                reply.nullBulkString();
+            } else {
+                reply.integer(value.getMemory());
+            }
+        } else if (subCommand.equalsIgnoreCase("stats") && args.size() == 1) {
+            List<Object> stats = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : MemoryAccountant.stats().entrySet()) {
+                stats.add(entry.getKey());
+                stats.add(entry.getValue());
+            }
+            reply.array(stats);
+        } else {
+            reply.error("ERR unknown subcommand or wrong number of arguments for '" + subCommand + "'. Try MEMORY HELP.");
         }
-        String subCommand = args.getFirst().toLowerCase();
+    }
+
+    private void handleReplConfRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        String subCommand = args.getFirst().toString().toLowerCase();
         switch (subCommand) {
             case "listening-port":
                 if (args.size() < 2) {
-                    stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'replconf listening-port' command"));
+                    reply.error("ERR wrong number of arguments for 'replconf listening-port' command");
                     return;
                 }
                 LoggingService.logInfo("Got REPLCONF with listening-port: " + args.get(1));
                 if ("master".equalsIgnoreCase(Configs.getReplicationInfoAsString("role")) && replicationNotifier != null) {
                     replicationNotifier.registerSlaveChannel(clientChannel);
                 }
-                stringWriter.accept(RESPEncoder.encodeSimpleString("OK"));
+                reply.ok();
                 break;
             case "capa":
                 if (args.size() < 2) {
-                    stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'replconf capa' command"));
+                    reply.error("ERR wrong number of arguments for 'replconf capa' command");
                     return;
                 }
                 LoggingService.logInfo("Got REPLCONF with capa: " + args.get(1));
-                stringWriter.accept(RESPEncoder.encodeSimpleString("OK"));
+                reply.ok();
                 break;
             case "getack":
                 if (args.isEmpty()) {
-                    stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'replconf GETACK' command"));
+                    reply.error("ERR wrong number of arguments for 'replconf GETACK' command");
                     return;
                 }
                 if ("master".equalsIgnoreCase(Configs.getReplicationInfoAsString("role"))) {
                      LoggingService.logWarn("Master: Received REPLCONF GETACK from client " + clientChannel + ". This should not happen directly from a general client. Only internal WAIT uses it.");
-                     stringWriter.accept(RESPEncoder.encodeError("ERR REPLCONF GETACK only for master-slave communication"));
+                     reply.error("ERR REPLCONF GETACK only for master-slave communication");
                 } else {
                     if (replicationNotifier == null) {
-                         stringWriter.accept(RESPEncoder.encodeError("ERR ReplicationNotifier not initialized for ACK"));
+                         reply.error("ERR ReplicationNotifier not initialized for ACK");
                          return;
                     }
                     long replicationOffset = replicationNotifier.getReplicationOffset();
-                    String s = RESPEncoder.encodeStringArray(List.of("REPLCONF", "ACK", String.valueOf(replicationOffset)));
-                    LoggingService.logInfo("Slave: Sending REPLCONF ACK: " + s + " with offset: " + replicationOffset);
-                    stringWriter.accept(s);
+                    LoggingService.logFine(() -> "Slave: Sending REPLCONF ACK with offset: " + replicationOffset);
+                    reply.array(List.of("REPLCONF", "ACK", String.valueOf(replicationOffset)));
                 }
                 break;
             case "ack":
                 if ("master".equalsIgnoreCase(Configs.getReplicationInfoAsString("role")) && args.size() == 2) {
                     try {
-                        long slaveOffset = Long.parseLong(args.get(1));
+                        long slaveOffset = args.get(1).parseLong();
+                        LoggingService.logFine(() -> "Master: Received REPLCONF ACK from slave " + clientChannel + " with offset: " + slaveOffset);
                         if (replicationNotifier != null) {
-                            replicationNotifier.getSlaveAckOffsets().put(clientChannel, slaveOffset);
+                            Long previousOffset = replicationNotifier.getSlaveAckOffsets().put(clientChannel, slaveOffset);
+                            completeSatisfiedWaits(previousOffset == null ? -1 : previousOffset, slaveOffset);
                         }
-                        LoggingService.logInfo("Master: Received REPLCONF ACK from slave " + clientChannel + " with offset: " + slaveOffset);
-                        processPendingWaitRequests();
                     } catch (NumberFormatException e) {
                         LoggingService.logError("Master: Invalid ACK offset from slave " + clientChannel + ": " + args.get(1), e);
-                        stringWriter.accept(RESPEncoder.encodeError("ERR invalid ACK offset"));
+                        reply.error("ERR invalid ACK offset");
                     }
                 } else {
-                    stringWriter.accept(RESPEncoder.encodeError("ERR invalid replconf ack command"));
+                    reply.error("ERR invalid replconf ack command");
                 }
                 break;
             default:
-                stringWriter.accept(RESPEncoder.encodeError("ERR unknown replconf subcommand '" + subCommand + "'"));
+                reply.error("ERR unknown replconf subcommand '" + subCommand + "'");
                 break;
         }
     }
 
-    private void handlePSyncRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.isEmpty() || args.size() < 2) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'psync' command"));
-            return;
-        }
-        String replicationID = args.getFirst();
-        String offset = args.get(1);
+    private void handlePSyncRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString replicationID = args.getFirst();
+        ByteString offset = args.get(1);
         LoggingService.logInfo("Got PSYNC with replicationID: " + replicationID + " and offset: " + offset);
-        stringWriter.accept(RESPEncoder.encodeSimpleString("FULLRESYNC " + Configs.getReplicationInfoAsString("master_replid") + " 0"));
+        reply.simpleString("FULLRESYNC " + Configs.getReplicationInfoAsString("master_replid") + " 0");
         String dummyHex = "524544495330303131fa0972656469732d76657205372e322e30fa0a72656469732d62697473c040fa056374696d65c26d08bc65fa08757365642d6d656dc2b0c41000fa08616f662d62617365c000fff06e3bfec0ff5aa2";
         byte[] bytes = HexFormat.of().parseHex(dummyHex);
         byte[] rdb = RESPEncoder.encodeBinary(bytes);
         LoggingService.logInfo("Sending dummy RDB. Size: " + rdb.length);
-        byteWriter.accept(rdb);
+        reply.raw(rdb);
     }
 
-    private void handleWaitRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        LoggingService.logInfo("Start of wait: " + System.currentTimeMillis());
+    private void handleWaitRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
         if ("slave".equalsIgnoreCase(Configs.getReplicationInfoAsString("role"))) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR WAIT command is only available when the server is a master."));
-            return;
-        }
-        if (args.size() < 2) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'wait' command"));
+            reply.error("ERR WAIT command is only available when the server is a master.");
             return;
         }
         if (replicationNotifier == null) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR ReplicationNotifier not initialized. Cannot handle WAIT."));
+            reply.error("ERR ReplicationNotifier not initialized. Cannot handle WAIT.");
             return;
         }
 
         try {
-            int requiredSlaves = Integer.parseInt(args.get(0));
-            long timeoutMillis = Long.parseLong(args.get(1));
-            LoggingService.logInfo("Master: Received WAIT command. Required Slaves: " + requiredSlaves + ", Timeout: " + timeoutMillis + "ms");
+            int requiredSlaves = args.get(0).parseInt();
+            long timeoutMillis = args.get(1).parseLong();
+            LoggingService.logFine(() -> "Master: Received WAIT command. Required Slaves: " + requiredSlaves + ", Timeout: " + timeoutMillis + "ms");
 
             long currentMasterOffset = replicationNotifier.getReplicationOffset();
-            LoggingService.logInfo("Master: Current replication offset: " + currentMasterOffset);
+            LoggingService.logFine(() -> "Master: Current replication offset: " + currentMasterOffset);
 
             if (replicationNotifier.getConnectedSlaves().isEmpty()) {
-                LoggingService.logInfo("Master: No slaves connected. Responding with 0 for WAIT command.");
-                stringWriter.accept(RESPEncoder.encodeInteger(0));
+                LoggingService.logFine("Master: No slaves connected. Responding with 0 for WAIT command.");
+                reply.integer(0);
                 return;
             }
 
@@ -415,78 +1364,49 @@ public class CommandExecutor {
                 .filter(offset -> offset >= currentMasterOffset)
                 .count();
 
-            if (acknowledgedSlavesCount >= requiredSlaves) {
-                LoggingService.logInfo("Master: WAIT condition met immediately. Slaves acknowledged: " + acknowledgedSlavesCount);
-                try {
-                    LoggingService.logInfo("Writing to write to channel: " + clientChannel.getRemoteAddress());
-                } catch (IOException e) {
-                    LoggingService.logError("Master: Error getting remote address for client channel: " + e.getMessage(), e);
-                }
-                stringWriter.accept(RESPEncoder.encodeInteger(acknowledgedSlavesCount));
+            if (acknowledgedSlavesCount >= requiredSlaves || callState.get().executingTransaction) {
+                LoggingService.logFine(() -> "Master: WAIT condition met immediately for client " + clientChannel + ". Slaves acknowledged: " + acknowledgedSlavesCount);
+                reply.integer(acknowledgedSlavesCount);
                 return;
             }
 
-            CountDownLatch latch = new CountDownLatch(1);
-            PendingWaitRequest pending = new PendingWaitRequest(clientChannel, stringWriter, requiredSlaves, currentMasterOffset, timeoutMillis, latch);
-            pendingWaitRequests.offer(pending);
-
-            replicationNotifier.replicateCommand(List.of("REPLCONF", "GETACK", "*"));
-            LoggingService.logInfo("Master: Sent REPLCONF GETACK * to all slaves for WAIT command.");
-
-            Thread waitThread = new Thread(() -> {
-                try {
-                    boolean completed = latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
-                    if (!completed) {
-                        LoggingService.logInfo("Master: WAIT command timed out after " + timeoutMillis + "ms for client " + clientChannel);
-                        processPendingWaitRequests();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    LoggingService.logError("Master: WAIT command interrupted for client " + clientChannel + ": " + e.getMessage(), e);
-                    stringWriter.accept(RESPEncoder.encodeError("ERR WAIT command interrupted"));
-                    pendingWaitRequests.remove(pending);
-                }
-            });
-            waitThread.setName("RedisWaitClient-" + clientChannel.socket().getPort());
-            waitThread.start();
+            PendingWaitRequest pending = new PendingWaitRequest(clientChannel, reply, requiredSlaves, currentMasterOffset, timeoutMillis);
+            pendingWaitRequests.computeIfAbsent(currentMasterOffset, _ -> new ArrayList<>()).add(pending);
+            if (timeoutMillis > 0) {
+                pending.timeout = timers.schedule(pending.startTime + timeoutMillis, () -> timeOutWait(pending));
+            }
+            reply.blocked();
+            getAckRequested = true;
 
         } catch (NumberFormatException e) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR invalid number format in 'wait' command"));
+            reply.error("ERR invalid number format in 'wait' command");
         }
     }
 
-    private void handleTypeRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'type' command"));
-            return;
-        }
-        String key = args.getFirst();
+    private void handleTypeRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString key = args.getFirst();
         Cache.Value value = cache.get(key);
         if (value == null) {
-            stringWriter.accept(RESPEncoder.encodeSimpleString("none"));
+            reply.simpleString("none");
         } else {
-            stringWriter.accept(RESPEncoder.encodeSimpleString(value.getType()));
+            reply.simpleString(value.getType());
         }
     }
 
-    private void handleXaddRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.size() < 4) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'xadd' command"));
-            return;
-        }
-        String streamKey = args.getFirst();
-        String idArg = args.get(1);
+    private void handleXaddRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString streamKey = args.getFirst();
+        String idArg = args.get(1).toString();
 
-        TreeMap<Long, NavigableMap<Long, Map<String, String>>> streamEntries;
+        TreeMap<Long, NavigableMap<Long, Map<ByteString, ByteString>>> streamEntries;
 
         Cache.Value value = cache.get(streamKey);
         if (value == null) {
             streamEntries = new TreeMap<>();
         } else if (value.getType().equals(Cache.TYPE_STREAM)) {
             //noinspection unchecked
-            streamEntries = (TreeMap<Long, NavigableMap<Long, Map<String, String>>>) value.getValue();
+            streamEntries = (TreeMap<Long, NavigableMap<Long, Map<ByteString, ByteString>>>) value.getValue();
         } else {
-            stringWriter.accept(RESPEncoder.encodeError("ERR value is not a stream"));
+            reply.error("ERR value is not a stream");
             return;
         }
 
@@ -495,111 +1415,136 @@ public class CommandExecutor {
 
         if (idArg.equals("*")) {
             milliseconds = System.currentTimeMillis();
-            NavigableMap<Long, Map<String, String>> seqMap = streamEntries.computeIfAbsent(milliseconds, _ -> new TreeMap<>());
+            NavigableMap<Long, Map<ByteString, ByteString>> seqMap = streamEntries.computeIfAbsent(milliseconds, _ -> new TreeMap<>());
             sequence = seqMap.isEmpty() ? 0 : seqMap.lastKey() + 1;
         } else if (idArg.endsWith("-*")) {
             String msStr = idArg.substring(0, idArg.length() - 2);
             try {
                 milliseconds = Long.parseLong(msStr);
             } catch (NumberFormatException e) {
-                stringWriter.accept(RESPEncoder.encodeError("ERR invalid milliseconds in ID"));
+                reply.error("ERR invalid milliseconds in ID");
                 return;
             }
-            NavigableMap<Long, Map<String, String>> seqMap = streamEntries.computeIfAbsent(milliseconds, _ -> new TreeMap<>());
+            NavigableMap<Long, Map<ByteString, ByteString>> seqMap = streamEntries.computeIfAbsent(milliseconds, _ -> new TreeMap<>());
             sequence = seqMap.isEmpty() ? (milliseconds == 0 ? 1 : 0) : seqMap.lastKey() + 1;
         } else {
             String[] parts = idArg.split("-");
             if (parts.length != 2) {
-                stringWriter.accept(RESPEncoder.encodeError("ERR invalid ID format"));
+                reply.error("ERR invalid ID format");
                 return;
             }
             try {
                 milliseconds = Long.parseLong(parts[0]);
                 sequence = Long.parseLong(parts[1]);
             } catch (NumberFormatException e) {
-                stringWriter.accept(RESPEncoder.encodeError("ERR invalid ID format"));
+                reply.error("ERR invalid ID format");
                 return;
             }
             if (milliseconds == 0 && sequence == 0) {
-                stringWriter.accept(RESPEncoder.encodeError("ERR The ID specified in XADD must be greater than 0-0"));
+                reply.error("ERR The ID specified in XADD must be greater than 0-0");
                 return;
             }
             if (!streamEntries.isEmpty()) {
                 Long lastTime = streamEntries.lastKey();
                 if (milliseconds < lastTime) {
-                    stringWriter.accept(RESPEncoder.encodeError("ERR The ID specified in XADD is equal or smaller than the target stream top item"));
+                    reply.error("ERR The ID specified in XADD is equal or smaller than the target stream top item");
                     return;
                 }
             }
-            NavigableMap<Long, Map<String, String>> seqMap = streamEntries.computeIfAbsent(milliseconds, _ -> new TreeMap<>());
+            NavigableMap<Long, Map<ByteString, ByteString>> seqMap = streamEntries.computeIfAbsent(milliseconds, _ -> new TreeMap<>());
             if (seqMap.containsKey(sequence)) {
-                stringWriter.accept(RESPEncoder.encodeError("ERR The ID specified in XADD is equal or smaller than the target stream top item"));
+                reply.error("ERR The ID specified in XADD is equal or smaller than the target stream top item");
                 return;
             } else {
                 if (!seqMap.isEmpty()) {
                     Long lastSequence = seqMap.lastKey();
                     if (lastSequence != null && sequence <= lastSequence) {
-                        stringWriter.accept(RESPEncoder.encodeError("ERR The ID specified in XADD is equal or smaller than the target stream top item"));
+                        reply.error("ERR The ID specified in XADD is equal or smaller than the target stream top item");
                         return;
                     }
                 }
             }
         }
 
-        Map<String, String> entryFields = new HashMap<>();
+        Map<ByteString, ByteString> entryFields = new HashMap<>();
         for (int i = 2; i < args.size(); i += 2) {
             if (i + 1 >= args.size()) {
-                stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'xadd' command"));
+                reply.error("ERR wrong number of arguments for 'xadd' command");
                 return;
             }
 
-            entryFields.put(args.get(i), args.get(i + 1));
+            entryFields.put(args.get(i).compact(), args.get(i + 1).compact());
+        }
+        NavigableMap<Long, Map<ByteString, ByteString>> sequences = streamEntries.get(milliseconds);
+        sequences.put(sequence, entryFields);
+        if (value == null) {
+            cache.put(streamKey, new Cache.Value(streamEntries, Cache.TYPE_STREAM), 0);
+        } else {
+            long added = MemoryAccountant.ofStreamEntry(entryFields);
+            if (sequences.size() == 1) {
+                added += MemoryAccountant.ofStreamMillisecond();
+            }
+            cache.adjustMemory(streamKey, value, added);
         }
-        streamEntries.get(milliseconds).put(sequence, entryFields);
-        cache.put(streamKey, new Cache.Value(streamEntries, Cache.TYPE_STREAM), 0);
         String id = milliseconds + "-" + sequence;
+        if (idArg.endsWith("*")) {
+            rewritePropagatedArgument(1, ByteString.of(id));
+        }
         if (idArg.equals("*")) {
-            stringWriter.accept(RESPEncoder.encodeBulkString(id));
+            reply.bulkString(id);
         } else {
-            stringWriter.accept(RESPEncoder.encodeSimpleString(id));
+            reply.simpleString(id);
         }
 
+        if (blockedClientsPerStream.containsKey(streamKey)) {
+            callState.get().readyStreams.add(streamKey);
+        }
+    }
+
+    private void updateBlockedStreamClients(ByteString streamKey) {
         List<BlockedClient> blockedClients = blockedClientsPerStream.get(streamKey);
         if (blockedClients != null) {
-            Iterator<BlockedClient> iter = blockedClients.iterator();
-            while (iter.hasNext()) {
-                BlockedClient bc = iter.next();
-                List<Object> result = fetchStreamEntries(bc.streamKeys(), bc.streamIds(), bc.count(), new ArrayList<>());
+            for (BlockedClient bc : new ArrayList<>(blockedClients)) {
+                List<StreamEntries> result = fetchStreamEntries(bc.streamKeys(), bc.streamIds(), bc.count(), new ArrayList<>());
                 if (!result.isEmpty()) {
-                    bc.stringWriter().accept(RESPEncoder.encodeArray(result));
-                    iter.remove();
+                    bc.reply().stream(streamEntriesReply(result));
+                    unblockClient(bc, blockedClientsPerStream);
                 }
             }
-            if (blockedClients.isEmpty()) {
-                blockedClientsPerStream.remove(streamKey);
-            }
         }
-
     }
 
-    private void handleXRangeRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.size() < 2 || args.size() > 5) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'xrange' command"));
+    private void handleXRangeRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        if (args.size() > 5) {
+            reply.error("ERR wrong number of arguments for 'xrange' command");
             return;
         }
-        String streamKey = args.getFirst();
+        int count;
+        if (args.size() == 3) {
+            count = -1;
+        } else if (args.size() != 5 || !args.get(3).equalsIgnoreCase("count")) {
+            reply.error("ERR syntax error");
+            return;
+        } else {
+            try {
+                count = args.get(4).parseInt();
+            } catch (NumberFormatException e) {
+                reply.error("ERR value is not an integer or out of range");
+                return;
+            }
+        }
+        ByteString streamKey = args.getFirst();
         Cache.Value value = cache.get(streamKey);
         if (value == null || !Cache.TYPE_STREAM.equals(value.getType())) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR no such stream: " + streamKey));
+            reply.error("ERR no such stream: " + streamKey);
             return;
         }
 
         @SuppressWarnings("unchecked")
-        TreeMap<Long, NavigableMap<Long, Map<String, String>>> streamEntries = (TreeMap<Long, NavigableMap<Long, Map<String, String>>>) value.getValue();
+        TreeMap<Long, NavigableMap<Long, Map<ByteString, ByteString>>> streamEntries = (TreeMap<Long, NavigableMap<Long, Map<ByteString, ByteString>>>) value.getValue();
 
-        String startId = args.get(1);
-        String endId = args.get(2);
-        int count = args.size() > 3 ? Integer.parseInt(args.get(4)) : -1;
+        String startId = args.get(1).toString();
+        String endId = args.get(2).toString();
 
         long startMs, startSeq;
         long endMs, endSeq;
@@ -623,29 +1568,20 @@ public class CommandExecutor {
                 endSeq = parts.length > 1 ? Long.parseLong(parts[1]) : Long.MAX_VALUE;
             }
         } catch (NumberFormatException e) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR invalid ID format in 'xrange' command"));
+            reply.error("ERR invalid ID format in 'xrange' command");
             return;
         }
 
-        List<Object> resultEntries = new ArrayList<>();
+        List<StreamEntry> resultEntries = new ArrayList<>();
 
-        LoggingService.logInfo("Handling XRANGE for stream: %s, startId: %s, endId: %s, startMS: %s, endMS: %s, startSeq: %s, endSeq: %s, count: %d".formatted(streamKey, startId, endId, startMs, endMs, startSeq, endSeq, count));
+        LoggingService.logFine(() -> "Handling XRANGE for stream: %s, startId: %s, endId: %s, startMS: %s, endMS: %s, startSeq: %s, endSeq: %s, count: %d".formatted(streamKey, startId, endId, startMs, endMs, startSeq, endSeq, count));
 
-        for (Map.Entry<Long, NavigableMap<Long, Map<String, String>>> entry : streamEntries.subMap(startMs, true, endMs, true).entrySet()) {
+        for (Map.Entry<Long, NavigableMap<Long, Map<ByteString, ByteString>>> entry : streamEntries.subMap(startMs, true, endMs, true).entrySet()) {
             long ms = entry.getKey();
             long expectedStartSeq = (ms == startMs) ? startSeq : 0;
             long expectedEndSeq = (ms == endMs) ? endSeq : Long.MAX_VALUE;
-            for (Map.Entry<Long, Map<String, String>> seqEntry : entry.getValue().subMap(expectedStartSeq, true, expectedEndSeq, true).entrySet()) {
-                Map<String, String> fields = seqEntry.getValue();
-                List<Object> entryData = new ArrayList<>();
-                entryData.add(ms + "-" + seqEntry.getKey());
-                List<Object> fieldData = new ArrayList<>();
-                fields.forEach((k, v) -> {
-                    fieldData.add(k);
-                    fieldData.add(v);
-                });
-                entryData.add(fieldData);
-                resultEntries.add(entryData);
+            for (Map.Entry<Long, Map<ByteString, ByteString>> seqEntry : entry.getValue().subMap(expectedStartSeq, true, expectedEndSeq, true).entrySet()) {
+                resultEntries.add(new StreamEntry(ms, seqEntry.getKey(), seqEntry.getValue()));
                 if (count > 0 && resultEntries.size() == count) {
                     break;
                 }
@@ -654,33 +1590,29 @@ public class CommandExecutor {
                 break;
             }
         }
-        if (resultEntries.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeArray(Collections.emptyList()));
-        } else {
-            stringWriter.accept(RESPEncoder.encodeArray(resultEntries));
-        }
+        reply.stream(ReplyStream.array(resultEntries, CommandExecutor::writeStreamEntry));
     }
 
-    private void handleXReadRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
+    private void handleXReadRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
         int count = 100;
         long blockMillis = -1;
         int idx = 0;
 
         while (idx < args.size()) {
-            String arg = args.get(idx).toUpperCase();
+            String arg = args.get(idx).toString().toUpperCase();
             if (arg.equals("COUNT") && idx + 1 < args.size()) {
                 try {
-                    count = Integer.parseInt(args.get(idx + 1));
+                    count = args.get(idx + 1).parseInt();
                 } catch (NumberFormatException e) {
-                    stringWriter.accept(RESPEncoder.encodeError("ERR invalid COUNT value in 'xread' command"));
+                    reply.error("ERR invalid COUNT value in 'xread' command");
                     return;
                 }
                 idx += 2;
             } else if (arg.equals("BLOCK") && idx + 1 < args.size()) {
                 try {
-                    blockMillis = Long.parseLong(args.get(idx + 1));
+                    blockMillis = args.get(idx + 1).parseLong();
                 } catch (NumberFormatException e) {
-                    stringWriter.accept(RESPEncoder.encodeError("ERR invalid BLOCK value in 'xread' command"));
+                    reply.error("ERR invalid BLOCK value in 'xread' command");
                     return;
                 }
                 idx += 2;
@@ -689,46 +1621,42 @@ public class CommandExecutor {
             }
         }
 
-        if (idx >= args.size() || !args.get(idx).equalsIgnoreCase("STREAMS")) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR syntax error, missing STREAMS in 'xread' command"));
+        if (idx >= args.size() || !args.get(idx).equalsIgnoreCase("streams")) {
+            reply.error("ERR syntax error, missing STREAMS in 'xread' command");
             return;
         }
         idx++;
 
         int streamsCount = (args.size() - idx) / 2;
         if (streamsCount <= 0 || idx + streamsCount * 2 > args.size()) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'xread' command"));
+            reply.error("ERR wrong number of arguments for 'xread' command");
             return;
         }
-        List<String> keys = args.subList(idx, idx + streamsCount);
-        List<String> ids = args.subList(idx + streamsCount, idx + streamsCount * 2);
+        List<ByteString> keys = args.subList(idx, idx + streamsCount);
+        List<String> ids = args.subList(idx + streamsCount, idx + streamsCount * 2).stream().map(ByteString::toString).toList();
 
         List<String> updatedIds = new ArrayList<>();
-        List<Object> result = fetchStreamEntries(keys, ids, count, updatedIds);
+        List<StreamEntries> result = fetchStreamEntries(keys, ids, count, updatedIds);
 
         if (!result.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeArray(result));
+            reply.stream(streamEntriesReply(result));
             return;
         }
 
-        if (blockMillis > -1) {
+        if (blockMillis > -1 && !callState.get().executingTransaction) {
             long unblockAt = blockMillis == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + blockMillis;
-            BlockedClient blockedClient = new BlockedClient(clientChannel, keys, updatedIds, count, unblockAt, stringWriter, byteWriter);
-
-            for (String key : keys) {
-                blockedClientsPerStream.computeIfAbsent(key, _ -> new ArrayList<>()).add(blockedClient);
-            }
+            blockClient(new BlockedClient(clientChannel, keys, updatedIds, count, unblockAt, reply), blockedClientsPerStream);
             return;
         }
 
-        stringWriter.accept(RESPEncoder.encodeNull());
+        reply.nullBulkString();
     }
 
-    private List<Object> fetchStreamEntries(List<String> keys, List<String> ids, int count, List<String> updatedIds) {
-        List<Object> result = new ArrayList<>();
+    private List<StreamEntries> fetchStreamEntries(List<ByteString> keys, List<String> ids, int count, List<String> updatedIds) {
+        List<StreamEntries> result = new ArrayList<>();
 
         for (int i = 0; i < keys.size(); i++) {
-            String streamKey = keys.get(i);
+            ByteString streamKey = keys.get(i);
             String id = ids.get(i);
 
             Cache.Value value = cache.get(streamKey);
@@ -737,8 +1665,8 @@ public class CommandExecutor {
             }
 
             @SuppressWarnings("unchecked")
-            TreeMap<Long, NavigableMap<Long, Map<String, String>>> streamEntries =
-                    (TreeMap<Long, NavigableMap<Long, Map<String, String>>>) value.getValue();
+            TreeMap<Long, NavigableMap<Long, Map<ByteString, ByteString>>> streamEntries =
+                    (TreeMap<Long, NavigableMap<Long, Map<ByteString, ByteString>>>) value.getValue();
 
             long startMs, startSeq;
             if (id.equals("$")) {
@@ -746,7 +1674,7 @@ public class CommandExecutor {
                     startMs = 0;
                     startSeq = 0;
                 } else {
-                    Map.Entry<Long, NavigableMap<Long, Map<String, String>>> lastEntry = streamEntries.lastEntry();
+                    Map.Entry<Long, NavigableMap<Long, Map<ByteString, ByteString>>> lastEntry = streamEntries.lastEntry();
                     startMs = lastEntry.getKey();
                     startSeq = lastEntry.getValue().lastKey();
                 }
@@ -763,218 +1691,438 @@ public class CommandExecutor {
                 updatedIds.add(id);
             }
 
-            List<Object> entries = new ArrayList<>();
-            LoggingService.logInfo("Fetching entries for stream: %s, startId: %s, startMS: %s, startSeq: %s, count: %d".formatted(streamKey, id, startMs, startSeq, count));
+            List<StreamEntry> entries = new ArrayList<>();
+            String startId = id;
+            LoggingService.logFine(() -> "Fetching entries for stream: %s, startId: %s, startMS: %s, startSeq: %s, count: %d".formatted(streamKey, startId, startMs, startSeq, count));
             outer:
-            for (Map.Entry<Long, NavigableMap<Long, Map<String, String>>> entry : streamEntries.tailMap(startMs, true).entrySet()) {
+            for (Map.Entry<Long, NavigableMap<Long, Map<ByteString, ByteString>>> entry : streamEntries.tailMap(startMs, true).entrySet()) {
                 long ms = entry.getKey();
                 long expectedStartSeq = (ms == startMs) ? startSeq : -1;
-                for (Map.Entry<Long, Map<String, String>> seqEntry : entry.getValue().tailMap(expectedStartSeq, false).entrySet()) {
-                    Map<String, String> fields = seqEntry.getValue();
-                    List<Object> entryData = new ArrayList<>();
-                    entryData.add(ms + "-" + seqEntry.getKey());
-                    List<Object> fieldData = new ArrayList<>();
-                    fields.forEach((k, v) -> {
-                        fieldData.add(k);
-                        fieldData.add(v);
-                    });
-                    entryData.add(fieldData);
-                    entries.add(entryData);
+                for (Map.Entry<Long, Map<ByteString, ByteString>> seqEntry : entry.getValue().tailMap(expectedStartSeq, false).entrySet()) {
+                    entries.add(new StreamEntry(ms, seqEntry.getKey(), seqEntry.getValue()));
                     if (entries.size() == count) {
                         break outer;
                     }
                 }
             }
             if (!entries.isEmpty()) {
-                List<Object> streamData = new ArrayList<>();
-                streamData.add(streamKey);
-                streamData.add(entries);
-                result.add(streamData);
+                result.add(new StreamEntries(streamKey, entries));
             }
         }
 
         return result;
     }
 
-    private void handleIncrRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (transactionCommands.containsKey(clientChannel)) {
-            List<List<Object>> commands = transactionCommands.computeIfAbsent(clientChannel, _ -> new LinkedList<>());
-            commands.add(List.of("incr", args, bytesConsumed));
-            LoggingService.logFine("Added INCR command to transaction queued for client: " + clientChannel);
-            stringWriter.accept(RESPEncoder.encodeSimpleString("QUEUED"));
+    /**
+     * One stream entry of a range, referencing the field map stored in the stream. Entries are never
+     * modified after XADD, so a reply can be encoded from them after later commands ran.
+     */
+    private record StreamEntry(long ms, long seq, Map<ByteString, ByteString> fields) {
+    }
+
+    private record StreamEntries(ByteString key, List<StreamEntry> entries) {
+    }
+
+    private static void writeStreamEntry(ReplyWriter out, StreamEntry entry) {
+        out.arrayHeader(2);
+        out.bulkStreamId(entry.ms(), entry.seq());
+        out.arrayHeader(entry.fields().size() * 2);
+        for (Map.Entry<ByteString, ByteString> field : entry.fields().entrySet()) {
+            out.bulkString(field.getKey());
+            out.bulkString(field.getValue());
+        }
+    }
+
+    /**
+     * Encodes XREAD's reply: one {@code [key, entries]} pair per stream, the entries written piece by piece.
+     */
+    private static ReplyStream streamEntriesReply(List<StreamEntries> result) {
+        List<ReplyStream> parts = new ArrayList<>(result.size() * 2 + 1);
+        parts.add(ReplyStream.value(out -> out.arrayHeader(result.size())));
+        for (StreamEntries streamEntries : result) {
+            parts.add(ReplyStream.value(out -> {
+                out.arrayHeader(2);
+                out.bulkString(streamEntries.key());
+            }));
+            parts.add(ReplyStream.array(streamEntries.entries(), CommandExecutor::writeStreamEntry));
+        }
+        return ReplyStream.sequence(parts);
+    }
+
+    private void handleIncrRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        incrementBy(args.getFirst(), 1, reply);
+    }
+
+    private void handleDecrRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        incrementBy(args.getFirst(), -1, reply);
+    }
+
+    private void handleIncrByRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        incrementBy(args, false, reply);
+    }
+
+    private void handleDecrByRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        incrementBy(args, true, reply);
+    }
+
+    private void incrementBy(List<ByteString> args, boolean negate, ReplyWriter reply) {
+        long increment;
+        try {
+            increment = args.get(1).parseLong();
+        } catch (NumberFormatException e) {
+            reply.error("ERR value is not an integer or out of range");
             return;
         }
-        if (args.size() != 1) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'incr' command"));
+        if (negate && increment == Long.MIN_VALUE) {
+            reply.error("ERR decrement would overflow");
             return;
         }
-        String key = args.getFirst();
+        incrementBy(args.getFirst(), negate ? -increment : increment, reply);
+    }
+
+    /**
+     * Adds {@code increment} to the integer stored at {@code key}, 0 if it does not exist. An integer-encoded
+     * value is changed in place, keeping its expiration time and allocating nothing; a string of digits
+     * stored otherwise, as a restored one may be, is replaced by an integer-encoded value with the same
+     * expiration time.
+     */
+    private void incrementBy(ByteString key, long increment, ReplyWriter reply) {
         Cache.Value value = cache.get(key);
-        long currentValue = 0;
+        long current = 0;
+        if (value != null) {
+            if (!Cache.TYPE_STRING.equals(value.getType())) {
+                reply.error("WRONGTYPE Operation against a key holding the wrong kind of value");
+                return;
+            }
+            if (value.isInteger()) {
+                current = value.getLong();
+            } else {
+                ByteString bytes = (ByteString) value.getValue();
+                if (!bytes.isCanonicalLong()) {
+                    reply.error("ERR value is not an integer or out of range");
+                    return;
+                }
+                try {
+                    current = bytes.parseLong();
+                } catch (NumberFormatException e) {
+                    reply.error("ERR value is not an integer or out of range");
+                    return;
+                }
+            }
+        }
 
-        if (value != null && value.getType().equals(Cache.TYPE_STRING)) {
-            try {
-                currentValue = Long.parseLong(value.getValue().toString());
-            } catch (NumberFormatException e) {
-                stringWriter.accept(RESPEncoder.encodeError("ERR value is not an integer or out of range"));
+        long newValue;
+        try {
+            newValue = Math.addExact(current, increment);
+        } catch (ArithmeticException e) {
+            reply.error("ERR increment or decrement would overflow");
+            return;
+        }
+        if (value != null && value.isInteger()) {
+            value.setLong(newValue);
+        } else {
+            cache.putAt(key, Cache.Value.ofLong(newValue), value == null ? 0 : value.getExpiresAt());
+        }
+        LoggingService.logFine(() -> "Incremented key '" + key + "' to value: " + newValue);
+        reply.integer(newValue);
+    }
+
+    /**
+     * INCRBYFLOAT key increment. Propagated as SET with KEEPTTL, so replicas store exactly the same digits
+     * whatever their floating point arithmetic.
+     */
+    private void handleIncrByFloatRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString key = args.getFirst();
+        double increment;
+        try {
+            increment = parseFloat(args.get(1));
+        } catch (NumberFormatException e) {
+            reply.error("ERR value is not a valid float");
+            return;
+        }
+        Cache.Value value = cache.get(key);
+        double current = 0;
+        if (value != null) {
+            if (!Cache.TYPE_STRING.equals(value.getType())) {
+                reply.error("WRONGTYPE Operation against a key holding the wrong kind of value");
                 return;
             }
+            if (value.isInteger()) {
+                current = value.getLong();
+            } else {
+                try {
+                    current = parseFloat((ByteString) value.getValue());
+                } catch (NumberFormatException e) {
+                    reply.error("ERR value is not a valid float");
+                    return;
+                }
+            }
+        }
+        double newValue = current + increment;
+        if (Double.isNaN(newValue) || Double.isInfinite(newValue)) {
+            reply.error("ERR increment would produce NaN or Infinity");
+            return;
+        }
+        ByteString result = ByteString.of(BigDecimal.valueOf(newValue).stripTrailingZeros().toPlainString());
+        cache.putAt(key, Cache.Value.ofString(result), value == null ? 0 : value.getExpiresAt());
+        suppressPropagation();
+        alsoPropagate(List.of(SET, key, result, KEEPTTL));
+        reply.bulkString(result);
+    }
+
+    /**
+     * @return the double a string holds, refusing NaN, infinities and surrounding spaces as Redis does
+     */
+    private static double parseFloat(ByteString bytes) {
+        String s = bytes.toString();
+        if (s.isEmpty() || Character.isWhitespace(s.charAt(0)) || Character.isWhitespace(s.charAt(s.length() - 1))) {
+            throw new NumberFormatException(s);
+        }
+        double d = Double.parseDouble(s);
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            throw new NumberFormatException(s);
         }
+        return d;
+    }
 
-        long newValue = currentValue + 1;
-        cache.put(key, new Cache.Value(newValue, Cache.TYPE_STRING), 0);
-        LoggingService.logFine("Incremented key '" + key + "' to value: " + newValue);
-        stringWriter.accept(RESPEncoder.encodeInteger(newValue));
+    /**
+     * OBJECT ENCODING key.
+     */
+    private void handleObjectRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        if (!args.getFirst().equalsIgnoreCase("encoding") || args.size() != 2) {
+            reply.error("ERR unknown subcommand or wrong number of arguments for 'object' command");
+            return;
+        }
+        Cache.Value value = cache.get(args.get(1));
+        if (value == null) {
+            reply.nullBulkString();
+        } else {
+            reply.bulkString(value.getEncoding());
+        }
     }
 
-    private void handleMultiRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        transactionCommands.put(clientChannel, new LinkedList<>());
-        stringWriter.accept(RESPEncoder.encodeSimpleString("OK"));
+    private void handleMultiRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        if (transactions.containsKey(clientChannel)) {
+            reply.error("ERR MULTI calls can not be nested");
+            return;
+        }
+        transactions.put(clientChannel, new Transaction());
+        reply.ok();
     }
 
-    private void handleExecRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        List<List<Object>> commands = transactionCommands.remove(clientChannel);
-        if (commands == null) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR EXEC without MULTI"));
+    private void handleExecRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        Transaction transaction = transactions.remove(clientChannel);
+        if (transaction == null) {
+            reply.error("ERR EXEC without MULTI");
             return;
         }
+        if (transaction.aborted) {
+            reply.error("EXECABORT Transaction discarded because of previous errors.");
+            return;
+        }
+        List<QueuedCommand> commands = transaction.commands;
         if (commands.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeArray(Collections.emptyList()));
+            reply.emptyArray();
             return;
         }
 
-        List<String> results = new ArrayList<>();
-        Consumer<String> transactionStringWriter = (resp) -> {
-            if (resp != null) {
-                results.add(resp);
-            }
-        };
+        // Replicas apply the transaction's writes as one unit as well.
+        boolean wrapPropagation = isPropagating()
+                && commands.stream().anyMatch(queued -> queued.command().hasFlag(CommandTable.WRITE));
+        if (wrapPropagation) {
+            propagate(MULTI_COMMAND);
+        }
 
-        for (List<Object> command : commands) {
-            String cmdName = (String) command.get(0);
-            //noinspection unchecked
-            List<String> cmdArgs = (List<String>) command.get(1);
-            int cmdBytesConsumed = (int) command.get(2);
-            switch (cmdName.toLowerCase()) {
-                case "set":
-                    handleSetRequest(clientChannel, cmdArgs, transactionStringWriter, byteWriter, cmdBytesConsumed);
-                    break;
-                case "get":
-                    handleGetRequest(clientChannel, cmdArgs, transactionStringWriter, byteWriter, cmdBytesConsumed);
-                    break;
-                case "incr":
-                    handleIncrRequest(clientChannel, cmdArgs, transactionStringWriter, byteWriter, cmdBytesConsumed);
-                    break;
-                default:
-                    stringWriter.accept(RESPEncoder.encodeError("ERR unknown command '" + cmdName + "' in transaction"));
-                    return;
+        // Every queued command writes exactly one reply, so they can go straight behind the array header.
+        // Blocking commands answer right away instead of blocking, as if they had timed out.
+        reply.arrayHeader(commands.size());
+        ReplyWriter contiguousReply = reply.contiguous();
+        CallState state = callState.get();
+        state.executingTransaction = true;
+        try {
+            for (QueuedCommand queued : commands) {
+                call(queued.command(), clientChannel, queued.name(), queued.args(), contiguousReply, queued.bytesConsumed());
             }
+        } finally {
+            state.executingTransaction = false;
         }
-        stringWriter.accept(RESPEncoder.encodeRESPArray(results));
-        LoggingService.logFine("Executed transaction for client: " + clientChannel + ", commands: " + commands);
+
+        if (wrapPropagation) {
+            propagate(EXEC_COMMAND);
+        }
+        LoggingService.logFine(() -> "Executed transaction for client: " + clientChannel + ", commands: " + commands.size());
     }
 
-    private void handleDiscardRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (transactionCommands.remove(clientChannel) == null) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR DISCARD without MULTI"));
+    private void handleDiscardRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        if (transactions.remove(clientChannel) == null) {
+            reply.error("ERR DISCARD without MULTI");
         } else {
-            stringWriter.accept(RESPEncoder.encodeSimpleString("OK"));
-            LoggingService.logFine("Discarded transaction for client: " + clientChannel);
+            reply.ok();
+            LoggingService.logFine(() -> "Discarded transaction for client: " + clientChannel);
         }
     }
 
-    private void handleRPushRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.size() < 2) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'rpush' command"));
-            return;
-        }
-        String key = args.getFirst();
-        List<String> values = args.subList(1, args.size());
+    private void handleRPushRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString key = args.getFirst();
+        List<ByteString> values = args.subList(1, args.size());
+        List<ByteString> list;
         Cache.Value value = cache.get(key);
-        List<String> list;
 
         if (value == null || !Cache.TYPE_LIST.equals(value.getType())) {
             list = new LinkedList<>();
+            for (ByteString val : values) {
+                list.addLast(val.compact());
+            }
+            cache.put(key, new Cache.Value(list, Cache.TYPE_LIST), 0);
         } else {
             //noinspection unchecked
-            list = (List<String>) value.getValue();
-        }
-
-        for (String val : values) {
-            list.addLast(val);
+            list = (List<ByteString>) value.getValue();
+            cache.beforeChange(key, list);
+            long added = 0;
+            for (ByteString val : values) {
+                ByteString element = val.compact();
+                list.addLast(element);
+                added += MemoryAccountant.ofListElement(element);
+            }
+            cache.adjustMemory(key, value, added);
         }
-        cache.put(key, new Cache.Value(list, Cache.TYPE_LIST), 0);
-        stringWriter.accept(RESPEncoder.encodeInteger(list.size()));
-        LoggingService.logFine("RPUSH command executed for key '" + key + "', new list size: " + list.size());
+        reply.integer(list.size());
+        LoggingService.logFine(() -> "RPUSH command executed for key '" + key + "', new list size: " + list.size());
 
-        updateBlockedClients(key);
+        signalListReady(key);
     }
 
-    private void handleLPushRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.size() < 2) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'lpush' command"));
-            return;
-        }
-        String key = args.getFirst();
-        List<String> values = args.subList(1, args.size());
+    private void handleLPushRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString key = args.getFirst();
+        List<ByteString> values = args.subList(1, args.size());
+        List<ByteString> list;
         Cache.Value value = cache.get(key);
-        List<String> list;
 
         if (value == null || !Cache.TYPE_LIST.equals(value.getType())) {
             list = new LinkedList<>();
+            for (ByteString val : values) {
+                list.addFirst(val.compact());
+            }
+            cache.put(key, new Cache.Value(list, Cache.TYPE_LIST), 0);
         } else {
             //noinspection unchecked
-            list = (List<String>) value.getValue();
+            list = (List<ByteString>) value.getValue();
+            cache.beforeChange(key, list);
+            long added = 0;
+            for (ByteString val : values) {
+                ByteString element = val.compact();
+                list.addFirst(element);
+                added += MemoryAccountant.ofListElement(element);
+            }
+            cache.adjustMemory(key, value, added);
         }
+        reply.integer(list.size());
+        LoggingService.logFine(() -> "LPUSH command executed for key '" + key + "', new list size: " + list.size());
+
+        signalListReady(key);
+    }
 
-        for (String val : values) {
-            list.addFirst(val);
+    /**
+     * Notes that a list got elements while clients may be blocked on it. They are served once the command
+     * has run and released its locks ({@link #serveReadyKeys}), since serving them may touch keys of other
+     * shards. Blocking only happens while no other command runs, so the check cannot miss a client.
+     */
+    private void signalListReady(ByteString key) {
+        if (blockedClientsPerList.containsKey(key)) {
+            callState.get().readyLists.add(key);
         }
-        cache.put(key, new Cache.Value(list, Cache.TYPE_LIST), 0);
-        stringWriter.accept(RESPEncoder.encodeInteger(list.size()));
-        LoggingService.logFine("LPUSH command executed for key '" + key + "', new list size: " + list.size());
+    }
 
-        updateBlockedClients(key);
+    /**
+     * Serves the clients blocked on the lists and streams that received data, with no other command running,
+     * and propagates the pops done for them.
+     */
+    private void serveReadyKeys(CallState state) {
+        cache.lockKeyspace();
+        state.lockDepth++;
+        state.propagatingCall = isPropagating();
+        try {
+            for (ByteString key : state.readyLists) {
+                updateBlockedClients(key);
+            }
+            for (ByteString key : state.readyStreams) {
+                updateBlockedStreamClients(key);
+            }
+            for (List<ByteString> extra : state.alsoPropagated) {
+                propagate(extra);
+            }
+        } finally {
+            state.readyLists.clear();
+            state.readyStreams.clear();
+            state.propagatingCall = false;
+            state.alsoPropagated.clear();
+            state.lockDepth--;
+            cache.unlockKeyspace();
+        }
     }
 
-    private void updateBlockedClients(String key) {
+    private void updateBlockedClients(ByteString key) {
         List<BlockedClient> blockedClients = blockedClientsPerList.get(key);
         if (blockedClients != null) {
-            Iterator<BlockedClient> iter = blockedClients.iterator();
-            while (iter.hasNext()) {
-                BlockedClient bc = iter.next();
-                List<String> result = popFromKeys(bc.streamKeys());
+            for (BlockedClient bc : new ArrayList<>(blockedClients)) {
+                List<ByteString> result = popFromKeys(bc.streamKeys());
                 if (!result.isEmpty()) {
-                    bc.stringWriter().accept(RESPEncoder.encodeArray(result));
-                    iter.remove();
+                    bc.reply().bulkArray(result);
+                    unblockClient(bc, blockedClientsPerList);
                 }
             }
-            if (blockedClients.isEmpty()) {
-                blockedClientsPerList.remove(key);
-            }
         }
     }
 
-    private void handleLRangeRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.size() != 3) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'lrange' command"));
-            return;
+    /**
+     * Parks a client on every key it waits for and, unless it blocks forever, arms its timeout.
+     */
+    private void blockClient(BlockedClient blockedClient, Map<ByteString, List<BlockedClient>> blockedClientsPerKey) {
+        blockedClient.reply().blocked();
+        for (ByteString key : blockedClient.streamKeys()) {
+            blockedClientsPerKey.computeIfAbsent(key, _ -> new ArrayList<>()).add(blockedClient);
+        }
+        if (blockedClient.unblockAt() != Long.MAX_VALUE) {
+            blockedClientTimeouts.put(blockedClient, timers.schedule(blockedClient.unblockAt(), () -> {
+                blockedClientTimeouts.remove(blockedClient);
+                unblockClient(blockedClient, blockedClientsPerKey);
+                blockedClient.reply().nullBulkString();
+            }));
         }
-        String key = args.getFirst();
+    }
+
+    /**
+     * Removes a served or timed out client from all the keys it was waiting on, so it is answered once.
+     */
+    private void unblockClient(BlockedClient blockedClient, Map<ByteString, List<BlockedClient>> blockedClientsPerKey) {
+        timers.cancel(blockedClientTimeouts.remove(blockedClient));
+        for (ByteString key : blockedClient.streamKeys()) {
+            List<BlockedClient> blockedClients = blockedClientsPerKey.get(key);
+            if (blockedClients != null) {
+                blockedClients.remove(blockedClient);
+                if (blockedClients.isEmpty()) {
+                    blockedClientsPerKey.remove(key);
+                }
+            }
+        }
+    }
+
+    private void handleLRangeRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString key = args.getFirst();
         Cache.Value value = cache.get(key);
         if (value == null || !Cache.TYPE_LIST.equals(value.getType())) {
-            stringWriter.accept(RESPEncoder.encodeArray(Collections.emptyList()));
+            reply.emptyArray();
             return;
         }
 
         //noinspection unchecked
-        List<String> list = (List<String>) value.getValue();
+        List<ByteString> list = (List<ByteString>) value.getValue();
         if (list.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeArray(Collections.emptyList()));
+            reply.emptyArray();
             return;
         }
-        int start = Integer.parseInt(args.get(1));
-        int end = Integer.parseInt(args.get(2));
+        int start = args.get(1).parseInt();
+        int end = args.get(2).parseInt();
 
         if (start < 0) {
             start += list.size();
@@ -987,122 +2135,118 @@ public class CommandExecutor {
         }
 
         if (start >= list.size() || end < 0 || start > end) {
-            stringWriter.accept(RESPEncoder.encodeArray(Collections.emptyList()));
+            reply.emptyArray();
             return;
         }
 
-        if (end > list.size()) {
+        if (end >= list.size()) {
             end = list.size() - 1;
         }
 
-        List<String> result = list.subList(start, end + 1);
-        stringWriter.accept(RESPEncoder.encodeStringArray(result));
+        reply.stream(cache.streamRange(key, list, start, end));
     }
 
-    private void handleLLenRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.size() != 1) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'llen' command"));
-            return;
-        }
-        String key = args.getFirst();
+    private void handleLLenRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString key = args.getFirst();
         Cache.Value value = cache.get(key);
         if (value == null || !Cache.TYPE_LIST.equals(value.getType())) {
-            stringWriter.accept(RESPEncoder.encodeInteger(0));
+            reply.integer(0);
             return;
         }
 
         //noinspection unchecked
-        List<String> list = (List<String>) value.getValue();
-        stringWriter.accept(RESPEncoder.encodeInteger(list.size()));
+        List<ByteString> list = (List<ByteString>) value.getValue();
+        reply.integer(list.size());
     }
 
-    private void handleLPopRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'lpop' command"));
-            return;
-        }
-        String key = args.getFirst();
+    private void handleLPopRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
+        ByteString key = args.getFirst();
         Cache.Value value = cache.get(key);
         if (value == null || !Cache.TYPE_LIST.equals(value.getType())) {
-            stringWriter.accept(RESPEncoder.encodeNull());
+            reply.nullBulkString();
             return;
         }
         int count;
         try {
-            count = args.size() == 2 ? Integer.parseInt(args.get(1)) : 1;
+            count = args.size() == 2 ? args.get(1).parseInt() : 1;
         } catch (NumberFormatException e) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR invalid count for 'lpop' command"));
+            reply.error("ERR invalid count for 'lpop' command");
             return;
         }
 
         //noinspection unchecked
-        List<String> list = (List<String>) value.getValue();
+        List<ByteString> list = (List<ByteString>) value.getValue();
         if (list.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeNull());
+            reply.nullBulkString();
             return;
         }
         if (count < 1) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR count must be greater than 0 for 'lpop' command"));
+            reply.error("ERR count must be greater than 0 for 'lpop' command");
             return;
         }
         if (count > list.size()) {
             count = list.size();
         }
+        cache.beforeChange(key, list);
         if (count > 1) {
-            List<String> result = new ArrayList<>(count);
+            List<ByteString> result = new ArrayList<>(count);
+            long removed = 0;
             for (int i = 0; i < count; i++) {
-                String s = list.removeFirst();
+                ByteString s = list.removeFirst();
+                removed += MemoryAccountant.ofListElement(s);
                 result.add(s);
             }
-            stringWriter.accept(RESPEncoder.encodeStringArray(result));
+            cache.adjustMemory(key, value, -removed);
+            reply.bulkArray(result);
             return;
         }
-        String s = list.removeFirst();
-        stringWriter.accept(RESPEncoder.encodeBulkString(s));
+        ByteString s = list.removeFirst();
+        cache.adjustMemory(key, value, -MemoryAccountant.ofListElement(s));
+        reply.bulkString(s);
     }
 
-    private void handleBLPopRequest(SocketChannel clientChannel, List<String> args, Consumer<String> stringWriter, Consumer<byte[]> byteWriter, int bytesConsumed) {
-        if (args.size() < 2) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR wrong number of arguments for 'blpop' command"));
-            return;
-        }
+    private void handleBLPopRequest(SocketChannel clientChannel, List<ByteString> args, ReplyWriter reply, int bytesConsumed) {
         long blockMillis;
         try {
-            blockMillis = (long) (Double.parseDouble(args.getLast()) * 1000L);
-            LoggingService.logInfo("Block time for BLPOP: " + blockMillis + "ms");
+            blockMillis = (long) (args.getLast().parseDouble() * 1000L);
             if (blockMillis < 0) {
-                stringWriter.accept(RESPEncoder.encodeError("ERR timeout must be a non-negative integer for 'blpop' command"));
+                reply.error("ERR timeout must be a non-negative integer for 'blpop' command");
                 return;
             }
         } catch (NumberFormatException e) {
-            stringWriter.accept(RESPEncoder.encodeError("ERR invalid timeout value for 'blpop' command"));
+            reply.error("ERR invalid timeout value for 'blpop' command");
             return;
         }
 
-        List<String> keys = args.subList(0, args.size() - 1);
-        List<String> result = popFromKeys(keys);
+        // What replicas see is the LPOP done by popFromKeys, whether the client is served now or later.
+        suppressPropagation();
+        List<ByteString> keys = args.subList(0, args.size() - 1);
+        List<ByteString> result = popFromKeys(keys);
         if (!result.isEmpty()) {
-            stringWriter.accept(RESPEncoder.encodeArray(result));
+            reply.bulkArray(result);
             return;
         }
-        long unblockAt = blockMillis == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + blockMillis;
-        BlockedClient blockedClient = new BlockedClient(clientChannel, keys, Collections.emptyList(), 1, unblockAt, stringWriter, byteWriter);
-
-        for (String key : keys) {
-            blockedClientsPerList.computeIfAbsent(key, _ -> new ArrayList<>()).add(blockedClient);
+        if (callState.get().executingTransaction) {
+            reply.nullBulkString();
+            return;
         }
+        long unblockAt = blockMillis == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + blockMillis;
+        blockClient(new BlockedClient(clientChannel, keys, Collections.emptyList(), 1, unblockAt, reply), blockedClientsPerList);
     }
 
-    private List<String> popFromKeys(List<String> keys) {
-        for (String key : keys) {
+    private List<ByteString> popFromKeys(List<ByteString> keys) {
+        for (ByteString key : keys) {
             Cache.Value value = cache.get(key);
             if (value == null || !Cache.TYPE_LIST.equals(value.getType())) {
                 continue;
             }
             //noinspection unchecked
-            List<String> list = (List<String>) value.getValue();
+            List<ByteString> list = (List<ByteString>) value.getValue();
             if (!list.isEmpty()) {
-                String s = list.removeFirst();
+                cache.beforeChange(key, list);
+                ByteString s = list.removeFirst();
+                cache.adjustMemory(key, value, -MemoryAccountant.ofListElement(s));
+                alsoPropagate(List.of(LPOP, key));
                 return List.of(key, s);
             }
         }
@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The commands the server knows, each with its arity, flags and key positions.
+ * <p>
+ * Lookup takes the command name as it arrived from the client and matches it case-insensitively against
+ * the lowercase registered names, hashing and comparing the bytes in place, so dispatching a command
+ * allocates nothing. The table is filled once at startup and only read afterwards.
+ * <p>
+ * Arity follows the Redis convention and counts the command name: a positive arity is the exact number of
+ * arguments, a negative one the minimum. Key positions are argument indexes counting the name as 0;
+ * {@code lastKey} may be negative to count from the end, and commands whose keys cannot be located this
+ * way (XREAD) report no keys.
+ */
+public final class CommandTable {
+    public static final int WRITE = 1;
+    public static final int READONLY = 1 << 1;
+    public static final int BLOCKING = 1 << 2;
+    public static final int ADMIN = 1 << 3;
+    public static final int FAST = 1 << 4;
+    /** Rejected between MULTI and EXEC. */
+    public static final int NO_MULTI = 1 << 5;
+    /** May grow the keyspace, so refused while over {@code maxmemory} when nothing can be evicted. */
+    public static final int DENYOOM = 1 << 6;
+    /** MULTI, EXEC and DISCARD, which run immediately inside a transaction instead of being queued. */
+    public static final int TRANSACTION = 1 << 7;
+
+    private static final String[] FLAG_NAMES = {"write", "readonly", "blocking", "admin", "fast", "no_multi", "denyoom"};
+
+    public record Command(String name, int arity, int flags, int firstKey, int lastKey, int keyStep,
+                          CommandExecutor.CommandHandler handler) {
+
+        public boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        /**
+         * @param argc number of arguments including the command name
+         */
+        public boolean acceptsArgumentCount(int argc) {
+            return arity >= 0 ? argc == arity : argc >= -arity;
+        }
+
+        public List<String> flagNames() {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < FLAG_NAMES.length; i++) {
+                if ((flags & (1 << i)) != 0) {
+                    names.add(FLAG_NAMES[i]);
+                }
+            }
+            return names;
+        }
+
+        /**
+         * @param argc number of arguments including the command name
+         * @return index of the last key argument
+         */
+        public int lastKeyIndex(int argc) {
+            return lastKey < 0 ? argc + lastKey : lastKey;
+        }
+
+        /**
+         * @param args arguments without the command name
+         * @return the keys among the arguments, in order
+         */
+        public List<ByteString> keys(List<ByteString> args) {
+            if (firstKey == 0) {
+                return Collections.emptyList();
+            }
+            int argc = args.size() + 1;
+            int last = lastKeyIndex(argc);
+            List<ByteString> keys = new ArrayList<>();
+            for (int i = firstKey; i <= last && i < argc; i += keyStep) {
+                keys.add(args.get(i - 1));
+            }
+            return keys;
+        }
+    }
+
+    private final List<Command> commands = new ArrayList<>();
+    private Command[] slots = new Command[64];
+
+    public void register(String name, int arity, int flags, int firstKey, int lastKey, int keyStep,
+                         CommandExecutor.CommandHandler handler) {
+        Command command = new Command(name, arity, flags, firstKey, lastKey, keyStep, handler);
+        commands.add(command);
+        if (commands.size() * 2 > slots.length) {
+            slots = new Command[slots.length * 2];
+            for (Command c : commands) {
+                insert(c);
+            }
+        } else {
+            insert(command);
+        }
+    }
+
+    /**
+     * @return the command with this name in any letter case, or null if there is none
+     */
+    public Command lookup(ByteString name) {
+        int mask = slots.length - 1;
+        for (int i = hash(name) & mask; slots[i] != null; i = (i + 1) & mask) {
+            if (name.equalsIgnoreCase(slots[i].name())) {
+                return slots[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return all commands in registration order
+     */
+    public List<Command> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    private void insert(Command command) {
+        int mask = slots.length - 1;
+        int i = hash(command.name()) & mask;
+        while (slots[i] != null) {
+            if (slots[i].name().equals(command.name())) {
+                throw new IllegalArgumentException("Command registered twice: " + command.name());
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = command;
+    }
+
+    private static int hash(ByteString name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + toLower(name.byteAt(i));
+        }
+        return spread(h);
+    }
+
+    private static int hash(String lowercase) {
+        int h = 0;
+        for (int i = 0; i < lowercase.length(); i++) {
+            h = 31 * h + lowercase.charAt(i);
+        }
+        return spread(h);
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
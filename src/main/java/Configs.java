@@ -1,25 +1,122 @@
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Configs {
     public static final long EXPIRY_SCAN_INTERVAL_MS = 100;
-    public static final long SELECTOR_WAIT_INTERVAL_MS = 10;
+    public static final int EXPIRY_SAMPLE_KEYS = 20;
+    public static final int EXPIRY_INDEX_BATCH = 1000;
+    public static final int EXPIRY_SAMPLE_EMPTY_BUCKETS = 20;
+    public static final int EXPIRY_ACCEPTABLE_STALE_PERCENT = 25;
+    public static final int EXPIRY_CYCLE_BUDGET_PERCENT = 25;
+    public static final int EXPIRY_CYCLE_MAX_BUDGET_PERCENT = 75;
+    public static final double EXPIRY_MEMORY_PRESSURE_THRESHOLD = 0.75;
+    public static final long EXPIRY_FAST_CYCLE_US = 1000;
+    public static final long REHASH_CRON_INTERVAL_MS = 100;
+    public static final long REHASH_CRON_BUDGET_MS = 1;
+    public static final int SCAN_EMPTY_BUCKETS = 10;
+    public static final int DEFAULT_SCAN_COUNT = 10;
+    public static final int GLOB_PATTERN_CACHE_SIZE = 64;
+    public static final long SELECTOR_WAIT_INTERVAL_MS = 100;
+    public static final long TIMER_TICK_MS = 10;
     public static final int READ_BUFFER_SIZE = 8196;
+    public static final int QUERY_BUFFER_INITIAL_SIZE = 1024;
+    public static final int BIG_ARG_THRESHOLD = 32 * 1024;
+    public static final long QUERY_BUFFER_IDLE_SHRINK_MS = 2000;
+    public static final long DEFAULT_QUERY_BUFFER_LIMIT = 1024L * 1024 * 1024;
+    public static final long CLIENT_CRON_INTERVAL_MS = 100;
+    public static final int OUTPUT_CHUNK_SIZE = 16 * 1024;
+    public static final int OUTPUT_POOL_MAX_BUFFERS = 1024;
+    public static final int STREAMED_REPLY_BUFFERED_BYTES = 4 * OUTPUT_CHUNK_SIZE;
+    public static final long DEFAULT_OUTPUT_HIGH_WATER_MARK = 4L * 1024 * 1024;
     public static final int MAX_COMMANDS_PER_READ = 100;
     public static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    public static final int REACTOR_SHUTDOWN_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_KEYSPACE_SHARDS = 16;
+    public static final int SHARD_QUEUE_CAPACITY = 4096;
+    public static final int EVICTION_POOL_SIZE = 16;
+    public static final int DEFAULT_MAXMEMORY_SAMPLES = 5;
+    public static final long EVICTION_TIME_LIMIT_US = 500;
+    public static final int EVICTION_RANDOM_ATTEMPTS = 64;
+    public static final int LFU_INIT_VALUE = 5;
+    public static final int LFU_LOG_FACTOR = 10;
+    public static final int LFU_DECAY_MINUTES = 1;
+    public static final long MEMORY_PEAK_INTERVAL_MS = 100;
+    public static final int OFFHEAP_SLAB_SIZE = 1024 * 1024;
+    public static final int OFFHEAP_MAX_SLOT_SIZE = 4096;
 
-    private static final Map<String, String> config = new HashMap<>();
+    private static final Map<String, String> config = new ConcurrentHashMap<>();
 
-    private static final Map<String, Object> replicationInfo = new HashMap<>();
+    private static final Map<String, Object> replicationInfo = new ConcurrentHashMap<>();
 
     public static String getConfiguration(String key) {
         return config.get(key);
     }
 
+    public static int getIntConfiguration(String key, int defaultValue) {
+        String value = config.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LoggingService.logWarn("Invalid integer for config '" + key + "': " + value + ". Using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     public static void setConfiguration(String key, String value) {
         config.put(key, value);
     }
 
+    public static long getMemoryConfiguration(String key, long defaultValue) {
+        String value = config.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return parseMemory(value);
+        } catch (NumberFormatException e) {
+            LoggingService.logWarn("Invalid memory size for config '" + key + "': " + value + ". Using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parses sizes the way redis.conf does: a byte count of decimal digits only, so never negative, optionally
+     * followed by b, k (1000), kb (1024), m (1000^2), mb (1024^2), g (1000^3) or gb (1024^3), in any case.
+     *
+     * @throws NumberFormatException for any other unit, a sign or other non-digit in the count, or a size
+     *         overflowing a long
+     */
+    public static long parseMemory(String value) {
+        String s = value.trim().toLowerCase();
+        int digits = s.length();
+        while (digits > 0 && Character.isLetter(s.charAt(digits - 1))) {
+            digits--;
+        }
+        long multiplier = switch (s.substring(digits)) {
+            case "", "b" -> 1L;
+            case "k" -> 1000L;
+            case "kb" -> 1024L;
+            case "m" -> 1000L * 1000;
+            case "mb" -> 1024L * 1024;
+            case "g" -> 1000L * 1000 * 1000;
+            case "gb" -> 1024L * 1024 * 1024;
+            default -> throw new NumberFormatException("Invalid memory unit in '" + value + "'");
+        };
+        for (int i = 0; i < digits; i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                throw new NumberFormatException("Invalid memory size '" + value + "'");
+            }
+        }
+        try {
+            return Math.multiplyExact(Long.parseLong(s.substring(0, digits)), multiplier);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Memory size out of range: '" + value + "'");
+        }
+    }
+
     public static Object getReplicationInfo(String key) {
         return replicationInfo.get(key);
     }
@@ -0,0 +1,382 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/**
+ * Hash table of the keyspace, keyed by {@link ByteString}, after Redis's dict.
+ * <p>
+ * Every bucket is a flat array of alternating keys and values, so an entry costs two array slots instead of
+ * a node object, and the bucket array grows in place when keys collide. The table doubles once it holds as
+ * many entries as buckets and halves once it is less than an eighth full, but never in one step: the new
+ * table is allocated next to the old one and buckets move across a few at a time, on every write and from
+ * {@link #rehashUntil(long)}, which the cron calls. While both tables exist, lookups check both and
+ * insertions go to the new one.
+ * <p>
+ * Reads never modify the table, so any number of readers can share it while no one writes. Not thread-safe
+ * otherwise.
+ */
+public final class Dict<V> {
+    private static final int MIN_BUCKETS = 16;
+    private static final int INITIAL_BUCKET_ENTRIES = 2;
+    /** Buckets moved on each write while a rehash is in progress. */
+    private static final int REHASH_STEP_BUCKETS = 1;
+    /** Empty buckets skipped per moved bucket before a rehash step gives up for now. */
+    private static final int REHASH_EMPTY_VISITS = 10;
+    /** Buckets moved between two deadline checks in {@link #rehashUntil(long)}. */
+    private static final int REHASH_BATCH_BUCKETS = 100;
+
+    private Object[][] table;
+    private Object[][] rehashTable = null;
+    /** Next bucket of {@code table} to move into {@code rehashTable}. */
+    private int rehashIndex = 0;
+    private int size = 0;
+
+    public Dict() {
+        this(MIN_BUCKETS);
+    }
+
+    public Dict(int expectedSize) {
+        table = new Object[bucketCountFor(expectedSize)][];
+    }
+
+    private static int bucketCountFor(int entries) {
+        int buckets = MIN_BUCKETS;
+        while (buckets < entries && buckets < (1 << 30)) {
+            buckets <<= 1;
+        }
+        return buckets;
+    }
+
+    /**
+     * Murmur3's finalizer. Keyspace shards pick keys by the low bits of the plain hash, so every key of a
+     * shard shares them and the buckets need bits of their own.
+     */
+    private static int hash(ByteString key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isRehashing() {
+        return rehashTable != null;
+    }
+
+    /**
+     * @return the number of buckets; during a rehash, those of the table being filled
+     */
+    public int bucketCount() {
+        return rehashTable != null ? rehashTable.length : table.length;
+    }
+
+    /**
+     * @return the buckets of both tables while a rehash is in progress, else of the one table
+     */
+    public int allocatedBuckets() {
+        Object[][] current = table;
+        Object[][] next = rehashTable;
+        return current.length + (next == null ? 0 : next.length);
+    }
+
+    public V get(ByteString key) {
+        if (size == 0) {
+            return null;
+        }
+        int h = hash(key);
+        Object[] bucket = table[h & (table.length - 1)];
+        int i = indexOf(bucket, key);
+        if (i < 0 && rehashTable != null) {
+            bucket = rehashTable[h & (rehashTable.length - 1)];
+            i = indexOf(bucket, key);
+        }
+        if (i < 0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        V value = (V) bucket[i + 1];
+        return value;
+    }
+
+    public boolean containsKey(ByteString key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the previous value, or null
+     */
+    public V put(ByteString key, V value) {
+        rehashStep(REHASH_STEP_BUCKETS);
+        int h = hash(key);
+        int index = h & (table.length - 1);
+        int i = indexOf(table[index], key);
+        if (i >= 0) {
+            return replace(table[index], i, value);
+        }
+        Object[][] target = table;
+        if (rehashTable != null) {
+            target = rehashTable;
+            index = h & (rehashTable.length - 1);
+            i = indexOf(target[index], key);
+            if (i >= 0) {
+                return replace(target[index], i, value);
+            }
+        }
+        target[index] = append(target[index], key, value);
+        size++;
+        if (rehashTable == null && size >= table.length && table.length < (1 << 30)) {
+            startRehash(table.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return the removed value, or null
+     */
+    public V remove(ByteString key) {
+        if (size == 0) {
+            return null;
+        }
+        rehashStep(REHASH_STEP_BUCKETS);
+        int h = hash(key);
+        V removed = removeFrom(table, h, key);
+        if (removed == null && rehashTable != null) {
+            removed = removeFrom(rehashTable, h, key);
+        }
+        if (removed != null) {
+            size--;
+            shrinkIfSparse();
+        }
+        return removed;
+    }
+
+    private void shrinkIfSparse() {
+        if (rehashTable == null && table.length > MIN_BUCKETS && size < table.length / 8) {
+            startRehash(bucketCountFor(size));
+        }
+    }
+
+    public void clear() {
+        table = new Object[MIN_BUCKETS][];
+        rehashTable = null;
+        rehashIndex = 0;
+        size = 0;
+    }
+
+    public void forEach(BiConsumer<ByteString, V> action) {
+        forEach(table, action);
+        if (rehashTable != null) {
+            forEach(rehashTable, action);
+        }
+    }
+
+    /**
+     * Moves buckets into the new table until the rehash completes or {@code deadlineNanos} (a
+     * {@link System#nanoTime()} value) passes, first starting a shrink if removals left the table sparse.
+     *
+     * @return true if the rehash is still in progress
+     */
+    public boolean rehashUntil(long deadlineNanos) {
+        shrinkIfSparse();
+        while (rehashTable != null) {
+            rehashStep(REHASH_BATCH_BUCKETS);
+            if (System.nanoTime() - deadlineNanos >= 0) {
+                break;
+            }
+        }
+        return rehashTable != null;
+    }
+
+    /**
+     * Calls {@code action} for the entries of the next bucket(s) in reverse-binary order (Redis's SCAN
+     * algorithm): the cursor's high bits are incremented rather than its low bits, so buckets already
+     * visited map onto buckets already visited after the table doubles or halves. Every key present from the
+     * first call to the last is therefore seen at least once, and a key may be seen twice only if the table
+     * shrank in between.
+     *
+     * @param cursor 0 to start, then the value returned by the previous call
+     * @return the cursor of the next call, or 0 once the whole table has been visited
+     */
+    public long scan(long cursor, BiConsumer<ByteString, V> action) {
+        int v = (int) cursor;
+        if (rehashTable == null) {
+            int mask = table.length - 1;
+            forEach(table[v & mask], action);
+            return Integer.toUnsignedLong(nextCursor(v, mask));
+        }
+        Object[][] small = table.length <= rehashTable.length ? table : rehashTable;
+        Object[][] large = small == table ? rehashTable : table;
+        int smallMask = small.length - 1;
+        int largeMask = large.length - 1;
+        forEach(small[v & smallMask], action);
+        // Then every bucket of the larger table that the small bucket expands to.
+        do {
+            forEach(large[v & largeMask], action);
+            v = nextCursor(v, largeMask);
+        } while ((v & (smallMask ^ largeMask)) != 0);
+        return Integer.toUnsignedLong(v);
+    }
+
+    /**
+     * Calls {@code action} for up to {@code count} entries taken from consecutive buckets after a random one,
+     * like Redis's dictGetSomeKeys. The entries are not uniformly random, which is good enough for sampling
+     * eviction candidates, and gathering them costs O(count) rather than one random probe per entry.
+     */
+    public void sample(int count, BiConsumer<ByteString, V> action) {
+        if (size == 0) {
+            return;
+        }
+        int i = ThreadLocalRandom.current().nextInt();
+        int taken = 0;
+        for (int steps = count * 10; taken < count && steps > 0; steps--, i++) {
+            taken += sampleBucket(table[i & (table.length - 1)], count - taken, action);
+            if (rehashTable != null && taken < count) {
+                taken += sampleBucket(rehashTable[i & (rehashTable.length - 1)], count - taken, action);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> int sampleBucket(Object[] bucket, int max, BiConsumer<ByteString, V> action) {
+        int taken = 0;
+        for (int i = 0; bucket != null && i < bucket.length && bucket[i] != null && taken < max; i += 2) {
+            action.accept((ByteString) bucket[i], (V) bucket[i + 1]);
+            taken++;
+        }
+        return taken;
+    }
+
+    private static int nextCursor(int cursor, int mask) {
+        int v = cursor | ~mask;
+        v = Integer.reverse(v);
+        v++;
+        return Integer.reverse(v);
+    }
+
+    private void startRehash(int buckets) {
+        rehashTable = new Object[buckets][];
+        rehashIndex = 0;
+    }
+
+    private void rehashStep(int buckets) {
+        if (rehashTable == null) {
+            return;
+        }
+        int emptyVisits = buckets * REHASH_EMPTY_VISITS;
+        int mask = rehashTable.length - 1;
+        while (buckets > 0 && rehashIndex < table.length) {
+            Object[] bucket = table[rehashIndex];
+            if (bucket == null) {
+                rehashIndex++;
+                if (--emptyVisits == 0) {
+                    return;
+                }
+                continue;
+            }
+            for (int i = 0; i < bucket.length && bucket[i] != null; i += 2) {
+                ByteString key = (ByteString) bucket[i];
+                int index = hash(key) & mask;
+                rehashTable[index] = append(rehashTable[index], key, bucket[i + 1]);
+            }
+            table[rehashIndex++] = null;
+            buckets--;
+        }
+        if (rehashIndex == table.length) {
+            table = rehashTable;
+            rehashTable = null;
+            rehashIndex = 0;
+        }
+    }
+
+    private static int indexOf(Object[] bucket, ByteString key) {
+        if (bucket == null) {
+            return -1;
+        }
+        for (int i = 0; i < bucket.length && bucket[i] != null; i += 2) {
+            if (key.equals(bucket[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private V replace(Object[] bucket, int i, V value) {
+        @SuppressWarnings("unchecked")
+        V previous = (V) bucket[i + 1];
+        bucket[i + 1] = value;
+        return previous;
+    }
+
+    private static Object[] append(Object[] bucket, ByteString key, Object value) {
+        if (bucket == null) {
+            bucket = new Object[INITIAL_BUCKET_ENTRIES * 2];
+            bucket[0] = key;
+            bucket[1] = value;
+            return bucket;
+        }
+        int end = 0;
+        while (end < bucket.length && bucket[end] != null) {
+            end += 2;
+        }
+        if (end == bucket.length) {
+            Object[] grown = new Object[bucket.length * 2];
+            System.arraycopy(bucket, 0, grown, 0, bucket.length);
+            bucket = grown;
+        }
+        bucket[end] = key;
+        bucket[end + 1] = value;
+        return bucket;
+    }
+
+    /**
+     * Removes the key by moving the bucket's last entry into its place.
+     */
+    private V removeFrom(Object[][] buckets, int h, ByteString key) {
+        int index = h & (buckets.length - 1);
+        Object[] bucket = buckets[index];
+        int i = indexOf(bucket, key);
+        if (i < 0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        V removed = (V) bucket[i + 1];
+        int last = i;
+        while (last + 2 < bucket.length && bucket[last + 2] != null) {
+            last += 2;
+        }
+        if (last == 0) {
+            buckets[index] = null;
+            return removed;
+        }
+        bucket[i] = bucket[last];
+        bucket[i + 1] = bucket[last + 1];
+        bucket[last] = null;
+        bucket[last + 1] = null;
+        return removed;
+    }
+
+    private static <V> void forEach(Object[][] buckets, BiConsumer<ByteString, V> action) {
+        for (Object[] bucket : buckets) {
+            forEach(bucket, action);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void forEach(Object[] bucket, BiConsumer<ByteString, V> action) {
+        if (bucket == null) {
+            return;
+        }
+        for (int i = 0; i < bucket.length && bucket[i] != null; i += 2) {
+            action.accept((ByteString) bucket[i], (V) bucket[i + 1]);
+        }
+    }
+}
@@ -1,39 +1,100 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class EventLoop implements AutoCloseable {
 
     private final Selector selector;
-    private final CommandParser commandParser;
     private final CommandExecutor commandExecutor;
     private final Expiry expiry;
     private final ReplicationHandler replicationHandler;
+    private final BufferPool bufferPool = new BufferPool(Configs.OUTPUT_CHUNK_SIZE, Configs.OUTPUT_POOL_MAX_BUFFERS);
+    private final ClientOutputLimits outputLimits = ClientOutputLimits.fromConfig();
+    private final TimingWheel timers = new TimingWheel(Configs.TIMER_TICK_MS, System.currentTimeMillis());
 
-    private final Map<SocketChannel, ByteBuffer> clientReadBuffers = new HashMap<>();
-    private final Map<SocketChannel, Queue<ByteBuffer>> clientWriteBuffers = new HashMap<>();
+    private final boolean multiReactor;
+    private final IOReactor[] reactors;
+    private int nextReactor = 0;
+    private final Map<SocketChannel, IOReactor> clientOwners = new ConcurrentHashMap<>();
+
+    private final ExecutorService[] commandWorkers;
+    private int nextCommandWorker = 0;
+    private final ShardRouter shardRouter;
+
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
 
     private SocketChannel masterChannel = null;
-    private ByteBuffer masterReadBuffer = null;
+    private QueryBuffer masterQueryBuffer = null;
     private final Queue<ByteBuffer> masterWriteQueue = new LinkedList<>();
 
 
     public EventLoop(int port) throws IOException {
-        commandParser = new CommandParser();
         commandExecutor = new CommandExecutor();
-        expiry = new Expiry();
+        commandExecutor.setTimingWheel(timers);
+        expiry = Expiry.create(Cache.getInstance());
         selector = Selector.open();
 
-        replicationHandler = new ReplicationHandler(port, selector, this::queueWriteToMaster, this::queueReadForMaster, commandExecutor);
+        int ioThreads = Configs.getIntConfiguration("io-threads", 1);
+        multiReactor = ioThreads > 1;
+        if (multiReactor) {
+            reactors = new IOReactor[ioThreads];
+            for (int i = 0; i < ioThreads; i++) {
+                reactors[i] = new IOReactor(String.valueOf(i), commandExecutor, this::submitTask, this::onClientClosed, bufferPool, outputLimits);
+            }
+        } else {
+            reactors = new IOReactor[]{new IOReactor("0", selector, commandExecutor, Runnable::run, this::onClientClosed, bufferPool, outputLimits)};
+        }
+        int execThreads = Configs.getIntConfiguration("exec-threads", 1);
+        commandWorkers = new ExecutorService[execThreads > 1 ? execThreads : 0];
+        for (int i = 0; i < commandWorkers.length; i++) {
+            commandWorkers[i] = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("command-worker-" + i).factory());
+        }
+        int shardThreads = Configs.getIntConfiguration("shard-threads", 1);
+        shardRouter = shardThreads > 1 ? new ShardRouter(shardThreads, this::wakeup) : null;
+        if (shardRouter != null) {
+            commandExecutor.setShardRouter(shardRouter);
+        }
+        ServerStats.addProvider("stats", info -> {
+            info.put("io_reactors", multiReactor ? reactors.length : 0);
+            info.put("command_workers", commandWorkers.length);
+            info.put("keyspace_shards", Cache.getInstance().getShardCount());
+            long outputLimitDisconnections = 0;
+            for (IOReactor reactor : reactors) {
+                reactor.appendStats(info);
+                outputLimitDisconnections += reactor.getOutputLimitDisconnections();
+            }
+            info.put("client_output_buffer_limit_disconnections", outputLimitDisconnections);
+            info.put("output_buffer_pool_free", bufferPool.getPooledCount());
+            info.put("output_buffer_pool_allocated", bufferPool.getAllocatedCount());
+            if (shardRouter != null) {
+                shardRouter.appendStats(info);
+            }
+            Expiry.appendStats(info);
+            Evictor.appendStats(info);
+        });
+        ServerStats.addProvider("memory", MemoryAccountant::appendInfo);
+
+        replicationHandler = new ReplicationHandler(port, selector, this::queueWriteToMaster, commandExecutor);
         commandExecutor.setReplicationNotifier(replicationHandler);
         replicationHandler.setQueueWriteToSlavesCallback(entry -> queueWriteToClient(entry.getKey(), entry.getValue()));
+        replicationHandler.setSlaveRegisteredCallback(this::onReplicaRegistered);
+        if (shardRouter != null) {
+            shardRouter.setReplicationNotifier(replicationHandler);
+            shardRouter.loadFrom(Cache.getInstance());
+        }
 
         ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
         serverSocketChannel.bind(new InetSocketAddress(port));
@@ -48,7 +109,7 @@ public class EventLoop implements AutoCloseable {
             try {
                 masterChannel = replicationHandler.initiateHandshake();
                 if (masterChannel != null) {
-                    masterReadBuffer = ByteBuffer.allocate(Configs.READ_BUFFER_SIZE);
+                    masterQueryBuffer = new QueryBuffer(Configs.READ_BUFFER_SIZE);
                 }
             } catch (IOException e) {
                 LoggingService.logError("Failed to initiate replication handshake: " + e.getMessage(), e);
@@ -57,18 +118,82 @@ public class EventLoop implements AutoCloseable {
             LoggingService.logInfo("Server is not configured as a slave. Skipping replication handshake.");
         }
 
+        if (multiReactor) {
+            for (IOReactor reactor : reactors) {
+                Thread.ofPlatform().name("io-reactor-" + reactor.getName()).start(reactor);
+            }
+            LoggingService.logInfo("Started " + reactors.length + " I/O reactors.");
+        } else {
+            reactors[0].bindToCurrentThread();
+        }
+
+        if (shardRouter != null) {
+            shardRouter.start();
+        }
 
         LoggingService.logInfo("Starting event loop...");
 
         while (selector.isOpen()) {
-            int readyCount = selector.select(Configs.SELECTOR_WAIT_INTERVAL_MS);
+            // Command workers arm timers without waking the selector, so with workers the wheel is checked
+            // every tick rather than trusting a deadline read before they ran.
+            long timeout = commandWorkers.length > 0
+                    ? Configs.TIMER_TICK_MS
+                    : Math.min(Configs.SELECTOR_WAIT_INTERVAL_MS, timers.millisUntilNextDeadline(System.currentTimeMillis()));
+            int readyCount = timeout == 0 || (!multiReactor && reactors[0].hasPendingWork())
+                    ? selector.selectNow()
+                    : selector.select(timeout);
+            wakeupPending.set(false);
 
             expiry.scanAndExpire();
+            Cache.getInstance().rehashIncrementally();
+            MemoryAccountant.updatePeak();
 
             if (readyCount > 0) {
                 processSelectedKeys();
             }
-            checkBlockedClientTimeouts();
+            runPendingTasks();
+            if (shardRouter != null) {
+                shardRouter.drainCompletions();
+            }
+            commandExecutor.runExclusively(() -> {
+                timers.advance(System.currentTimeMillis());
+                commandExecutor.sendPendingGetAck();
+            });
+            if (!multiReactor) {
+                reactors[0].processPendingInput();
+                reactors[0].clientsCron();
+                reactors[0].handleClientsWithPendingWrites();
+            }
+        }
+    }
+
+    /**
+     * Hands work to the event loop thread, which is the only thread that runs commands unless there are
+     * command workers. Used by the I/O reactors in multi-reactor mode.
+     */
+    private void submitTask(Runnable task) {
+        pendingTasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Wakes the selector unless a wakeup is already pending. Also used by keyspace shards to signal completed
+     * replies.
+     */
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LoggingService.logError("Unexpected error running event loop task", e);
+            }
         }
     }
 
@@ -127,10 +252,15 @@ public class EventLoop implements AutoCloseable {
         }
         try {
             clientChannel.configureBlocking(false);
-            clientChannel.register(selector, SelectionKey.OP_READ);
-            clientReadBuffers.put(clientChannel, ByteBuffer.allocate(Configs.READ_BUFFER_SIZE));
-            clientWriteBuffers.put(clientChannel, new LinkedList<>());
-            LoggingService.logInfo("Client connected: " + clientChannel.getRemoteAddress());
+            IOReactor reactor = reactors[nextReactor];
+            nextReactor = (nextReactor + 1) % reactors.length;
+            clientOwners.put(clientChannel, reactor);
+            if (commandWorkers.length > 0) {
+                reactor.register(clientChannel, commandWorkers[nextCommandWorker]);
+                nextCommandWorker = (nextCommandWorker + 1) % commandWorkers.length;
+            } else {
+                reactor.register(clientChannel);
+            }
         } catch (IOException e) {
             LoggingService.logError("IOException in accept: " + e.getMessage(), e);
             closeSocketChannel(clientChannel);
@@ -143,83 +273,19 @@ public class EventLoop implements AutoCloseable {
         if (channel == masterChannel) {
             handleMasterRead(key);
         } else {
-            handleClientRead(key);
-        }
-    }
-
-    private void handleClientRead(SelectionKey key) {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-        ByteBuffer readBuffer = clientReadBuffers.get(clientChannel);
-
-        if (readBuffer == null) {
-            LoggingService.logError("Client read buffer is null");
-            closeChannel(key);
-            return;
-        }
-
-        int bytesRead;
-        try {
-            LoggingService.logInfo("Reading from client channel: " + clientChannel.getRemoteAddress());
-            bytesRead = clientChannel.read(readBuffer);
-        } catch (IOException e) {
-            LoggingService.logError("Error reading from client channel: " + e.getMessage(), e);
-            closeChannel(key);
-            return;
-        }
-
-        if (bytesRead == -1) {
-            LoggingService.logInfo("EOF reached (client disconnected).");
-            closeChannel(key);
-            return;
-        }
-
-        readBuffer.flip();
-        int commandsProcessed = 0;
-
-        try {
-            while (readBuffer.hasRemaining() && commandsProcessed++ < Configs.MAX_COMMANDS_PER_READ) {
-                int startingPosition = readBuffer.position();
-                List<String> cmdAndArgs = commandParser.parseNextCommand(readBuffer);
-
-                if (cmdAndArgs == null) {
-                    readBuffer.compact();
-                    return;
-                }
-                int bytesConsumed = readBuffer.position() - startingPosition;
-
-                String cmd = cmdAndArgs.getFirst();
-                List<String> args = cmdAndArgs.subList(1, cmdAndArgs.size());
-
-                LoggingService.logInfo(String.format("Client %s: received command '%s', args: %s",
-                        clientChannel.getRemoteAddress(), cmd, args));
-
-                Consumer<String> stringWriter = (String s) -> queueWrite(clientChannel, s);
-                Consumer<byte[]> byteWriter = (byte[] b) -> queueWrite(clientChannel, b);
-
-                commandExecutor.executeCommand(clientChannel, cmd, args, stringWriter, byteWriter, bytesConsumed);
-            }
-        } catch (IOException e) {
-            LoggingService.logError("Protocol parsing error: " + e.getMessage(), e);
-            queueWrite(clientChannel, RESPEncoder.encodeError("ERR protocol error: " + e.getMessage()));
-            closeChannel(key);
-        } catch (Exception e) {
-            LoggingService.logError("Unexpected error during command processing: " + e.getMessage(), e);
-            queueWrite(clientChannel, RESPEncoder.encodeError("ERR internal server error: " + e.getMessage()));
-            closeChannel(key);
-        } finally {
-            if (readBuffer.hasRemaining()) {
-                readBuffer.compact();
-            } else {
-                readBuffer.clear();
-            }
+            reactors[0].handleClientRead(key);
         }
     }
 
+    /**
+     * Reads from the master into a {@link QueryBuffer}, which grows like a client's whenever a frame does not
+     * fit, so commands propagated with large values do not stall the link.
+     */
     private void handleMasterRead(SelectionKey key) {
         SocketChannel channel = (SocketChannel) key.channel();
         int bytesRead;
         try {
-            bytesRead = channel.read(masterReadBuffer);
+            bytesRead = masterQueryBuffer.readFrom(channel);
         } catch (IOException e) {
             LoggingService.logError("Error reading from master channel: " + e.getMessage(), e);
             replicationHandler.onReadError(channel, e);
@@ -234,13 +300,17 @@ public class EventLoop implements AutoCloseable {
             return;
         }
 
-        masterReadBuffer.flip();
-        replicationHandler.onRead(channel, masterReadBuffer);
-        if (masterReadBuffer.hasRemaining()) {
-            masterReadBuffer.compact();
-        } else {
-            masterReadBuffer.clear();
+        replicationHandler.onRead(channel, masterQueryBuffer.beginParse());
+        masterQueryBuffer.endParse();
+        try {
+            masterQueryBuffer.expectCommandOfLength(replicationHandler.getPendingMessageLength());
+        } catch (IOException e) {
+            LoggingService.logError("Error reading from master channel: " + e.getMessage(), e);
+            replicationHandler.onReadError(channel, e);
+            closeChannel(key);
+            return;
         }
+        masterQueryBuffer.shrinkIfIdle(System.currentTimeMillis());
     }
 
     private void handleWrite(SelectionKey key) throws IOException {
@@ -249,26 +319,10 @@ public class EventLoop implements AutoCloseable {
         if (channel == masterChannel) {
             handleMasterWrite(key);
         } else {
-            handleClientWrite(key);
+            reactors[0].handleClientWrite(key);
         }
     }
 
-    private void handleClientWrite(SelectionKey key) throws IOException {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-        Queue<ByteBuffer> writeQueue = clientWriteBuffers.get(clientChannel);
-
-        while (writeQueue != null && !writeQueue.isEmpty()) {
-            ByteBuffer buffer = writeQueue.peek();
-            clientChannel.write(buffer);
-            if (buffer.hasRemaining()) {
-                return;
-            }
-            writeQueue.poll();
-        }
-
-        key.interestOps(SelectionKey.OP_READ);
-    }
-
     private void handleMasterWrite(SelectionKey key) throws IOException {
         SocketChannel channel = (SocketChannel) key.channel();
 
@@ -285,38 +339,6 @@ public class EventLoop implements AutoCloseable {
         replicationHandler.onWriteCompleted(channel);
     }
 
-    private void queueWrite(SocketChannel channel, String response) {
-        Queue<ByteBuffer> writeQueue = clientWriteBuffers.get(channel);
-        if (writeQueue == null) {
-            LoggingService.logError("Write queue missing for client: " + channel);
-            return;
-        }
-
-        writeQueue.add(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)));
-
-        SelectionKey key = channel.keyFor(selector);
-        if (key != null && key.isValid()) {
-            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-            selector.wakeup();
-        }
-    }
-
-    private void queueWrite(SocketChannel channel, byte[] response) {
-        Queue<ByteBuffer> writeQueue = clientWriteBuffers.get(channel);
-        if (writeQueue == null) {
-            LoggingService.logError("Write queue missing for client: " + channel);
-            return;
-        }
-
-        writeQueue.add(ByteBuffer.wrap(response));
-
-        SelectionKey key = channel.keyFor(selector);
-        if (key != null && key.isValid()) {
-            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-            selector.wakeup();
-        }
-    }
-
     private void queueWriteToMaster(ByteBuffer buffer) {
         if (masterChannel == null || !masterChannel.isConnected()) {
             LoggingService.logError("Attempted to queue write to master, but master channel is not connected.", null);
@@ -332,55 +354,45 @@ public class EventLoop implements AutoCloseable {
     }
 
     private void queueWriteToClient(SocketChannel channel, ByteBuffer buffer) {
-        Queue<ByteBuffer> writeQueue = clientWriteBuffers.get(channel);
-        if (writeQueue == null) {
+        IOReactor reactor = clientOwners.get(channel);
+        if (reactor == null) {
             LoggingService.logError("Write queue missing for client: " + channel);
             return;
         }
+        reactor.queueWrite(channel, buffer);
+    }
 
-        writeQueue.add(buffer);
-
-        SelectionKey key = channel.keyFor(selector);
-        if (key != null && key.isValid()) {
-            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-            selector.wakeup();
+    private void onReplicaRegistered(SocketChannel channel) {
+        IOReactor reactor = clientOwners.get(channel);
+        if (reactor != null) {
+            reactor.setClientClass(channel, ClientOutputLimits.ClientClass.REPLICA);
         }
     }
 
-    private ByteBuffer queueReadForMaster() {
-        return masterReadBuffer;
+    private void onClientClosed(SocketChannel channel) {
+        clientOwners.remove(channel);
+        replicationHandler.removeConnectedSlave(channel);
     }
 
-    private void checkBlockedClientTimeouts() {
-        long now = System.currentTimeMillis();
-        for (List<BlockedClient> clients : commandExecutor.blockedClientsPerStream.values()) {
-            Iterator<BlockedClient> iter = clients.iterator();
-            while (iter.hasNext()) {
-                BlockedClient bc = iter.next();
-                if (now >= bc.unblockAt()) {
-                    bc.stringWriter().accept(RESPEncoder.encodeNull());
-                    iter.remove();
-                }
+    private void closeChannel(SelectionKey key) {
+        SelectableChannel channel = key.channel();
+        key.cancel();
+        if (channel instanceof SocketChannel socketChannel) {
+            IOReactor reactor = clientOwners.get(socketChannel);
+            if (reactor != null) {
+                reactor.closeClient(socketChannel);
+            } else {
+                closeSocketChannel(socketChannel);
             }
-        }
-        for (List<BlockedClient> clients : commandExecutor.blockedClientsPerList.values()) {
-            Iterator<BlockedClient> iter = clients.iterator();
-            while (iter.hasNext()) {
-                BlockedClient bc = iter.next();
-                if (now >= bc.unblockAt()) {
-                    bc.stringWriter().accept(RESPEncoder.encodeNull());
-                    iter.remove();
-                }
+        } else {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LoggingService.logError("Error closing channel", e);
             }
         }
     }
 
-    private void closeChannel(SelectionKey key) {
-        SocketChannel channel = (SocketChannel) key.channel();
-        key.cancel();
-        closeSocketChannel(channel);
-    }
-
     private void closeSocketChannel(SocketChannel channel) {
         try {
             LoggingService.logInfo("Closing connection: " + channel.getRemoteAddress());
@@ -394,13 +406,11 @@ public class EventLoop implements AutoCloseable {
         } finally {
             if (channel == masterChannel) {
                 masterChannel = null;
-                masterReadBuffer = null;
+                masterQueryBuffer = null;
                 masterWriteQueue.clear();
                 replicationHandler.onMasterDisconnected(channel);
             } else {
-                clientReadBuffers.remove(channel);
-                clientWriteBuffers.remove(channel);
-                replicationHandler.removeConnectedSlave(channel);
+                onClientClosed(channel);
             }
         }
     }
@@ -408,8 +418,24 @@ public class EventLoop implements AutoCloseable {
     @Override
     public void close() throws Exception {
         LoggingService.logInfo("Shutting down event loop...");
+        for (IOReactor reactor : reactors) {
+            reactor.close();
+        }
+        if (shardRouter != null) {
+            shardRouter.close();
+        }
+        for (ExecutorService worker : commandWorkers) {
+            worker.shutdown();
+        }
+        for (ExecutorService worker : commandWorkers) {
+            if (!worker.awaitTermination(Configs.REACTOR_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                worker.shutdownNow();
+            }
+        }
         for (SelectionKey key : new HashSet<>(selector.keys())) {
-            closeChannel(key);
+            if (key.isValid()) {
+                closeChannel(key);
+            }
         }
         selector.close();
     }
@@ -0,0 +1,88 @@
+/**
+ * The {@code maxmemory-policy} values: which keys {@link Evictor} removes once the keyspace is over
+ * {@code maxmemory}.
+ * <p>
+ * Every policy but the random ones ranks sampled keys by {@link #score}, higher first: idle time for LRU,
+ * the inverse of the access frequency for LFU, and how soon the key expires for volatile-ttl.
+ */
+public enum EvictionPolicy {
+    NOEVICTION("noeviction", false),
+    ALLKEYS_LRU("allkeys-lru", false) {
+        @Override
+        long score(Cache.Value value, long now) {
+            return Cache.Value.idleMillis(value.getAccess());
+        }
+    },
+    VOLATILE_LRU("volatile-lru", true) {
+        @Override
+        long score(Cache.Value value, long now) {
+            return ALLKEYS_LRU.score(value, now);
+        }
+    },
+    ALLKEYS_LFU("allkeys-lfu", false) {
+        @Override
+        long score(Cache.Value value, long now) {
+            return 255 - Cache.Value.lfuDecayedCounter(value.getAccess());
+        }
+    },
+    VOLATILE_LFU("volatile-lfu", true) {
+        @Override
+        long score(Cache.Value value, long now) {
+            return ALLKEYS_LFU.score(value, now);
+        }
+    },
+    VOLATILE_TTL("volatile-ttl", true) {
+        @Override
+        long score(Cache.Value value, long now) {
+            return Long.MAX_VALUE - value.getExpiresAt();
+        }
+    },
+    ALLKEYS_RANDOM("allkeys-random", false),
+    VOLATILE_RANDOM("volatile-random", true);
+
+    private final String configName;
+    private final boolean volatileOnly;
+
+    EvictionPolicy(String configName, boolean volatileOnly) {
+        this.configName = configName;
+        this.volatileOnly = volatileOnly;
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    /**
+     * @return true if only keys with an expiration time may be evicted
+     */
+    public boolean isVolatileOnly() {
+        return volatileOnly;
+    }
+
+    public boolean isLfu() {
+        return this == ALLKEYS_LFU || this == VOLATILE_LFU;
+    }
+
+    public boolean isRandom() {
+        return this == ALLKEYS_RANDOM || this == VOLATILE_RANDOM;
+    }
+
+    /**
+     * @return how strongly a key should be evicted, higher first; unused by the random policies
+     */
+    long score(Cache.Value value, long now) {
+        return 0;
+    }
+
+    /**
+     * @return the policy named {@code name} in any letter case, or null
+     */
+    public static EvictionPolicy fromConfigName(String name) {
+        for (EvictionPolicy policy : values()) {
+            if (policy.configName.equalsIgnoreCase(name.trim())) {
+                return policy;
+            }
+        }
+        return null;
+    }
+}
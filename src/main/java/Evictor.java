@@ -0,0 +1,246 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a cache under {@code maxmemory} by evicting keys before write commands, after Redis's
+ * performEvictions.
+ * <p>
+ * Memory is {@link MemoryAccountant}'s estimate of the cache's keys, values and tables, and the limit is split
+ * evenly between keyspace shard partitions.
+ * While it is over the limit, each round samples {@code maxmemory-samples} keys from every shard into a pool
+ * of the {@link Configs#EVICTION_POOL_SIZE} best candidates seen so far, ranked by the
+ * {@link EvictionPolicy}, and evicts the best one that is still in place. The pool carries over between
+ * rounds, so candidates improve over time without sampling more keys per round. A run stops after
+ * {@link Configs#EVICTION_TIME_LIMIT_US} and lets the command through, so one write never stalls for long;
+ * the next write continues.
+ * <p>
+ * The configuration is read again whenever {@code maxmemory} or {@code maxmemory-policy} are changed with
+ * CONFIG SET. Evictions are serialized; each shard is locked only to sample it or remove one key.
+ */
+public class Evictor {
+    private static final List<Evictor> instances = new CopyOnWriteArrayList<>();
+
+    private final Cache cache;
+    private final Consumer<ByteString> onEvicted;
+
+    private final ByteString[] poolKeys = new ByteString[Configs.EVICTION_POOL_SIZE];
+    private final Cache.Value[] poolValues = new Cache.Value[Configs.EVICTION_POOL_SIZE];
+    private final int[] poolShards = new int[Configs.EVICTION_POOL_SIZE];
+    private final long[] poolScores = new long[Configs.EVICTION_POOL_SIZE];
+    private int poolSize = 0;
+
+    private volatile String configuredMaxmemory;
+    private volatile String configuredPolicy;
+    private volatile long maxmemory = 0;
+    private volatile EvictionPolicy policy = EvictionPolicy.NOEVICTION;
+    private volatile long evictedKeys = 0;
+
+    private Evictor(Cache cache, Consumer<ByteString> onEvicted) {
+        this.cache = cache;
+        this.onEvicted = onEvicted;
+        refreshConfig();
+    }
+
+    /**
+     * @param onEvicted called with each evicted key while its shard is still locked, to propagate the
+     *                  deletion to replicas
+     * @return an evictor for {@code cache}, counted in the INFO stats of every evictor
+     */
+    public static Evictor create(Cache cache, Consumer<ByteString> onEvicted) {
+        Evictor evictor = new Evictor(cache, onEvicted);
+        instances.add(evictor);
+        return evictor;
+    }
+
+    /**
+     * Evicts keys until the cache is under {@code maxmemory}, or the time limit is hit.
+     *
+     * @return false if the cache is over the limit and nothing can be evicted, so the write must be refused
+     */
+    public boolean makeRoom() {
+        refreshConfig();
+        if (maxmemory == 0) {
+            return true;
+        }
+        long limit = maxmemory / cache.getPartitions();
+        if (cache.usedMemory() <= limit) {
+            return true;
+        }
+        if (policy == EvictionPolicy.NOEVICTION) {
+            return false;
+        }
+        synchronized (this) {
+            if (policy == EvictionPolicy.NOEVICTION) {
+                return false;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(Configs.EVICTION_TIME_LIMIT_US);
+            while (cache.usedMemory() > limit) {
+                if (!evictOne()) {
+                    return false;
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies a changed configuration. The check is lock-free; the update takes the evictor's lock, since it
+     * empties the pool another thread may be evicting from.
+     */
+    private void refreshConfig() {
+        // Configuration strings are replaced, never mutated, so identity tells whether they changed.
+        if (Configs.getConfiguration("maxmemory") == configuredMaxmemory
+                && Configs.getConfiguration("maxmemory-policy") == configuredPolicy) {
+            return;
+        }
+        synchronized (this) {
+            applyConfig();
+        }
+    }
+
+    private void applyConfig() {
+        String maxmemoryValue = Configs.getConfiguration("maxmemory");
+        String policyValue = Configs.getConfiguration("maxmemory-policy");
+        if (maxmemoryValue == configuredMaxmemory && policyValue == configuredPolicy) {
+            return;
+        }
+        maxmemory = Configs.getMemoryConfiguration("maxmemory", 0);
+        EvictionPolicy configured = policyValue == null ? EvictionPolicy.NOEVICTION : EvictionPolicy.fromConfigName(policyValue);
+        if (configured == null) {
+            LoggingService.logWarn("Invalid maxmemory-policy: " + policyValue + ". Using " + policy.getConfigName());
+            configured = policy;
+        }
+        if (configured != policy) {
+            poolSize = 0;
+        }
+        policy = configured;
+        cache.setLfu(configured.isLfu());
+        // Published last, so a thread that sees them unchanged also sees the limit and policy they stand for.
+        configuredMaxmemory = maxmemoryValue;
+        configuredPolicy = policyValue;
+    }
+
+    private boolean evictOne() {
+        return policy.isRandom() ? evictRandom() : evictFromPool();
+    }
+
+    private boolean evictRandom() {
+        int shards = cache.getShardCount();
+        int first = ThreadLocalRandom.current().nextInt(shards);
+        for (int i = 0; i < shards; i++) {
+            int shard = (first + i) % shards;
+            cache.lockShards(1L << shard, true);
+            try {
+                ByteString[] key = new ByteString[1];
+                Cache.Value[] value = new Cache.Value[1];
+                // A sample walks a few buckets from a random one, which may all be empty in a sparse table.
+                for (int attempt = 0; key[0] == null && attempt < Configs.EVICTION_RANDOM_ATTEMPTS; attempt++) {
+                    cache.sampleKeys(shard, policy.isVolatileOnly(), 1, (k, v) -> {
+                        key[0] = k;
+                        value[0] = v;
+                    });
+                }
+                if (key[0] != null && cache.evict(shard, key[0], value[0])) {
+                    evicted(key[0]);
+                    return true;
+                }
+            } finally {
+                cache.unlockShards(1L << shard, true);
+            }
+        }
+        return false;
+    }
+
+    private boolean evictFromPool() {
+        int samples = Math.max(1, Configs.getIntConfiguration("maxmemory-samples", Configs.DEFAULT_MAXMEMORY_SAMPLES));
+        long now = System.currentTimeMillis();
+        for (int shard = 0; shard < cache.getShardCount(); shard++) {
+            int sampledShard = shard;
+            cache.lockShards(1L << shard, false);
+            try {
+                cache.sampleKeys(shard, policy.isVolatileOnly(), samples,
+                        (key, value) -> offer(key, value, sampledShard, policy.score(value, now)));
+            } finally {
+                cache.unlockShards(1L << shard, false);
+            }
+        }
+        // Best candidates are at the end of the pool; skip those deleted or overwritten since they were sampled.
+        while (poolSize > 0) {
+            int last = --poolSize;
+            ByteString key = poolKeys[last];
+            Cache.Value value = poolValues[last];
+            int shard = poolShards[last];
+            poolKeys[last] = null;
+            poolValues[last] = null;
+            cache.lockShards(1L << shard, true);
+            try {
+                if (cache.evict(shard, key, value)) {
+                    evicted(key);
+                    return true;
+                }
+            } finally {
+                cache.unlockShards(1L << shard, true);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Inserts a candidate into the pool, kept in ascending score order, dropping the worst one when full.
+     */
+    private void offer(ByteString key, Cache.Value value, int shard, long score) {
+        for (int i = 0; i < poolSize; i++) {
+            if (poolValues[i] == value) {
+                return;
+            }
+        }
+        int position = 0;
+        while (position < poolSize && poolScores[position] < score) {
+            position++;
+        }
+        if (poolSize == poolKeys.length) {
+            if (position == 0) {
+                return;
+            }
+            position--;
+            System.arraycopy(poolKeys, 1, poolKeys, 0, position);
+            System.arraycopy(poolValues, 1, poolValues, 0, position);
+            System.arraycopy(poolShards, 1, poolShards, 0, position);
+            System.arraycopy(poolScores, 1, poolScores, 0, position);
+        } else {
+            System.arraycopy(poolKeys, position, poolKeys, position + 1, poolSize - position);
+            System.arraycopy(poolValues, position, poolValues, position + 1, poolSize - position);
+            System.arraycopy(poolShards, position, poolShards, position + 1, poolSize - position);
+            System.arraycopy(poolScores, position, poolScores, position + 1, poolSize - position);
+            poolSize++;
+        }
+        poolKeys[position] = key;
+        poolValues[position] = value;
+        poolShards[position] = shard;
+        poolScores[position] = score;
+    }
+
+    private void evicted(ByteString key) {
+        evictedKeys++;
+        LoggingService.logFine(() -> "Evicted key '" + key + "' under maxmemory-policy " + policy.getConfigName());
+        onEvicted.accept(key);
+    }
+
+    /**
+     * Adds the eviction figures of every cache's evictor to the INFO stats section.
+     */
+    public static void appendStats(Map<String, Object> info) {
+        long evicted = 0;
+        for (Evictor evictor : instances) {
+            evicted += evictor.evictedKeys;
+        }
+        info.put("evicted_keys", evicted);
+    }
+}
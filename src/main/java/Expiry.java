@@ -1,24 +1,179 @@
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Active expiry, after Redis's adaptive expire cycle.
+ * <p>
+ * Every {@link Configs#EXPIRY_SCAN_INTERVAL_MS} a slow cycle first drains each shard's {@link ExpiryIndex}
+ * of the keys whose deadline passed, in batches of {@link Configs#EXPIRY_INDEX_BATCH}, which costs in
+ * proportion to the keys expired rather than to the keys with an expiration time. It then takes
+ * {@link Configs#EXPIRY_SAMPLE_KEYS} keys with an expiration time from each shard, removes the expired ones,
+ * and takes more from the same shard while more than {@link Configs#EXPIRY_ACCEPTABLE_STALE_PERCENT} percent
+ * of a sample had expired. Samples continue a cursor scan of the shard's volatile keys, so every key is
+ * checked in turn rather than at random.
+ * A cycle stops at its time budget, {@link Configs#EXPIRY_CYCLE_BUDGET_PERCENT} percent of the interval,
+ * raised up to {@link Configs#EXPIRY_CYCLE_MAX_BUDGET_PERCENT} as memory usage climbs past
+ * {@link Configs#EXPIRY_MEMORY_PRESSURE_THRESHOLD}, since expired keys are memory that can be reclaimed.
+ * Usage is {@link MemoryAccountant}'s estimate over {@code maxmemory}, or the heap's occupancy when no
+ * limit is set.
+ * When a cycle ran out of time or found many stale keys, short fast cycles run between the slow ones.
+ * <p>
+ * Each shard is locked for one batch or sample at a time, so commands keep running in between.
+ */
 public class Expiry {
-    private final Cache cache = Cache.getInstance();
+    private static final List<Expiry> instances = new CopyOnWriteArrayList<>();
+
+    private final Cache cache;
+    private final long[] cursors;
+    private int nextShard = 0;
     private long lastScan = 0L;
+    private long lastFastCycleEnd = 0L;
+    private boolean lastCycleTimedOut = false;
+
+    private volatile long expiredKeys = 0;
+    private volatile long timeCapReachedCount = 0;
+    private volatile long cycleNanos = 0;
+    private volatile long lastCycleNanos = 0;
+    /** Running estimate of the percentage of sampled keys found expired. */
+    private volatile double stalePercent = 0;
+
+    private Expiry(Cache cache) {
+        this.cache = cache;
+        this.cursors = new long[cache.getShardCount()];
+    }
+
+    /**
+     * @return the active expiry of {@code cache}, counted in the INFO stats of every instance
+     */
+    public static Expiry create(Cache cache) {
+        Expiry expiry = new Expiry(cache);
+        instances.add(expiry);
+        return expiry;
+    }
 
     public void scanAndExpire() {
         long now = System.currentTimeMillis();
-        if ((now - lastScan) < Configs.EXPIRY_SCAN_INTERVAL_MS) {
+        if ((now - lastScan) >= Configs.EXPIRY_SCAN_INTERVAL_MS) {
+            lastScan = now;
+            runCycle(TimeUnit.MILLISECONDS.toNanos(Configs.EXPIRY_SCAN_INTERVAL_MS) * budgetPercent() / 100);
             return;
         }
-        lastScan = now;
-
-        Iterator<Map.Entry<String, Long>> it = cache.expirableIterator();
-        while (it.hasNext()) {
-            Map.Entry<String, Long> entry = it.next();
-            if (entry.getValue() <= now) {
-                cache.expired(entry.getKey());
-                it.remove();
+        long fastCycleNanos = TimeUnit.MICROSECONDS.toNanos(Configs.EXPIRY_FAST_CYCLE_US);
+        if ((lastCycleTimedOut || stalePercent > Configs.EXPIRY_ACCEPTABLE_STALE_PERCENT)
+                && System.nanoTime() - lastFastCycleEnd >= 2 * fastCycleNanos) {
+            runCycle(fastCycleNanos);
+            lastFastCycleEnd = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return the share of the scan interval a slow cycle may take, escalated under memory pressure
+     */
+    private static long budgetPercent() {
+        double used = memoryUsage();
+        if (used <= Configs.EXPIRY_MEMORY_PRESSURE_THRESHOLD) {
+            return Configs.EXPIRY_CYCLE_BUDGET_PERCENT;
+        }
+        double pressure = Math.min(1, (used - Configs.EXPIRY_MEMORY_PRESSURE_THRESHOLD) / (1 - Configs.EXPIRY_MEMORY_PRESSURE_THRESHOLD));
+        return Configs.EXPIRY_CYCLE_BUDGET_PERCENT
+                + Math.round((Configs.EXPIRY_CYCLE_MAX_BUDGET_PERCENT - Configs.EXPIRY_CYCLE_BUDGET_PERCENT) * pressure);
+    }
+
+    /**
+     * @return the fraction of {@code maxmemory} the keyspace takes, or without a limit of the heap in use
+     */
+    private static double memoryUsage() {
+        long maxmemory = Configs.getMemoryConfiguration("maxmemory", 0);
+        if (maxmemory > 0) {
+            return (double) MemoryAccountant.usedMemory() / maxmemory;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+    }
+
+    private void runCycle(long budgetNanos) {
+        long start = System.nanoTime();
+        long deadline = start + budgetNanos;
+        long sampledTotal = 0;
+        long sampledExpired = 0;
+        long expiredTotal = 0;
+        boolean timedOut = false;
+
+        int shardCount = cursors.length;
+        for (int visited = 0; visited < shardCount && !timedOut; visited++) {
+            int shard = nextShard;
+            nextShard = (nextShard + 1) % shardCount;
+            Cache.ExpireBatch due;
+            do {
+                long now = System.currentTimeMillis();
+                cache.lockShards(1L << shard, true);
+                try {
+                    due = cache.expireDue(shard, now, Configs.EXPIRY_INDEX_BATCH);
+                } finally {
+                    cache.unlockShards(1L << shard, true);
+                }
+                expiredTotal += due.expired();
+                if (System.nanoTime() - deadline >= 0) {
+                    timedOut = true;
+                }
+            } while (due.checked() == Configs.EXPIRY_INDEX_BATCH && !timedOut);
+            if (timedOut || cache.volatileKeyCount(shard) == 0) {
+                continue;
             }
+            Cache.ExpireBatch sample;
+            do {
+                long now = System.currentTimeMillis();
+                cache.lockShards(1L << shard, true);
+                try {
+                    sample = cache.expireSample(shard, cursors[shard], Configs.EXPIRY_SAMPLE_KEYS, now);
+                } finally {
+                    cache.unlockShards(1L << shard, true);
+                }
+                cursors[shard] = sample.cursor();
+                sampledTotal += sample.checked();
+                sampledExpired += sample.expired();
+                expiredTotal += sample.expired();
+                if (System.nanoTime() - deadline >= 0) {
+                    timedOut = true;
+                    break;
+                }
+            } while (sample.checked() > 0 && sample.expired() * 100 > sample.checked() * Configs.EXPIRY_ACCEPTABLE_STALE_PERCENT);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        lastCycleTimedOut = timedOut;
+        lastCycleNanos = elapsed;
+        cycleNanos += elapsed;
+        expiredKeys += expiredTotal;
+        if (timedOut) {
+            timeCapReachedCount++;
+        }
+        double cycleStalePercent = sampledTotal == 0 ? 0 : sampledExpired * 100.0 / sampledTotal;
+        stalePercent = cycleStalePercent * 0.05 + stalePercent * 0.95;
+    }
+
+    /**
+     * Adds the expiry figures of every cache's expiry to the INFO stats section.
+     */
+    public static void appendStats(Map<String, Object> info) {
+        long expired = 0;
+        long timeCapReached = 0;
+        long totalNanos = 0;
+        long lastNanos = 0;
+        double stale = 0;
+        for (Expiry expiry : instances) {
+            expired += expiry.expiredKeys;
+            timeCapReached += expiry.timeCapReachedCount;
+            totalNanos += expiry.cycleNanos;
+            lastNanos = Math.max(lastNanos, expiry.lastCycleNanos);
+            stale += expiry.stalePercent;
         }
+        info.put("expired_keys", expired);
+        info.put("expired_stale_perc", String.format("%.2f", instances.isEmpty() ? 0 : stale / instances.size()));
+        info.put("expired_time_cap_reached_count", timeCapReached);
+        info.put("expire_cycle_cpu_milliseconds", TimeUnit.NANOSECONDS.toMillis(totalNanos));
+        info.put("expire_cycle_last_microseconds", TimeUnit.NANOSECONDS.toMicros(lastNanos));
     }
 }
@@ -0,0 +1,137 @@
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keys with an expiration time ordered by deadline, so expired keys can be found without looking at the
+ * keys that have not expired.
+ * <p>
+ * Deadlines are bucketed into slots of {@code 2^SLOT_BITS} milliseconds kept in deadline order; a slot holds
+ * its keys and deadlines in flat arrays. Draining takes whole slots that ended before now, and from the slot
+ * now falls in only the entries already due, so reclaiming N keys costs O(N) plus one partial slot.
+ * <p>
+ * Entries are never removed when a key is deleted or its expiration time changes: the consumer of
+ * {@link #drain} checks each entry against the key's current deadline. Callers add a key again only when its
+ * deadline moves earlier than the one it is indexed under; a key whose deadline moved later is re-filed when
+ * its old entry comes due, so a key touched often with a sliding expiration time keeps a single entry.
+ */
+public final class ExpiryIndex {
+    private static final int SLOT_BITS = 6;
+    private static final int INITIAL_SLOT_ENTRIES = 8;
+
+    private static final class Slot {
+        ByteString[] keys = new ByteString[INITIAL_SLOT_ENTRIES];
+        long[] deadlines = new long[INITIAL_SLOT_ENTRIES];
+        /** Entries before {@code next} were drained already. */
+        int next = 0;
+        int count = 0;
+
+        void add(ByteString key, long deadline) {
+            if (count == keys.length) {
+                int capacity = keys.length * 2;
+                ByteString[] grownKeys = new ByteString[capacity];
+                long[] grownDeadlines = new long[capacity];
+                System.arraycopy(keys, next, grownKeys, 0, count - next);
+                System.arraycopy(deadlines, next, grownDeadlines, 0, count - next);
+                keys = grownKeys;
+                deadlines = grownDeadlines;
+                count -= next;
+                next = 0;
+            }
+            keys[count] = key;
+            deadlines[count++] = deadline;
+        }
+    }
+
+    /**
+     * Decides what becomes of an entry that came due.
+     */
+    @FunctionalInterface
+    public interface DueEntryHandler {
+        /**
+         * @return a later deadline to re-file the entry under, or 0 to drop it
+         */
+        long onDue(ByteString key, long deadline);
+    }
+
+    private final TreeMap<Long, Slot> slots = new TreeMap<>();
+    private int size = 0;
+
+    public void add(ByteString key, long deadline) {
+        slots.computeIfAbsent(deadline >> SLOT_BITS, _ -> new Slot()).add(key, deadline);
+        size++;
+    }
+
+    /**
+     * @return the number of entries, stale ones included
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        slots.clear();
+        size = 0;
+    }
+
+    /**
+     * Removes up to {@code limit} entries whose deadline is at or before {@code now}, earliest slots first,
+     * and passes each to {@code handler}. Entries the handler gives a deadline after {@code now} are added
+     * again under it once the drain is over.
+     *
+     * @return the number of entries removed; less than {@code limit} once no entry is due
+     */
+    public int drain(long now, int limit, DueEntryHandler handler) {
+        Slot refiled = new Slot();
+        int drained = 0;
+        while (drained < limit && !slots.isEmpty()) {
+            Map.Entry<Long, Slot> first = slots.firstEntry();
+            long slotStart = first.getKey() << SLOT_BITS;
+            if (slotStart > now) {
+                break;
+            }
+            Slot slot = first.getValue();
+            if (slotStart + (1L << SLOT_BITS) - 1 <= now) {
+                while (slot.next < slot.count && drained < limit) {
+                    handle(handler, slot.keys[slot.next], slot.deadlines[slot.next], now, refiled);
+                    slot.keys[slot.next++] = null;
+                    drained++;
+                }
+                if (slot.next == slot.count) {
+                    slots.pollFirstEntry();
+                }
+                continue;
+            }
+            // The slot now falls in: take the entries already due and keep the rest. No later slot is due.
+            int kept = slot.next;
+            for (int i = slot.next; i < slot.count; i++) {
+                if (slot.deadlines[i] <= now && drained < limit) {
+                    handle(handler, slot.keys[i], slot.deadlines[i], now, refiled);
+                    drained++;
+                } else {
+                    slot.keys[kept] = slot.keys[i];
+                    slot.deadlines[kept++] = slot.deadlines[i];
+                }
+            }
+            for (int i = kept; i < slot.count; i++) {
+                slot.keys[i] = null;
+            }
+            slot.count = kept;
+            if (slot.next == slot.count) {
+                slots.pollFirstEntry();
+            }
+            break;
+        }
+        size -= drained;
+        for (int i = 0; i < refiled.count; i++) {
+            add(refiled.keys[i], refiled.deadlines[i]);
+        }
+        return drained;
+    }
+
+    private static void handle(DueEntryHandler handler, ByteString key, long deadline, long now, Slot refiled) {
+        long later = handler.onDue(key, deadline);
+        if (later > now) {
+            refiled.add(key, later);
+        }
+    }
+}
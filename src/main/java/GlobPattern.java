@@ -0,0 +1,255 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A Redis glob pattern compiled for matching keys byte by byte, with the semantics of Redis's
+ * stringmatchlen: {@code *} matches any run of bytes, {@code /} included, {@code ?} any one byte,
+ * {@code [abc]}, {@code [a-z]} and {@code [^abc]} one byte of a set, and {@code \} makes the next byte
+ * literal. An unterminated {@code [} set ends with the pattern.
+ * <p>
+ * Every element but {@code *} consumes exactly one byte, so a mismatch after a star only needs to retry from
+ * the last star one byte further on: matching costs at most the key length times the pattern length, where
+ * a backtracking matcher can take exponential time on patterns such as {@code *a*a*a*b}. Patterns that are a
+ * literal, a literal followed by {@code *}, or {@code *} followed by a literal, compare bytes directly.
+ * <p>
+ * {@link #compile} keeps the most recently used patterns, so a client repeating KEYS or SCAN with the same
+ * pattern does not parse it again. Instances are immutable and shared between threads.
+ */
+public final class GlobPattern {
+    private enum Shape { ALL, LITERAL, PREFIX, SUFFIX, GENERAL }
+
+    private static final byte STAR = 0;
+    private static final byte ANY = 1;
+    private static final byte BYTE = 2;
+    private static final byte SET = 3;
+
+    private static final Map<ByteString, GlobPattern> compiled = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteString, GlobPattern> eldest) {
+            return size() > Configs.GLOB_PATTERN_CACHE_SIZE;
+        }
+    };
+
+    private final Shape shape;
+    /** The literal bytes of the LITERAL, PREFIX and SUFFIX shapes. */
+    private final byte[] literal;
+    /** The elements of the GENERAL shape: STAR, ANY, BYTE or SET. */
+    private final byte[] kinds;
+    /** For a BYTE element the byte; for a SET element the index of its bitmap in {@code sets}. */
+    private final int[] operands;
+    /** 256-bit membership bitmaps of the SET elements, four longs each. */
+    private final long[] sets;
+
+    private GlobPattern(Shape shape, byte[] literal, byte[] kinds, int[] operands, long[] sets) {
+        this.shape = shape;
+        this.literal = literal;
+        this.kinds = kinds;
+        this.operands = operands;
+        this.sets = sets;
+    }
+
+    /**
+     * @return the compiled form of {@code pattern}, from the cache of recent patterns when present
+     */
+    public static GlobPattern compile(ByteString pattern) {
+        synchronized (compiled) {
+            GlobPattern cached = compiled.get(pattern);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        GlobPattern glob = parse(pattern.getBytes());
+        synchronized (compiled) {
+            compiled.put(pattern.compact(), glob);
+        }
+        return glob;
+    }
+
+    private static GlobPattern parse(byte[] pattern) {
+        byte[] kinds = new byte[pattern.length];
+        int[] operands = new int[pattern.length];
+        long[] sets = new long[0];
+        int count = 0;
+        int setCount = 0;
+        int i = 0;
+        while (i < pattern.length) {
+            byte b = pattern[i++];
+            switch (b) {
+                case '*' -> {
+                    // Consecutive stars match like one.
+                    if (count == 0 || kinds[count - 1] != STAR) {
+                        kinds[count++] = STAR;
+                    }
+                }
+                case '?' -> kinds[count++] = ANY;
+                case '[' -> {
+                    if (sets.length < (setCount + 1) * 4) {
+                        sets = Arrays.copyOf(sets, Math.max(8, sets.length * 2));
+                    }
+                    i = parseSet(pattern, i, sets, setCount * 4);
+                    kinds[count] = SET;
+                    operands[count++] = setCount++;
+                }
+                case '\\' -> {
+                    kinds[count] = BYTE;
+                    operands[count++] = (i < pattern.length ? pattern[i++] : b) & 0xFF;
+                }
+                default -> {
+                    kinds[count] = BYTE;
+                    operands[count++] = b & 0xFF;
+                }
+            }
+        }
+        kinds = Arrays.copyOf(kinds, count);
+        operands = Arrays.copyOf(operands, count);
+        return shaped(kinds, operands, Arrays.copyOf(sets, setCount * 4));
+    }
+
+    /**
+     * Reads the set starting after a {@code [} at {@code i} into the bitmap at {@code offset} of {@code sets}.
+     *
+     * @return the index after the closing {@code ]}, or the pattern length if there is none
+     */
+    private static int parseSet(byte[] pattern, int i, long[] sets, int offset) {
+        boolean negated = i < pattern.length && pattern[i] == '^';
+        if (negated) {
+            i++;
+        }
+        while (i < pattern.length && pattern[i] != ']') {
+            if (pattern[i] == '\\' && i + 1 < pattern.length) {
+                addRange(sets, offset, pattern[i + 1] & 0xFF, pattern[i + 1] & 0xFF);
+                i += 2;
+            } else if (i + 2 < pattern.length && pattern[i + 1] == '-') {
+                int start = pattern[i] & 0xFF;
+                int end = pattern[i + 2] & 0xFF;
+                addRange(sets, offset, Math.min(start, end), Math.max(start, end));
+                i += 3;
+            } else {
+                addRange(sets, offset, pattern[i] & 0xFF, pattern[i] & 0xFF);
+                i++;
+            }
+        }
+        if (negated) {
+            for (int word = offset; word < offset + 4; word++) {
+                sets[word] = ~sets[word];
+            }
+        }
+        return Math.min(i + 1, pattern.length);
+    }
+
+    private static void addRange(long[] sets, int offset, int start, int end) {
+        for (int b = start; b <= end; b++) {
+            sets[offset + (b >>> 6)] |= 1L << b;
+        }
+    }
+
+    /**
+     * Picks the direct comparison a pattern of only bytes, with at most one star at either end, allows.
+     */
+    private static GlobPattern shaped(byte[] kinds, int[] operands, long[] sets) {
+        int first = 0;
+        int last = kinds.length;
+        boolean leadingStar = last > 0 && kinds[0] == STAR;
+        boolean trailingStar = last > (leadingStar ? 1 : 0) && kinds[last - 1] == STAR;
+        if (leadingStar) {
+            first++;
+        }
+        if (trailingStar) {
+            last--;
+        }
+        for (int i = first; i < last; i++) {
+            if (kinds[i] != BYTE) {
+                return new GlobPattern(Shape.GENERAL, null, kinds, operands, sets);
+            }
+        }
+        if (leadingStar && trailingStar) {
+            return new GlobPattern(Shape.GENERAL, null, kinds, operands, sets);
+        }
+        byte[] literal = new byte[last - first];
+        for (int i = first; i < last; i++) {
+            literal[i - first] = (byte) operands[i];
+        }
+        Shape shape = leadingStar ? (literal.length == 0 ? Shape.ALL : Shape.SUFFIX)
+                : trailingStar ? Shape.PREFIX : Shape.LITERAL;
+        return new GlobPattern(shape, literal, null, null, null);
+    }
+
+    /**
+     * @return the bytes every matching key starts with, possibly none
+     */
+    public byte[] literalPrefix() {
+        return switch (shape) {
+            case ALL, SUFFIX -> new byte[0];
+            case LITERAL, PREFIX -> literal.clone();
+            case GENERAL -> {
+                int length = 0;
+                while (length < kinds.length && kinds[length] == BYTE) {
+                    length++;
+                }
+                byte[] prefix = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    prefix[i] = (byte) operands[i];
+                }
+                yield prefix;
+            }
+        };
+    }
+
+    /**
+     * @return true if the pattern matches every key
+     */
+    public boolean matchesAll() {
+        return shape == Shape.ALL;
+    }
+
+    public boolean matches(ByteString key) {
+        byte[] bytes = key.array();
+        int from = key.arrayOffset();
+        int end = from + key.length();
+        return switch (shape) {
+            case ALL -> true;
+            case LITERAL -> Arrays.equals(bytes, from, end, literal, 0, literal.length);
+            case PREFIX -> end - from >= literal.length
+                    && Arrays.equals(bytes, from, from + literal.length, literal, 0, literal.length);
+            case SUFFIX -> end - from >= literal.length
+                    && Arrays.equals(bytes, end - literal.length, end, literal, 0, literal.length);
+            case GENERAL -> matchGeneral(bytes, from, end);
+        };
+    }
+
+    private boolean matchGeneral(byte[] bytes, int from, int end) {
+        int p = 0;
+        int s = from;
+        // Where to resume after a mismatch: the element after the last star, and the byte it next tries.
+        int starP = -1;
+        int starS = from;
+        while (s < end) {
+            if (p < kinds.length && kinds[p] == STAR) {
+                starP = ++p;
+                starS = s;
+            } else if (p < kinds.length && matchesByte(p, bytes[s] & 0xFF)) {
+                p++;
+                s++;
+            } else if (starP >= 0) {
+                p = starP;
+                s = ++starS;
+            } else {
+                return false;
+            }
+        }
+        while (p < kinds.length && kinds[p] == STAR) {
+            p++;
+        }
+        return p == kinds.length;
+    }
+
+    private boolean matchesByte(int element, int b) {
+        return switch (kinds[element]) {
+            case ANY -> true;
+            case BYTE -> operands[element] == b;
+            case SET -> (sets[operands[element] * 4 + (b >>> 6)] & (1L << b)) != 0;
+            default -> false;
+        };
+    }
+}
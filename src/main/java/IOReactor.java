@@ -0,0 +1,748 @@
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Owns the read and write buffers of a set of client connections and drives their I/O.
+ * <p>
+ * In single-threaded mode the reactor shares the {@link EventLoop} selector and thread, and parsed
+ * commands are executed inline. In multi-reactor mode every reactor runs its own selector on its own
+ * thread and hands parsed commands to the event loop, which stays the only thread that executes them.
+ * With several command workers ({@code exec-threads}) each client is registered with the worker that runs
+ * all its commands, so they still run one at a time and in order.
+ * <p>
+ * Pending output is bounded per client class by {@link ClientOutputLimits}. Independently of those limits,
+ * a normal client whose pending output passes {@code client-output-buffer-high-water} is not read from
+ * until half of it has been flushed, so a client that pipelines faster than it reads stalls itself.
+ */
+public class IOReactor implements Runnable, AutoCloseable {
+
+    private record PendingCommand(List<ByteString> cmdAndArgs, int bytesConsumed) {
+    }
+
+    private record Registration(SocketChannel channel, Executor commandThread) {
+    }
+
+    private final String name;
+    private final Selector selector;
+    private final boolean ownsSelector;
+    private final RESPParser parser = new RESPParser();
+    private final CommandExecutor commandExecutor;
+    private final Executor commandThread;
+    private final Consumer<SocketChannel> closeListener;
+    private final BufferPool bufferPool;
+    private final ClientOutputLimits outputLimits;
+    private final long outputHighWaterMark;
+
+    private final Map<SocketChannel, QueryBuffer> clientQueryBuffers = new HashMap<>();
+    private final Set<SocketChannel> oversizedQueryBuffers = new HashSet<>();
+    private final Queue<SocketChannel> clientsPendingWrite = new ArrayDeque<>();
+    private final Queue<SocketChannel> clientsPendingInput = new ArrayDeque<>();
+    private final Set<SocketChannel> readPausedClients = new HashSet<>();
+    private long lastClientsCron = 0L;
+    private final Map<SocketChannel, OutputBuffer> clientOutputBuffers = new ConcurrentHashMap<>();
+    private final Map<SocketChannel, ClientReplyWriter> clientReplyWriters = new ConcurrentHashMap<>();
+
+    private final Queue<Registration> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<SocketChannel> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final Queue<SocketChannel> pendingCloses = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    private volatile Thread thread;
+    private volatile boolean closing = false;
+
+    private volatile long flushCount = 0;
+    private volatile long writeSyscalls = 0;
+    /** Passes of {@link #handleClientsWithPendingWrites()} that had clients to flush. */
+    private volatile long writePasses = 0;
+    /** Write syscalls made by those passes, and the most made by one of them. */
+    private volatile long passWriteSyscalls = 0;
+    private volatile long maxPassWriteSyscalls = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long readPauses = 0;
+    private final AtomicLong outputLimitDisconnections = new AtomicLong();
+
+    /**
+     * Creates a reactor that shares the given selector with its owner and runs on the owner's thread.
+     */
+    public IOReactor(String name, Selector selector, CommandExecutor commandExecutor, Executor commandThread,
+                     Consumer<SocketChannel> closeListener, BufferPool bufferPool, ClientOutputLimits outputLimits) {
+        this.name = name;
+        this.selector = selector;
+        this.ownsSelector = false;
+        this.commandExecutor = commandExecutor;
+        this.commandThread = commandThread;
+        this.closeListener = closeListener;
+        this.bufferPool = bufferPool;
+        this.outputLimits = outputLimits;
+        this.outputHighWaterMark = Configs.getMemoryConfiguration("client-output-buffer-high-water", Configs.DEFAULT_OUTPUT_HIGH_WATER_MARK);
+    }
+
+    /**
+     * Creates a reactor with its own selector, to be run on a dedicated thread.
+     */
+    public IOReactor(String name, CommandExecutor commandExecutor, Executor commandThread,
+                     Consumer<SocketChannel> closeListener, BufferPool bufferPool, ClientOutputLimits outputLimits) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.ownsSelector = true;
+        this.commandExecutor = commandExecutor;
+        this.commandThread = commandThread;
+        this.closeListener = closeListener;
+        this.bufferPool = bufferPool;
+        this.outputLimits = outputLimits;
+        this.outputHighWaterMark = Configs.getMemoryConfiguration("client-output-buffer-high-water", Configs.DEFAULT_OUTPUT_HIGH_WATER_MARK);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void appendStats(Map<String, Object> info) {
+        long syscalls = writeSyscalls;
+        String prefix = "io_reactor_" + name + "_";
+        info.put(prefix + "clients", clientOutputBuffers.size());
+        info.put(prefix + "flushes", flushCount);
+        info.put(prefix + "write_syscalls", syscalls);
+        info.put(prefix + "bytes_written", bytesWritten);
+        info.put(prefix + "bytes_per_syscall", syscalls == 0 ? "0.00" : String.format("%.2f", (double) bytesWritten / syscalls));
+        long passes = writePasses;
+        info.put(prefix + "write_passes", passes);
+        info.put(prefix + "write_syscalls_per_pass", passes == 0 ? "0.00" : String.format("%.2f", (double) passWriteSyscalls / passes));
+        info.put(prefix + "max_write_syscalls_per_pass", maxPassWriteSyscalls);
+        info.put(prefix + "read_pauses", readPauses);
+    }
+
+    public long getOutputLimitDisconnections() {
+        return outputLimitDisconnections.get();
+    }
+
+    /**
+     * Changes the output limit class of a client, for example once it turns out to be a replica.
+     */
+    public void setClientClass(SocketChannel channel, ClientOutputLimits.ClientClass clientClass) {
+        OutputBuffer output = clientOutputBuffers.get(channel);
+        if (output != null) {
+            output.setClientClass(clientClass);
+        }
+    }
+
+    public void bindToCurrentThread() {
+        thread = Thread.currentThread();
+    }
+
+    private boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        bindToCurrentThread();
+        LoggingService.logInfo("I/O reactor " + name + " started.");
+        while (!closing && selector.isOpen()) {
+            try {
+                if (hasPendingWork()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(Configs.CLIENT_CRON_INTERVAL_MS);
+                }
+                wakeupPending.set(false);
+                processPendingOperations();
+                processSelectedKeys();
+                processPendingInput();
+                clientsCron();
+                handleClientsWithPendingWrites();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                LoggingService.logError("I/O reactor " + name + " select failed: " + e.getMessage(), e);
+            }
+        }
+        closeAll();
+        LoggingService.logInfo("I/O reactor " + name + " stopped.");
+    }
+
+    private void processPendingOperations() {
+        Registration registration;
+        while ((registration = pendingRegistrations.poll()) != null) {
+            doRegister(registration.channel(), registration.commandThread());
+        }
+        SocketChannel channel;
+        while ((channel = pendingCloses.poll()) != null) {
+            doClose(channel);
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+
+            if (!key.isValid()) {
+                continue;
+            }
+
+            try {
+                if (key.isReadable()) {
+                    handleClientRead(key);
+                } else if (key.isWritable()) {
+                    handleClientWrite(key);
+                }
+            } catch (IOException e) {
+                LoggingService.logError("I/O error on channel operation", e);
+                doClose((SocketChannel) key.channel());
+            } catch (Exception e) {
+                LoggingService.logError("Unexpected error handling key", e);
+                doClose((SocketChannel) key.channel());
+            }
+        }
+    }
+
+    /**
+     * Periodic per-client housekeeping. Only clients whose query buffer grew beyond its initial size are
+     * visited, so idle connections cost nothing here.
+     */
+    public void clientsCron() {
+        long now = System.currentTimeMillis();
+        if (now - lastClientsCron < Configs.CLIENT_CRON_INTERVAL_MS) {
+            return;
+        }
+        lastClientsCron = now;
+
+        Iterator<SocketChannel> iterator = oversizedQueryBuffers.iterator();
+        while (iterator.hasNext()) {
+            QueryBuffer queryBuffer = clientQueryBuffers.get(iterator.next());
+            if (queryBuffer == null || !queryBuffer.shrinkIfIdle(now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public void register(SocketChannel clientChannel) {
+        register(clientChannel, commandThread);
+    }
+
+    /**
+     * Registers a client whose commands run on the given executor instead of the reactor's command thread.
+     * The executor must run tasks one at a time in submission order.
+     */
+    public void register(SocketChannel clientChannel, Executor clientCommandThread) {
+        if (inReactorThread()) {
+            doRegister(clientChannel, clientCommandThread);
+        } else {
+            pendingRegistrations.add(new Registration(clientChannel, clientCommandThread));
+            wakeup();
+        }
+    }
+
+    private void doRegister(SocketChannel clientChannel, Executor clientCommandThread) {
+        try {
+            clientChannel.register(selector, SelectionKey.OP_READ);
+            clientQueryBuffers.put(clientChannel, new QueryBuffer(Configs.QUERY_BUFFER_INITIAL_SIZE));
+            OutputBuffer output = new OutputBuffer(bufferPool);
+            clientOutputBuffers.put(clientChannel, output);
+            clientReplyWriters.put(clientChannel, new ClientReplyWriter(clientChannel, output, clientCommandThread));
+            LoggingService.logInfo("Client connected: " + clientChannel.getRemoteAddress() + " on reactor " + name);
+        } catch (IOException e) {
+            LoggingService.logError("IOException in accept: " + e.getMessage(), e);
+            doClose(clientChannel);
+        }
+    }
+
+    public void handleClientRead(SelectionKey key) {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        QueryBuffer queryBuffer = clientQueryBuffers.get(clientChannel);
+
+        if (queryBuffer == null) {
+            LoggingService.logError("Client read buffer is null");
+            doClose(clientChannel);
+            return;
+        }
+
+        int bytesRead;
+        try {
+            bytesRead = queryBuffer.readFrom(clientChannel);
+        } catch (IOException e) {
+            LoggingService.logError("Error reading from client channel: " + e.getMessage(), e);
+            doClose(clientChannel);
+            return;
+        }
+
+        if (bytesRead == -1) {
+            LoggingService.logInfo("EOF reached (client disconnected).");
+            doClose(clientChannel);
+            return;
+        }
+
+        processInputBuffer(clientChannel, queryBuffer);
+    }
+
+    /**
+     * @return true if the reactor has input to parse or replies to flush without waiting for the selector
+     */
+    public boolean hasPendingWork() {
+        return !clientsPendingInput.isEmpty() || !clientsPendingWrite.isEmpty();
+    }
+
+    /**
+     * Resumes clients that still had complete commands buffered when their last batch hit
+     * {@link Configs#MAX_COMMANDS_PER_READ}. No socket event would arrive for those bytes.
+     */
+    public void processPendingInput() {
+        for (int i = clientsPendingInput.size(); i > 0; i--) {
+            SocketChannel clientChannel = clientsPendingInput.poll();
+            QueryBuffer queryBuffer = clientQueryBuffers.get(clientChannel);
+            if (queryBuffer != null) {
+                processInputBuffer(clientChannel, queryBuffer);
+            }
+        }
+    }
+
+    private void processInputBuffer(SocketChannel clientChannel, QueryBuffer queryBuffer) {
+        OutputBuffer output = clientOutputBuffers.get(clientChannel);
+        SelectionKey key = clientChannel.keyFor(selector);
+        if (output != null && key != null && key.isValid()) {
+            updateReadInterest(clientChannel, key, output);
+        }
+        if (readPausedClients.contains(clientChannel)) {
+            return;
+        }
+        ByteBuffer readBuffer = queryBuffer.beginParse();
+        List<PendingCommand> batch = new ArrayList<>();
+
+        try {
+            while (readBuffer.hasRemaining() && batch.size() < Configs.MAX_COMMANDS_PER_READ) {
+                if (!parser.parseCommand(readBuffer)) {
+                    break;
+                }
+                batch.add(new PendingCommand(parser.getBinaryArguments(), parser.getFrameLength()));
+            }
+        } catch (IOException e) {
+            LoggingService.logError("Protocol parsing error: " + e.getMessage(), e);
+            closeAfterReply(clientChannel, RESPEncoder.encodeError("ERR Protocol error: " + e.getMessage()));
+            return;
+        } finally {
+            if (batch.size() == Configs.MAX_COMMANDS_PER_READ && readBuffer.hasRemaining()) {
+                clientsPendingInput.add(clientChannel);
+            }
+            queryBuffer.endParse();
+        }
+
+        try {
+            queryBuffer.expectCommandOfLength(parser.getPendingCommandLength());
+        } catch (IOException e) {
+            LoggingService.logError("Closing client " + clientChannel + ": " + e.getMessage());
+            doClose(clientChannel);
+            return;
+        }
+        if (queryBuffer.isOversized()) {
+            oversizedQueryBuffers.add(clientChannel);
+        }
+
+        ClientReplyWriter reply = clientReplyWriters.get(clientChannel);
+        if (!batch.isEmpty() && reply != null) {
+            reply.commandThread.execute(() -> reply.execute(batch));
+        }
+    }
+
+    /**
+     * Sends a last reply with a best-effort direct write and closes the connection, so a client that
+     * broke the protocol learns why.
+     */
+    private void closeAfterReply(SocketChannel clientChannel, String reply) {
+        OutputBuffer output = clientOutputBuffers.get(clientChannel);
+        if (output != null) {
+            output.write(reply);
+            try {
+                writeToClient(clientChannel, output);
+            } catch (IOException e) {
+                LoggingService.logError("Error writing to client channel: " + e.getMessage(), e);
+            }
+        }
+        doClose(clientChannel);
+    }
+
+    public void handleClientWrite(SelectionKey key) throws IOException {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        OutputBuffer output = clientOutputBuffers.get(clientChannel);
+
+        if (output != null && !output.isEmpty()) {
+            writeToClient(clientChannel, output);
+            updateReadInterest(clientChannel, key, output);
+            requestStreamRefill(clientChannel, output);
+            if (!output.isEmpty()) {
+                return;
+            }
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Stops reading from a normal client while its pending output is above the high-water mark and resumes
+     * once it has drained to half of it. Reading also stops while a streamed reply is in progress, since the
+     * commands behind it could not run anyway. Commands that were already buffered are parsed after resuming.
+     */
+    private void updateReadInterest(SocketChannel clientChannel, SelectionKey key, OutputBuffer output) {
+        long pending = output.getPendingBytes();
+        boolean streaming = output.isStreaming();
+        if (readPausedClients.contains(clientChannel)) {
+            if (!streaming && pending <= outputHighWaterMark / 2) {
+                readPausedClients.remove(clientChannel);
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                clientsPendingInput.add(clientChannel);
+            }
+        } else if (streaming || (pending > outputHighWaterMark && output.getClientClass() == ClientOutputLimits.ClientClass.NORMAL)) {
+            readPausedClients.add(clientChannel);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (!streaming) {
+                readPauses++;
+                LoggingService.logInfo("Pausing reads from client " + clientChannel + ": " + pending + " bytes of output pending");
+            }
+        }
+    }
+
+    private void writeToClient(SocketChannel clientChannel, OutputBuffer output) throws IOException {
+        long written = output.flush(clientChannel);
+        flushCount++;
+        if (written >= 0) {
+            writeSyscalls++;
+            bytesWritten += written;
+        }
+    }
+
+    /**
+     * Flushes the replies produced since the last call straight to the sockets, once per client no matter
+     * how many replies were queued. Only clients whose socket would block get OP_WRITE installed; they are
+     * then drained by {@link #handleClientWrite(SelectionKey)}. Called before the owning loop goes back to
+     * select, like Redis's handleClientsWithPendingWrites.
+     */
+    public void handleClientsWithPendingWrites() {
+        wakeupPending.set(false);
+        SocketChannel clientChannel;
+        while ((clientChannel = pendingFlushes.poll()) != null) {
+            clientsPendingWrite.add(clientChannel);
+        }
+        if (clientsPendingWrite.isEmpty()) {
+            return;
+        }
+        long syscallsBefore = writeSyscalls;
+        // Clients queued by a refill during this pass are flushed on the next one, so one streamed reply
+        // cannot hold up the rest of the loop.
+        for (int i = clientsPendingWrite.size(); i > 0; i--) {
+            clientChannel = clientsPendingWrite.poll();
+            OutputBuffer output = clientOutputBuffers.get(clientChannel);
+            if (output == null) {
+                continue;
+            }
+            output.clearFlushScheduled();
+            SelectionKey key = clientChannel.keyFor(selector);
+            if (key == null || !key.isValid()) {
+                continue;
+            }
+            if (output.isEmpty() || (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                updateReadInterest(clientChannel, key, output);
+                continue;
+            }
+            try {
+                writeToClient(clientChannel, output);
+                if (!output.isEmpty()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+                updateReadInterest(clientChannel, key, output);
+                requestStreamRefill(clientChannel, output);
+            } catch (IOException e) {
+                LoggingService.logError("Error writing to client channel: " + e.getMessage(), e);
+                doClose(clientChannel);
+            }
+        }
+        long passSyscalls = writeSyscalls - syscallsBefore;
+        writePasses++;
+        passWriteSyscalls += passSyscalls;
+        if (passSyscalls > maxPassWriteSyscalls) {
+            maxPassWriteSyscalls = passSyscalls;
+        }
+    }
+
+    /**
+     * Queues a reply for the client. Safe to call from any thread; the reply is appended to the client's
+     * output buffer right away and the flush is scheduled on the reactor thread.
+     */
+    private void queueWrite(SocketChannel channel, String response) {
+        OutputBuffer output = outputFor(channel);
+        if (output != null) {
+            output.write(response);
+            if (withinOutputLimit(channel, output)) {
+                scheduleFlush(channel, output);
+            }
+        }
+    }
+
+    public void queueWrite(SocketChannel channel, ByteBuffer buffer) {
+        OutputBuffer output = outputFor(channel);
+        if (output != null) {
+            output.write(buffer);
+            if (withinOutputLimit(channel, output)) {
+                scheduleFlush(channel, output);
+            }
+        }
+    }
+
+    /**
+     * Encodes replies straight into a client's output buffer and schedules the flush after every value.
+     * <p>
+     * Also runs the client's commands, on its command thread. While a streamed reply is in progress the
+     * client's later commands wait in {@code deferred}, so replies stay in order; the stream is continued by
+     * {@link #continueStream()} each time the reactor has drained the output, and the deferred commands run
+     * once it is complete.
+     */
+    private final class ClientReplyWriter extends ReplyWriter {
+        private final SocketChannel channel;
+        private final OutputBuffer output;
+        private final Executor commandThread;
+        private final ArrayDeque<PendingCommand> deferred = new ArrayDeque<>();
+        private ReplyStream activeStream;
+        private boolean inRefill = false;
+
+        ClientReplyWriter(SocketChannel channel, OutputBuffer output, Executor commandThread) {
+            this.channel = channel;
+            this.output = output;
+            this.commandThread = commandThread;
+        }
+
+        @Override
+        protected void append(byte[] bytes, int offset, int length) {
+            output.write(bytes, offset, length);
+        }
+
+        @Override
+        protected void append(MemorySegment source, long offset, int length) {
+            output.write(source, offset, length);
+        }
+
+        @Override
+        protected void afterWrite() {
+            if (!inRefill && withinOutputLimit(channel, output)) {
+                scheduleFlush(channel, output);
+            }
+        }
+
+        @Override
+        public void stream(ReplyStream reply) {
+            activeStream = reply;
+            output.beginStreaming();
+            refill();
+        }
+
+        void execute(List<PendingCommand> batch) {
+            deferred.addAll(batch);
+            runDeferred();
+        }
+
+        private void runDeferred() {
+            PendingCommand command;
+            while (activeStream == null && (command = deferred.poll()) != null) {
+                List<ByteString> cmdAndArgs = command.cmdAndArgs();
+                ByteString cmd = cmdAndArgs.getFirst();
+                List<ByteString> args = cmdAndArgs.subList(1, cmdAndArgs.size());
+                try {
+                    LoggingService.logFine(() -> "Client " + channel + ": received command '" + cmd + "', args: " + args);
+                    commandExecutor.executeCommand(channel, cmd, args, this, command.bytesConsumed());
+                } catch (Exception e) {
+                    LoggingService.logError("Unexpected error during command processing: " + e.getMessage(), e);
+                    queueWrite(channel, RESPEncoder.encodeError("ERR internal server error: " + e.getMessage()));
+                    deferred.clear();
+                    closeClient(channel);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Writes pieces of the active stream until a few chunks are pending, then lets the reactor flush them.
+         */
+        void refill() {
+            if (activeStream == null) {
+                return;
+            }
+            if (output.isClosed()) {
+                abandon();
+                return;
+            }
+            boolean done = false;
+            inRefill = true;
+            try {
+                while (!done && output.getPendingBytes() < Configs.STREAMED_REPLY_BUFFERED_BYTES) {
+                    done = activeStream.writeNext(this);
+                }
+            } finally {
+                inRefill = false;
+            }
+            if (done) {
+                activeStream = null;
+                output.endStreaming();
+            } else {
+                output.refillDone();
+            }
+            afterWrite();
+        }
+
+        void continueStream() {
+            commandExecutor.runShared(this::refill);
+            runDeferred();
+        }
+
+        /**
+         * Drops the streamed reply in progress and the commands behind it, once the client is gone.
+         */
+        void abandon() {
+            if (activeStream != null) {
+                activeStream.close();
+                activeStream = null;
+            }
+            deferred.clear();
+        }
+    }
+
+    /**
+     * Asks the command thread for the next piece of a streamed reply once the client's output has drained.
+     */
+    private void requestStreamRefill(SocketChannel channel, OutputBuffer output) {
+        if (output.requestRefill(Configs.OUTPUT_CHUNK_SIZE)) {
+            ClientReplyWriter reply = clientReplyWriters.get(channel);
+            if (reply != null) {
+                reply.commandThread.execute(reply::continueStream);
+            }
+        }
+    }
+
+    private OutputBuffer outputFor(SocketChannel channel) {
+        OutputBuffer output = clientOutputBuffers.get(channel);
+        if (output == null) {
+            LoggingService.logError("Write queue missing for client: " + channel);
+        }
+        return output;
+    }
+
+    /**
+     * Disconnects the client if the reply just queued took it over the output limit of its class. The pending
+     * output is dropped right away so the memory is freed even before the reactor closes the socket.
+     */
+    private boolean withinOutputLimit(SocketChannel channel, OutputBuffer output) {
+        String reason = output.checkLimit(outputLimits.forClass(output.getClientClass()));
+        if (reason == null) {
+            return true;
+        }
+        outputLimitDisconnections.incrementAndGet();
+        LoggingService.logWarn("Closing " + output.getClientClass().name().toLowerCase() + " client " + channel
+                + " for overcoming output buffer limits: " + reason);
+        output.close();
+        closeClient(channel);
+        return false;
+    }
+
+    /**
+     * Puts the client on the pending-writes list; a client is listed at most once until it is flushed.
+     * Replies coming from another thread also wake the reactor up.
+     */
+    private void scheduleFlush(SocketChannel channel, OutputBuffer output) {
+        if (!output.markFlushScheduled()) {
+            return;
+        }
+        if (inReactorThread()) {
+            clientsPendingWrite.add(channel);
+        } else {
+            pendingFlushes.add(channel);
+            wakeup();
+        }
+    }
+
+    public void closeClient(SocketChannel channel) {
+        if (inReactorThread()) {
+            doClose(channel);
+        } else {
+            pendingCloses.add(channel);
+            wakeup();
+        }
+    }
+
+    private void doClose(SocketChannel channel) {
+        SelectionKey key = channel.keyFor(selector);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            LoggingService.logInfo("Closing connection: " + channel.getRemoteAddress());
+        } catch (IOException ignored) {
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LoggingService.logError("Error closing channel", e);
+        } finally {
+            OutputBuffer output = clientOutputBuffers.remove(channel);
+            ClientReplyWriter reply = clientReplyWriters.remove(channel);
+            clientQueryBuffers.remove(channel);
+            oversizedQueryBuffers.remove(channel);
+            readPausedClients.remove(channel);
+            if (output != null) {
+                output.close();
+                if (reply != null) {
+                    reply.commandThread.execute(reply::abandon);
+                }
+                commandThread.execute(() -> closeListener.accept(channel));
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SocketChannel channel : new ArrayList<>(clientOutputBuffers.keySet())) {
+            doClose(channel);
+        }
+        if (ownsSelector) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LoggingService.logError("Error closing selector of reactor " + name, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!ownsSelector) {
+            closeAll();
+            return;
+        }
+        closing = true;
+        selector.wakeup();
+        Thread reactorThread = thread;
+        if (reactorThread != null && reactorThread != Thread.currentThread()) {
+            try {
+                reactorThread.join(Configs.REACTOR_SHUTDOWN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * One partition of the keyspace in shared-nothing mode ({@code shard-threads}), with its own {@link Cache},
+ * {@link Expiry}, {@link TimingWheel} and {@link CommandExecutor}, all confined to the shard's thread.
+ * <p>
+ * The event loop is the only producer of requests and the only consumer of completions, so both directions
+ * are {@link SpscQueue}s. A request runs against the shard's executor and encodes its reply into a
+ * {@link Reply}, which is handed back once complete: right after the command for most commands, or when a
+ * blocked client is served or times out. Completions that do not fit the queue wait in an overflow list on
+ * the shard, so the shard never waits for the event loop while the event loop may be waiting for it.
+ */
+public class KeyspaceShard implements Runnable {
+
+    record Request(BiConsumer<CommandExecutor, ReplyWriter> work, Reply reply) {
+    }
+
+    /**
+     * Collects the reply of one request. Streamed replies are encoded in full, since the shard cannot tell
+     * when the client's socket drains, but the bytes are kept in chunks that are handed to the client's
+     * output as they are: chunks of {@link Configs#OUTPUT_CHUNK_SIZE} are queued there without copying, so a
+     * large reply is held once rather than once per hop. Chunks start small and double, so a short reply costs
+     * one small array.
+     */
+    static final class Reply extends ReplyWriter {
+        private static final int FIRST_CHUNK_SIZE = 64;
+
+        final ShardRouter.Entry entry;
+        private final KeyspaceShard shard;
+        private final ArrayList<byte[]> chunks = new ArrayList<>(1);
+        /** Bytes used in the last chunk; all earlier chunks are full. */
+        private int lastLength = 0;
+        private boolean awaiting = false;
+
+        Reply(ShardRouter.Entry entry, KeyspaceShard shard) {
+            this.entry = entry;
+            this.shard = shard;
+        }
+
+        @Override
+        protected void append(byte[] data, int offset, int length) {
+            while (length > 0) {
+                byte[] last = chunks.isEmpty() ? null : chunks.getLast();
+                if (last == null || lastLength == last.length) {
+                    int size = last == null ? FIRST_CHUNK_SIZE : Math.min(last.length * 2, Configs.OUTPUT_CHUNK_SIZE);
+                    last = new byte[size];
+                    chunks.add(last);
+                    lastLength = 0;
+                }
+                int n = Math.min(last.length - lastLength, length);
+                System.arraycopy(data, offset, last, lastLength, n);
+                lastLength += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        protected void afterWrite() {
+            if (awaiting) {
+                awaiting = false;
+                shard.complete(this);
+            }
+        }
+
+        @Override
+        public void stream(ReplyStream reply) {
+            boolean wasAwaiting = awaiting;
+            awaiting = false;
+            while (!reply.writeNext(this)) {
+                // Keep going: the whole reply is handed over at once.
+            }
+            awaiting = wasAwaiting;
+            afterWrite();
+        }
+
+        @Override
+        public void blocked() {
+            awaiting = true;
+        }
+
+        /**
+         * @return a cursor at the first byte of the reply, for the event loop once the reply is complete
+         */
+        Cursor cursor() {
+            return new Cursor();
+        }
+
+        /**
+         * Reads a completed reply front to back and writes slices of it to a client without copying them
+         * first.
+         */
+        final class Cursor {
+            private int chunk = 0;
+            private int offset = 0;
+
+            private Cursor() {
+            }
+
+            private Cursor(Cursor from) {
+                chunk = from.chunk;
+                offset = from.offset;
+            }
+
+            private int limit(int index) {
+                return index == chunks.size() - 1 ? lastLength : chunks.get(index).length;
+            }
+
+            /**
+             * @return the byte at the cursor, or -1 at the end of the reply
+             */
+            int peek() {
+                while (chunk < chunks.size() && offset == limit(chunk)) {
+                    chunk++;
+                    offset = 0;
+                }
+                return chunk < chunks.size() ? chunks.get(chunk)[offset] : -1;
+            }
+
+            private int next() {
+                int b = peek();
+                if (b >= 0) {
+                    offset++;
+                }
+                return b;
+            }
+
+            /**
+             * Reads a {@code <type><number>\r\n} line, such as an array header or an integer reply.
+             *
+             * @return the number
+             */
+            long readNumberLine() {
+                next();
+                boolean negative = peek() == '-';
+                if (negative) {
+                    next();
+                }
+                long value = 0;
+                int b;
+                while ((b = next()) >= 0 && b != '\r') {
+                    value = value * 10 + (b - '0');
+                }
+                next();
+                return negative ? -value : value;
+            }
+
+            /**
+             * Writes the bulk string, integer or simple reply at the cursor and moves past it.
+             */
+            void writeElement(ReplyWriter out) {
+                Cursor start = new Cursor(this);
+                int headerLength = 1;
+                boolean bulk = next() == '$';
+                long bodyLength = 0;
+                boolean negative = false;
+                int b;
+                while ((b = next()) >= 0 && b != '\r') {
+                    headerLength++;
+                    if (b == '-') {
+                        negative = true;
+                    } else {
+                        bodyLength = bodyLength * 10 + (b - '0');
+                    }
+                }
+                long length = headerLength + 2;
+                if (bulk && !negative) {
+                    length += bodyLength + 2;
+                }
+                start.writeTo(out, length);
+                chunk = start.chunk;
+                offset = start.offset;
+            }
+
+            /**
+             * Writes everything from the cursor to the end of the reply.
+             */
+            void writeRest(ReplyWriter out) {
+                writeTo(out, Long.MAX_VALUE);
+            }
+
+            private void writeTo(ReplyWriter out, long length) {
+                while (length > 0 && peek() >= 0) {
+                    int n = (int) Math.min(limit(chunk) - offset, length);
+                    out.raw(chunks.get(chunk), offset, n);
+                    offset += n;
+                    length -= n;
+                }
+            }
+        }
+    }
+
+    private final int index;
+    private final Cache cache;
+    private final Expiry expiry;
+    private final TimingWheel timers = new TimingWheel(Configs.TIMER_TICK_MS, System.currentTimeMillis());
+    private final CommandExecutor commandExecutor;
+    private final SpscQueue<Request> inbox = new SpscQueue<>(Configs.SHARD_QUEUE_CAPACITY);
+    private final SpscQueue<Reply> completions = new SpscQueue<>(Configs.SHARD_QUEUE_CAPACITY);
+    private final ArrayDeque<Reply> overflow = new ArrayDeque<>();
+    private final Runnable wakeupEventLoop;
+
+    private volatile Thread thread;
+    private volatile boolean running = true;
+    private volatile long processedRequests = 0;
+
+    public KeyspaceShard(int index, int shardCount, Runnable wakeupEventLoop) {
+        this.index = index;
+        this.wakeupEventLoop = wakeupEventLoop;
+        cache = Cache.newPartition(index, shardCount);
+        expiry = Expiry.create(cache);
+        commandExecutor = new CommandExecutor(cache);
+        commandExecutor.setTimingWheel(timers);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public long getProcessedRequests() {
+        return processedRequests;
+    }
+
+    public void setReplicationNotifier(CommandExecutor.ReplicationNotifier notifier) {
+        commandExecutor.setReplicationNotifier(notifier);
+    }
+
+    public void start() {
+        thread = Thread.ofPlatform().name("keyspace-shard-" + index).start(this);
+    }
+
+    /**
+     * Queues a request; called by the event loop only. Spins while the shard's inbox is full.
+     */
+    void submit(Request request) {
+        while (!inbox.offer(request)) {
+            LockSupport.unpark(thread);
+            Thread.onSpinWait();
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return the next completed reply, or null; called by the event loop only
+     */
+    Reply pollCompletion() {
+        return completions.poll();
+    }
+
+    @Override
+    public void run() {
+        LoggingService.logInfo("Keyspace shard " + index + " started.");
+        while (running) {
+            boolean worked = false;
+            Request request;
+            while ((request = inbox.poll()) != null) {
+                execute(request);
+                worked = true;
+            }
+            flushOverflow();
+            expiry.scanAndExpire();
+            cache.rehashIncrementally();
+            timers.advance(System.currentTimeMillis());
+            if (!worked) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Configs.TIMER_TICK_MS));
+            }
+        }
+        LoggingService.logInfo("Keyspace shard " + index + " stopped.");
+    }
+
+    private void execute(Request request) {
+        Reply reply = request.reply();
+        try {
+            request.work().accept(commandExecutor, reply);
+        } catch (Exception e) {
+            LoggingService.logError("Unexpected error in keyspace shard " + index + ": " + e.getMessage(), e);
+            reply.awaiting = false;
+            reply.error("ERR internal server error: " + e.getMessage());
+        }
+        processedRequests++;
+        if (!reply.awaiting) {
+            complete(reply);
+        }
+    }
+
+    private void complete(Reply reply) {
+        if (!overflow.isEmpty() || !completions.offer(reply)) {
+            overflow.add(reply);
+        }
+        wakeupEventLoop.run();
+    }
+
+    private void flushOverflow() {
+        while (!overflow.isEmpty() && completions.offer(overflow.peek())) {
+            overflow.poll();
+        }
+        if (!overflow.isEmpty()) {
+            wakeupEventLoop.run();
+        }
+    }
+
+    public void close() {
+        running = false;
+        Thread shardThread = thread;
+        if (shardThread != null) {
+            LockSupport.unpark(shardThread);
+            try {
+                shardThread.join(Configs.REACTOR_SHUTDOWN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
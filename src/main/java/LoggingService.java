@@ -1,5 +1,6 @@
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.function.Supplier;
 import java.util.logging.*;
 
 public class LoggingService {
@@ -27,7 +28,8 @@ public class LoggingService {
         });
         handler.setLevel(Level.INFO);
         logger.addHandler(handler);
-        logger.setLevel(Level.ALL);
+        // Nothing below INFO is printed, so such records are not even created.
+        logger.setLevel(Level.INFO);
     }
 
     public static void logInfo(String message) {
@@ -46,6 +48,13 @@ public class LoggingService {
         logger.log(Level.FINE, message);
     }
 
+    /**
+     * Logs a message built only if FINE is logged, for messages about every command.
+     */
+    public static void logFine(Supplier<String> message) {
+        logger.log(Level.FINE, message);
+    }
+
     public static void logWarn(String message) {
         logger.log(Level.WARNING, message);
     }
@@ -56,6 +56,54 @@ public class Main {
                         LoggingService.logError("Invalid port number: " + portStr);
                     }
                 }
+                case "--io-threads" -> {
+                    if (++i >= len) {
+                        LoggingService.logError("Missing thread count argument after --io-threads");
+                        throw new IllegalArgumentException("Missing thread count argument after --io-threads");
+                    }
+                    String ioThreads = args[i];
+                    try {
+                        if (Integer.parseInt(ioThreads) < 1) {
+                            throw new NumberFormatException("io-threads must be at least 1");
+                        }
+                    } catch (NumberFormatException e) {
+                        LoggingService.logError("Invalid io-threads value: " + ioThreads);
+                        throw new IllegalArgumentException("Invalid io-threads value: " + ioThreads, e);
+                    }
+                    Configs.setConfiguration("io-threads", ioThreads);
+                }
+                case "--exec-threads" -> {
+                    if (++i >= len) {
+                        LoggingService.logError("Missing thread count argument after --exec-threads");
+                        throw new IllegalArgumentException("Missing thread count argument after --exec-threads");
+                    }
+                    String execThreads = args[i];
+                    try {
+                        if (Integer.parseInt(execThreads) < 1) {
+                            throw new NumberFormatException("exec-threads must be at least 1");
+                        }
+                    } catch (NumberFormatException e) {
+                        LoggingService.logError("Invalid exec-threads value: " + execThreads);
+                        throw new IllegalArgumentException("Invalid exec-threads value: " + execThreads, e);
+                    }
+                    Configs.setConfiguration("exec-threads", execThreads);
+                }
+                case "--shard-threads" -> {
+                    if (++i >= len) {
+                        LoggingService.logError("Missing thread count argument after --shard-threads");
+                        throw new IllegalArgumentException("Missing thread count argument after --shard-threads");
+                    }
+                    String shardThreads = args[i];
+                    try {
+                        if (Integer.parseInt(shardThreads) < 1) {
+                            throw new NumberFormatException("shard-threads must be at least 1");
+                        }
+                    } catch (NumberFormatException e) {
+                        LoggingService.logError("Invalid shard-threads value: " + shardThreads);
+                        throw new IllegalArgumentException("Invalid shard-threads value: " + shardThreads, e);
+                    }
+                    Configs.setConfiguration("shard-threads", shardThreads);
+                }
                 case "--replicaof" -> {
                     if (++i >= len) {
                         LoggingService.logError("Missing replicaof argument after --replicaof");
@@ -72,9 +120,21 @@ public class Main {
                     Configs.setConfiguration("master_host", parts[0]);
                     Configs.setConfiguration("master_port", parts[1]);
                 }
+                default -> {
+                    if (arg.startsWith("--") && i + 1 < len) {
+                        Configs.setConfiguration(arg.substring(2), args[++i]);
+                    } else {
+                        LoggingService.logWarn("Ignoring unknown argument: " + arg);
+                    }
+                }
             }
         }
 
+        if (Configs.getIntConfiguration("shard-threads", 1) > 1 && Configs.getIntConfiguration("exec-threads", 1) > 1) {
+            LoggingService.logError("shard-threads and exec-threads cannot be combined");
+            throw new IllegalArgumentException("shard-threads and exec-threads cannot be combined");
+        }
+
         boolean readRDB = false;
         if (argsMap.containsKey("dir")) {
             String dir = argsMap.get("dir");
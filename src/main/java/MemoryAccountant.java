@@ -0,0 +1,288 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Estimates how many bytes keys and values take on the heap, so memory can be reported and limited without
+ * walking the heap.
+ * <p>
+ * Sizes follow the layout of a 64-bit JVM with compressed references: 12 byte object headers, 16 byte array
+ * headers, 4 byte references and every object padded to 8 bytes. A value is sized in full once, when it is
+ * stored; commands that change a list or stream in place then pass the size of what they added or removed
+ * to {@link Cache#adjustMemory}, so the totals stay current at a cost independent of the value's length.
+ * <p>
+ * Every {@link Cache} registers here, and the figures of INFO memory and MEMORY STATS add up all of them.
+ */
+public final class MemoryAccountant {
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    /** A {@link ByteString}: the header, the array reference and the cached hash. */
+    private static final int BYTE_STRING = align(OBJECT_HEADER + REFERENCE + 4);
+    /**
+     * A {@link Cache.Value}: the header, two references, the integer, expiration and indexed deadline times,
+     * access and memory.
+     */
+    private static final int VALUE = align(OBJECT_HEADER + 2 * REFERENCE + 8 + 8 + 8 + 4 + 8);
+    private static final int LINKED_LIST = align(OBJECT_HEADER + 3 * 4 + 2 * REFERENCE);
+    private static final int LINKED_LIST_NODE = align(OBJECT_HEADER + 3 * REFERENCE);
+    private static final int TREE_MAP = align(OBJECT_HEADER + 2 * 4 + 6 * REFERENCE);
+    private static final int TREE_MAP_ENTRY = align(OBJECT_HEADER + 5 * REFERENCE + 1);
+    private static final int BOXED_LONG = align(OBJECT_HEADER + 8);
+    private static final int HASH_MAP = align(OBJECT_HEADER + 4 * 4 + 5 * REFERENCE);
+    private static final int HASH_MAP_NODE = align(OBJECT_HEADER + 4 + 3 * REFERENCE);
+    private static final int HASH_MAP_MIN_CAPACITY = 16;
+    /** A {@link RadixTree} node: the header and four references. */
+    private static final int RADIX_NODE = align(OBJECT_HEADER + 4 * REFERENCE);
+    /** An {@link ExpiryIndex} entry: a key reference and a deadline. */
+    private static final int EXPIRY_INDEX_ENTRY = REFERENCE + 8;
+
+    private static final List<Cache> caches = new CopyOnWriteArrayList<>();
+    private static volatile long peak = 0;
+    private static long lastPeakUpdate = 0L;
+
+    private MemoryAccountant() { }
+
+    static void register(Cache cache) {
+        caches.add(cache);
+    }
+
+    private static int align(long size) {
+        return (int) ((size + 7) & ~7L);
+    }
+
+    /**
+     * @return the footprint of a string, with the whole backing array of a slice, which it keeps alive
+     */
+    public static long ofString(ByteString string) {
+        return BYTE_STRING + align(ARRAY_HEADER + string.array().length);
+    }
+
+    /**
+     * @return the footprint of a stored key: the key, its {@link Cache.Value} and the payload, which an
+     * integer-encoded string does not have and an off-heap string has in its {@link OffHeapStore} slot
+     */
+    public static long ofEntry(ByteString key, Cache.Value value) {
+        long payload;
+        if (value.isInteger()) {
+            payload = 0;
+        } else if (value.isOffHeap()) {
+            payload = OffHeapStore.getInstance().slotSize(value.getHandle());
+        } else {
+            payload = ofPayload(value.getValue());
+        }
+        return ofString(key) + VALUE + payload;
+    }
+
+    private static long ofPayload(Object payload) {
+        if (payload instanceof ByteString string) {
+            return ofString(string);
+        }
+        if (payload instanceof List<?> list) {
+            long size = LINKED_LIST;
+            for (Object element : list) {
+                size += ofListElement((ByteString) element);
+            }
+            return size;
+        }
+        if (payload instanceof Map<?, ?> stream) {
+            long size = TREE_MAP;
+            for (Object sequences : stream.values()) {
+                size += ofStreamMillisecond();
+                for (Object fields : ((Map<?, ?>) sequences).values()) {
+                    size += ofStreamEntry((Map<?, ?>) fields);
+                }
+            }
+            return size;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the bytes a list gains or loses with one element
+     */
+    public static long ofListElement(ByteString element) {
+        return LINKED_LIST_NODE + ofString(element);
+    }
+
+    /**
+     * @return the bytes a stream gains with one entry, not counting the per-millisecond map
+     * {@link #ofStreamMillisecond()} accounts for
+     */
+    public static long ofStreamEntry(Map<?, ?> fields) {
+        int capacity = HASH_MAP_MIN_CAPACITY;
+        while (capacity * 3 / 4 < fields.size()) {
+            capacity <<= 1;
+        }
+        long size = TREE_MAP_ENTRY + BOXED_LONG + HASH_MAP + align(ARRAY_HEADER + (long) capacity * REFERENCE);
+        for (Map.Entry<?, ?> field : fields.entrySet()) {
+            size += HASH_MAP_NODE + ofString((ByteString) field.getKey()) + ofString((ByteString) field.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * @return the bytes a stream gains with the first entry of a millisecond: its entry in the stream's map
+     * and the map of its sequence numbers
+     */
+    public static long ofStreamMillisecond() {
+        return TREE_MAP_ENTRY + BOXED_LONG + TREE_MAP;
+    }
+
+    /**
+     * @return the bytes a {@link Dict} takes besides its keys and values: the tables and bucket arrays
+     */
+    public static long ofDict(Dict<?> dict) {
+        int entries = dict.size();
+        int buckets = dict.allocatedBuckets();
+        int usedBuckets = Math.min(entries, dict.bucketCount());
+        return 2L * ARRAY_HEADER + (long) buckets * REFERENCE
+                + (long) usedBuckets * align(ARRAY_HEADER + 4L * REFERENCE)
+                + (long) Math.max(0, entries - usedBuckets) * 2 * REFERENCE;
+    }
+
+    /**
+     * @return the bytes a {@link RadixTree} takes: its nodes and their labels, padded by half a word on
+     * average, plus the child arrays of branch nodes, taken to be the nodes without a key
+     */
+    public static long ofRadixTree(RadixTree tree) {
+        long nodes = tree.nodeCount();
+        long branches = Math.max(1, nodes - tree.size());
+        return nodes * (RADIX_NODE + ARRAY_HEADER + 4) + tree.labelBytes()
+                + branches * 2 * ARRAY_HEADER + (nodes - 1) * (1 + REFERENCE);
+    }
+
+    public static long ofExpiryIndex(ExpiryIndex index) {
+        return (long) index.size() * EXPIRY_INDEX_ENTRY;
+    }
+
+    /**
+     * @return the estimated bytes taken by the keyspace of every cache, tables included
+     */
+    public static long usedMemory() {
+        long used = 0;
+        for (Cache cache : caches) {
+            used += cache.usedMemory();
+        }
+        return used;
+    }
+
+    /**
+     * Records the highest used memory seen, at most every {@link Configs#MEMORY_PEAK_INTERVAL_MS}. Called from
+     * the event loop.
+     */
+    public static void updatePeak() {
+        long now = System.currentTimeMillis();
+        if ((now - lastPeakUpdate) < Configs.MEMORY_PEAK_INTERVAL_MS) {
+            return;
+        }
+        lastPeakUpdate = now;
+        peak = Math.max(peak, usedMemory());
+    }
+
+    /**
+     * Adds the INFO memory section fields.
+     */
+    public static void appendInfo(Map<String, Object> info) {
+        long dataset = 0;
+        long overhead = 0;
+        for (Cache cache : caches) {
+            dataset += cache.datasetMemory();
+            overhead += cache.mainTableMemory() + cache.expiresTableMemory();
+        }
+        long used = dataset + overhead;
+        long usedPeak = Math.max(peak, used);
+        Runtime runtime = Runtime.getRuntime();
+        long maxmemory = Configs.getMemoryConfiguration("maxmemory", 0);
+        String policy = Configs.getConfiguration("maxmemory-policy");
+        info.put("used_memory", used);
+        info.put("used_memory_human", human(used));
+        info.put("used_memory_peak", usedPeak);
+        info.put("used_memory_peak_human", human(usedPeak));
+        info.put("used_memory_peak_perc", percent(used, usedPeak));
+        info.put("used_memory_overhead", overhead);
+        info.put("used_memory_dataset", dataset);
+        info.put("used_memory_dataset_perc", percent(dataset, used));
+        info.put("used_memory_heap", runtime.totalMemory() - runtime.freeMemory());
+        info.put("used_memory_heap_human", human(runtime.totalMemory() - runtime.freeMemory()));
+        info.put("heap_committed", runtime.totalMemory());
+        info.put("heap_max", runtime.maxMemory());
+        info.put("maxmemory", maxmemory);
+        info.put("maxmemory_human", human(maxmemory));
+        info.put("maxmemory_policy", policy == null ? EvictionPolicy.NOEVICTION.getConfigName() : policy);
+        OffHeapStore offHeap = OffHeapStore.getInstance();
+        info.put("value_storage", offHeap == null ? "heap" : "offheap");
+        if (offHeap != null) {
+            offHeap.appendInfo(info);
+        }
+        // Collection counts and times, to compare the pauses of heap and off-heap value storage.
+        long collections = 0;
+        long collectionMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionMillis += Math.max(0, collector.getCollectionTime());
+        }
+        info.put("gc_collections", collections);
+        info.put("gc_time_ms", collectionMillis);
+    }
+
+    /**
+     * @return the MEMORY STATS fields, in the order Redis lists them
+     */
+    public static Map<String, Object> stats() {
+        long dataset = 0;
+        long mainTables = 0;
+        long expiresTables = 0;
+        long keys = 0;
+        for (Cache cache : caches) {
+            dataset += cache.datasetMemory();
+            mainTables += cache.mainTableMemory();
+            expiresTables += cache.expiresTableMemory();
+            keys += cache.keyCount();
+        }
+        long overhead = mainTables + expiresTables;
+        long used = dataset + overhead;
+        long usedPeak = Math.max(peak, used);
+        Runtime runtime = Runtime.getRuntime();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("peak.allocated", usedPeak);
+        stats.put("total.allocated", used);
+        stats.put("overhead.hashtable.main", mainTables);
+        stats.put("overhead.hashtable.expires", expiresTables);
+        stats.put("overhead.total", overhead);
+        stats.put("keys.count", keys);
+        stats.put("keys.bytes-per-key", keys == 0 ? 0 : used / keys);
+        stats.put("dataset.bytes", dataset);
+        stats.put("dataset.percentage", percentage(dataset, used));
+        stats.put("peak.percentage", percentage(used, usedPeak));
+        stats.put("heap.used", runtime.totalMemory() - runtime.freeMemory());
+        stats.put("heap.committed", runtime.totalMemory());
+        stats.put("heap.max", runtime.maxMemory());
+        return stats;
+    }
+
+    private static String percentage(long part, long whole) {
+        return String.format("%.2f", whole == 0 ? 0 : part * 100.0 / whole);
+    }
+
+    private static String percent(long part, long whole) {
+        return percentage(part, whole) + "%";
+    }
+
+    /**
+     * @return bytes in the largest unit that keeps the number at or above 1, as INFO shows them
+     */
+    static String human(long bytes) {
+        String[] units = {"B", "K", "M", "G", "T"};
+        double amount = bytes;
+        int unit = 0;
+        while (amount >= 1024 && unit < units.length - 1) {
+            amount /= 1024;
+            unit++;
+        }
+        return unit == 0 ? bytes + "B" : String.format("%.2f%s", amount, units[unit]);
+    }
+}
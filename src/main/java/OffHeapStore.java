@@ -0,0 +1,230 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Slab allocator for string values outside the Java heap, used when {@code value-storage} is {@code offheap}
+ * so that hundreds of millions of small strings are not objects every garbage collection has to trace.
+ * <p>
+ * Memory is reserved from the global {@link Arena} in slabs of {@link Configs#OFFHEAP_SLAB_SIZE} bytes, each
+ * cut into slots of one size class, after memcached's slab allocator. Classes go in steps of a half power of
+ * two from 16 bytes to {@link Configs#OFFHEAP_MAX_SLOT_SIZE} (16, 24, 32, 48, 64, ...), so a slot wastes at
+ * most a third of itself; longer strings stay on the heap. A slot holds the string's length in 4 bytes and
+ * then its bytes, and is named by a handle packing the slab's index and the slot's offset into a long, which
+ * the {@link Cache.Value} keeps in place of the string.
+ * <p>
+ * Freed slots go on a free list per class and are reused first, last freed first. Slabs are never handed
+ * back, so memory reserved for one size class stays with it; INFO memory reports how much of it holds data
+ * as the fragmentation ratio.
+ * <p>
+ * Allocation and freeing lock the size class only. Reads do not lock: the key's shard lock, held by every
+ * caller, orders them after the write that filled the slot.
+ */
+public final class OffHeapStore {
+    private static final int LENGTH_PREFIX = Integer.BYTES;
+    private static final int MIN_SLOT_SIZE = 16;
+
+    private static volatile OffHeapStore instance;
+
+    private static final class SizeClass {
+        final byte index;
+        final int slotSize;
+        /** The slab slots are cut from, or -1 before the first allocation. */
+        int slab = -1;
+        /** Offset of the next never used slot in {@code slab}. */
+        int next = 0;
+        long[] freeHandles = new long[16];
+        int freeCount = 0;
+        volatile long usedSlots = 0;
+        volatile long payloadBytes = 0;
+
+        SizeClass(int index, int slotSize) {
+            this.index = (byte) index;
+            this.slotSize = slotSize;
+        }
+    }
+
+    private final SizeClass[] classes;
+    private final int slabSize;
+    /** The slabs, indexed by the high half of a handle; replaced by a copy twice as long when full. */
+    private volatile MemorySegment[] slabs = new MemorySegment[16];
+    /** The size class index of each slab in {@code slabs}. */
+    private volatile byte[] slabClasses = new byte[16];
+    private volatile int slabCount = 0;
+
+    private OffHeapStore(int slabSize, int maxSlotSize) {
+        this.slabSize = slabSize;
+        int count = 0;
+        for (int size = MIN_SLOT_SIZE; size <= maxSlotSize; size = nextSlotSize(size)) {
+            count++;
+        }
+        classes = new SizeClass[count];
+        int size = MIN_SLOT_SIZE;
+        for (int i = 0; i < count; i++, size = nextSlotSize(size)) {
+            classes[i] = new SizeClass(i, size);
+        }
+    }
+
+    private static int nextSlotSize(int size) {
+        // 16, 24, 32, 48, 64, 96, ...: a power of two, then half way to the next one.
+        return Integer.bitCount(size) == 1 ? size + size / 2 : Integer.highestOneBit(size) * 2;
+    }
+
+    /**
+     * @return the store, or null unless {@code value-storage} is {@code offheap}
+     */
+    public static OffHeapStore getInstance() {
+        if (instance == null && "offheap".equalsIgnoreCase(Configs.getConfiguration("value-storage"))) {
+            synchronized (OffHeapStore.class) {
+                if (instance == null) {
+                    instance = new OffHeapStore(Configs.OFFHEAP_SLAB_SIZE, Configs.OFFHEAP_MAX_SLOT_SIZE);
+                    LoggingService.logInfo("Storing string values off heap in " + instance.classes.length
+                            + " size classes up to " + Configs.OFFHEAP_MAX_SLOT_SIZE + " bytes");
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return the longest string a slot holds
+     */
+    public int maxLength() {
+        return classes[classes.length - 1].slotSize - LENGTH_PREFIX;
+    }
+
+    /**
+     * Copies {@code length} bytes, at most {@link #maxLength()}, into a slot.
+     *
+     * @return the slot's handle
+     */
+    public long store(byte[] bytes, int from, int length) {
+        SizeClass sizeClass = classes[classFor(length + LENGTH_PREFIX)];
+        long handle = allocate(sizeClass, length);
+        MemorySegment slab = slabs[(int) (handle >>> 32)];
+        long offset = (int) handle;
+        slab.set(ValueLayout.JAVA_INT, offset, length);
+        MemorySegment.copy(bytes, from, slab, ValueLayout.JAVA_BYTE, offset + LENGTH_PREFIX, length);
+        return handle;
+    }
+
+    /**
+     * @return a copy of the bytes in the slot
+     */
+    public byte[] read(long handle) {
+        MemorySegment slab = slabs[(int) (handle >>> 32)];
+        long offset = (int) handle;
+        byte[] bytes = new byte[slab.get(ValueLayout.JAVA_INT, offset)];
+        MemorySegment.copy(slab, ValueLayout.JAVA_BYTE, offset + LENGTH_PREFIX, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * @return the slab holding the slot, whose bytes start at {@link #dataOffset(long)}, for copying them out
+     * without a heap array; the caller holds the key's shard lock, so the slot is not freed meanwhile
+     */
+    public MemorySegment slab(long handle) {
+        return slabs[(int) (handle >>> 32)];
+    }
+
+    public static long dataOffset(long handle) {
+        return (int) handle + LENGTH_PREFIX;
+    }
+
+    public int length(long handle) {
+        return slabs[(int) (handle >>> 32)].get(ValueLayout.JAVA_INT, (int) handle);
+    }
+
+    /**
+     * @return the bytes the slot takes, its length prefix and padding included
+     */
+    public int slotSize(long handle) {
+        return classes[slabClasses[(int) (handle >>> 32)]].slotSize;
+    }
+
+    /**
+     * Puts the slot on its class's free list. The handle must not be used again.
+     */
+    public void free(long handle) {
+        SizeClass sizeClass = classes[slabClasses[(int) (handle >>> 32)]];
+        int length = length(handle);
+        synchronized (sizeClass) {
+            if (sizeClass.freeCount == sizeClass.freeHandles.length) {
+                sizeClass.freeHandles = Arrays.copyOf(sizeClass.freeHandles, sizeClass.freeCount * 2);
+            }
+            sizeClass.freeHandles[sizeClass.freeCount++] = handle;
+            sizeClass.usedSlots--;
+            sizeClass.payloadBytes -= length;
+        }
+    }
+
+    private int classFor(int size) {
+        int low = 0;
+        int high = classes.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (classes[mid].slotSize < size) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private long allocate(SizeClass sizeClass, int length) {
+        synchronized (sizeClass) {
+            sizeClass.usedSlots++;
+            sizeClass.payloadBytes += length;
+            if (sizeClass.freeCount > 0) {
+                return sizeClass.freeHandles[--sizeClass.freeCount];
+            }
+            if (sizeClass.slab < 0 || sizeClass.next + sizeClass.slotSize > slabSize) {
+                sizeClass.slab = addSlab(sizeClass);
+                sizeClass.next = 0;
+            }
+            long handle = ((long) sizeClass.slab << 32) | sizeClass.next;
+            sizeClass.next += sizeClass.slotSize;
+            return handle;
+        }
+    }
+
+    private synchronized int addSlab(SizeClass sizeClass) {
+        if (slabCount == slabs.length) {
+            slabClasses = Arrays.copyOf(slabClasses, slabCount * 2);
+            slabs = Arrays.copyOf(slabs, slabCount * 2);
+        }
+        // Handles into the slab reach other threads only through the class or shard locks, which publish it.
+        slabClasses[slabCount] = sizeClass.index;
+        slabs[slabCount] = Arena.global().allocate(slabSize, Long.BYTES);
+        return slabCount++;
+    }
+
+    /**
+     * Adds the off-heap fields of the INFO memory section. The fragmentation ratio is the memory reserved in
+     * slabs over the bytes of the strings stored in them.
+     */
+    public void appendInfo(Map<String, Object> info) {
+        int slabTotal = slabCount;
+        long reserved = (long) slabTotal * slabSize;
+        long used = 0;
+        long payload = 0;
+        long free = 0;
+        for (SizeClass sizeClass : classes) {
+            used += sizeClass.usedSlots * sizeClass.slotSize;
+            payload += sizeClass.payloadBytes;
+            synchronized (sizeClass) {
+                free += sizeClass.freeCount;
+            }
+        }
+        info.put("offheap_slabs", slabTotal);
+        info.put("offheap_reserved", reserved);
+        info.put("offheap_reserved_human", MemoryAccountant.human(reserved));
+        info.put("offheap_used", used);
+        info.put("offheap_payload", payload);
+        info.put("offheap_free_slots", free);
+        info.put("offheap_fragmentation_ratio", String.format("%.2f", payload == 0 ? 0 : (double) reserved / payload));
+    }
+}
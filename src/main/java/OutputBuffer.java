@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Pending output of one client connection.
+ * <p>
+ * Replies are appended into pooled direct chunks; each chunk is kept in read mode (position is the next
+ * byte to send, limit is the end of the encoded data), and appends temporarily open the free space behind
+ * the limit. {@link #flush(SocketChannel)} hands every queued chunk to the socket in one gather write and
+ * recycles the chunks that were fully sent.
+ * <p>
+ * Methods are synchronized because in multi-reactor mode replies are produced on the event loop thread
+ * while the owning reactor flushes.
+ */
+public class OutputBuffer {
+    private static final int MAX_GATHER_BUFFERS = 1024;
+
+    private static final class Chunk {
+        final ByteBuffer buffer;
+        final boolean pooled;
+        private MemorySegment segment;
+
+        Chunk(ByteBuffer buffer, boolean pooled) {
+            this.buffer = buffer;
+            this.pooled = pooled;
+        }
+
+        /**
+         * @return a view of the whole buffer for copies from native memory, made on first use
+         */
+        MemorySegment segment() {
+            if (segment == null) {
+                segment = MemorySegment.ofBuffer(buffer.duplicate().clear());
+            }
+            return segment;
+        }
+    }
+
+    private final BufferPool pool;
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private ByteBuffer[] gather = new ByteBuffer[8];
+    private long pendingBytes = 0;
+    private boolean closed = false;
+    private boolean flushScheduled = false;
+    private ClientOutputLimits.ClientClass clientClass = ClientOutputLimits.ClientClass.NORMAL;
+    private long softLimitReachedAt = 0;
+    private boolean streaming = false;
+    private boolean refillRequested = false;
+
+    public OutputBuffer(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pendingBytes == 0;
+    }
+
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized ClientOutputLimits.ClientClass getClientClass() {
+        return clientClass;
+    }
+
+    public synchronized void setClientClass(ClientOutputLimits.ClientClass clientClass) {
+        this.clientClass = clientClass;
+        this.softLimitReachedAt = 0;
+    }
+
+    /**
+     * Checks the pending output against the limit of this client's class. The soft limit timer starts the
+     * first time the soft limit is seen exceeded and is reset whenever a check finds the output below it.
+     *
+     * @return why the client has to be disconnected, or null while it is within its limits
+     */
+    public synchronized String checkLimit(ClientOutputLimits.Limit limit) {
+        if (limit.hardBytes() > 0 && pendingBytes >= limit.hardBytes()) {
+            return "hard limit of " + limit.hardBytes() + " bytes reached (" + pendingBytes + " bytes pending)";
+        }
+        if (limit.softBytes() == 0 || pendingBytes < limit.softBytes()) {
+            softLimitReachedAt = 0;
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (softLimitReachedAt == 0) {
+            softLimitReachedAt = now;
+            return null;
+        }
+        if (now - softLimitReachedAt >= limit.softSeconds() * 1000) {
+            return "soft limit of " + limit.softBytes() + " bytes exceeded for " + (now - softLimitReachedAt)
+                    + " ms (" + pendingBytes + " bytes pending)";
+        }
+        return null;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Marks the start of a streamed reply. The writer producing it holds the refill until its first piece is
+     * written, then releases it with {@link #refillDone()}.
+     */
+    public synchronized void beginStreaming() {
+        streaming = true;
+        refillRequested = true;
+    }
+
+    public synchronized void endStreaming() {
+        streaming = false;
+        refillRequested = false;
+    }
+
+    /**
+     * @return true if a streamed reply is in progress, its pending output has drained below
+     * {@code lowWaterMark} and nobody has asked for the next piece yet; the caller then has to ask for it
+     */
+    public synchronized boolean requestRefill(long lowWaterMark) {
+        if (!streaming || refillRequested || closed || pendingBytes >= lowWaterMark) {
+            return false;
+        }
+        refillRequested = true;
+        return true;
+    }
+
+    public synchronized void refillDone() {
+        refillRequested = false;
+    }
+
+    /**
+     * @return true if the caller is the first to ask for a flush since the last one was taken
+     */
+    public synchronized boolean markFlushScheduled() {
+        if (flushScheduled || closed) {
+            return false;
+        }
+        flushScheduled = true;
+        return true;
+    }
+
+    public synchronized void clearFlushScheduled() {
+        flushScheduled = false;
+    }
+
+    public synchronized void write(String s) {
+        if (closed) {
+            return;
+        }
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) >= 0x80) {
+                write(s.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        int i = 0;
+        while (i < length) {
+            ByteBuffer tail = openTail();
+            int n = Math.min(tail.remaining(), length - i);
+            for (int end = i + n; i < end; i++) {
+                tail.put((byte) s.charAt(i));
+            }
+            closeTail(tail);
+        }
+        pendingBytes += length;
+    }
+
+    public synchronized void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Copies the bytes into pooled chunks. A slice of at least a chunk's size is queued without copying, so
+     * the caller must not modify it afterwards.
+     */
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        if (closed) {
+            return;
+        }
+        if (length >= pool.getBufferSize()) {
+            appendExternal(ByteBuffer.wrap(bytes, offset, length));
+            return;
+        }
+        int end = offset + length;
+        while (offset < end) {
+            ByteBuffer tail = openTail();
+            int n = Math.min(tail.remaining(), end - offset);
+            tail.put(bytes, offset, n);
+            offset += n;
+            closeTail(tail);
+        }
+        pendingBytes += length;
+    }
+
+    /**
+     * Copies bytes of native memory, such as an {@link OffHeapStore} slot, straight into pooled chunks.
+     */
+    public synchronized void write(MemorySegment source, long offset, int length) {
+        if (closed) {
+            return;
+        }
+        long end = offset + length;
+        while (offset < end) {
+            ByteBuffer tail = openTail();
+            int n = (int) Math.min(tail.remaining(), end - offset);
+            MemorySegment.copy(source, offset, chunks.peekLast().segment(), tail.position(), n);
+            tail.position(tail.position() + n);
+            offset += n;
+            closeTail(tail);
+        }
+        pendingBytes += length;
+    }
+
+    /**
+     * Queues a buffer owned by the caller (for example a shared replication frame) without copying it.
+     */
+    public synchronized void write(ByteBuffer buffer) {
+        if (closed) {
+            return;
+        }
+        appendExternal(buffer);
+    }
+
+    private void appendExternal(ByteBuffer buffer) {
+        chunks.addLast(new Chunk(buffer, false));
+        pendingBytes += buffer.remaining();
+    }
+
+    private ByteBuffer openTail() {
+        Chunk last = chunks.peekLast();
+        if (last == null || !last.pooled || last.buffer.limit() == last.buffer.capacity()) {
+            ByteBuffer fresh = pool.acquire();
+            fresh.flip();
+            last = new Chunk(fresh, true);
+            chunks.addLast(last);
+        }
+        ByteBuffer tail = last.buffer;
+        tail.mark();
+        tail.position(tail.limit()).limit(tail.capacity());
+        return tail;
+    }
+
+    private void closeTail(ByteBuffer tail) {
+        int end = tail.position();
+        tail.reset();
+        tail.limit(end);
+    }
+
+    /**
+     * Writes as much pending output as the socket accepts with a single gather write.
+     *
+     * @return number of bytes written, or -1 if nothing was pending and no write was made
+     */
+    public synchronized long flush(SocketChannel channel) throws IOException {
+        if (pendingBytes == 0) {
+            return -1;
+        }
+        int count = Math.min(chunks.size(), MAX_GATHER_BUFFERS);
+        if (gather.length < count) {
+            gather = new ByteBuffer[Math.min(Integer.highestOneBit(count) << 1, MAX_GATHER_BUFFERS)];
+        }
+        int i = 0;
+        for (Chunk chunk : chunks) {
+            if (i == count) {
+                break;
+            }
+            gather[i++] = chunk.buffer;
+        }
+        long written = channel.write(gather, 0, count);
+        pendingBytes -= written;
+        for (int j = 0; j < count; j++) {
+            gather[j] = null;
+        }
+
+        while (!chunks.isEmpty() && !chunks.peekFirst().buffer.hasRemaining()) {
+            Chunk chunk = chunks.pollFirst();
+            if (chunk.pooled) {
+                pool.release(chunk.buffer);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Drops all pending output and returns the pooled chunks. Later writes are ignored.
+     */
+    public synchronized void close() {
+        closed = true;
+        Chunk chunk;
+        while ((chunk = chunks.pollFirst()) != null) {
+            if (chunk.pooled) {
+                pool.release(chunk.buffer);
+            }
+        }
+        pendingBytes = 0;
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Input buffer of one client connection.
+ * <p>
+ * Starts at {@link Configs#QUERY_BUFFER_INITIAL_SIZE} and doubles whenever a read finds it full, up to
+ * {@code client-query-buffer-limit}. When the parser knows that the pending command carries a bulk
+ * argument larger than {@link Configs#BIG_ARG_THRESHOLD}, the buffer is resized once to exactly the size of
+ * that command so the value is read in place instead of going through repeated doublings. Oversized buffers
+ * are shrunk back by {@link #shrinkIfIdle(long)} once the client goes quiet.
+ * <p>
+ * Between reads the buffer is in write mode; {@link #beginParse()} flips it for the parser and
+ * {@link #endParse()} moves any unparsed bytes back to the front.
+ */
+public class QueryBuffer {
+    private final int initialSize;
+    private ByteBuffer buffer;
+    private long lastReadAt;
+    private int peakUsage = 0;
+
+    public QueryBuffer(int initialSize) {
+        this.initialSize = initialSize;
+        this.buffer = ByteBuffer.allocate(initialSize);
+        this.lastReadAt = System.currentTimeMillis();
+    }
+
+    public boolean isOversized() {
+        return buffer.capacity() > initialSize;
+    }
+
+    public int readFrom(SocketChannel channel) throws IOException {
+        if (!buffer.hasRemaining()) {
+            reserve(buffer.capacity() + 1);
+        }
+        int bytesRead = channel.read(buffer);
+        if (bytesRead > 0) {
+            lastReadAt = System.currentTimeMillis();
+            peakUsage = Math.max(peakUsage, buffer.position());
+        }
+        return bytesRead;
+    }
+
+    public ByteBuffer beginParse() {
+        buffer.flip();
+        return buffer;
+    }
+
+    public void endParse() {
+        if (buffer.hasRemaining()) {
+            buffer.compact();
+        } else {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Called after {@link #endParse()} with the total size of the partially received command, when the
+     * parser knows it. Big arguments get a buffer sized for the whole command in one step.
+     */
+    public void expectCommandOfLength(int commandLength) throws IOException {
+        if (commandLength > buffer.capacity() && commandLength >= Configs.BIG_ARG_THRESHOLD) {
+            checkLimit(commandLength);
+            resize(commandLength);
+        }
+    }
+
+    private void reserve(int requiredCapacity) throws IOException {
+        long limit = checkLimit(requiredCapacity);
+        long doubled = Math.max((long) buffer.capacity() * 2, requiredCapacity);
+        resize((int) Math.min(doubled, limit));
+    }
+
+    /**
+     * @return the effective query buffer limit, which the required capacity is known to fit in
+     */
+    private int checkLimit(int requiredCapacity) throws IOException {
+        long limit = Math.min(Configs.getMemoryConfiguration("client-query-buffer-limit", Configs.DEFAULT_QUERY_BUFFER_LIMIT),
+                Integer.MAX_VALUE - 8);
+        if (requiredCapacity > limit) {
+            throw new IOException("client query buffer limit exceeded: " + requiredCapacity + " > " + limit + " bytes");
+        }
+        return (int) limit;
+    }
+
+    private void resize(int newCapacity) {
+        ByteBuffer resized = ByteBuffer.allocate(newCapacity);
+        buffer.flip();
+        resized.put(buffer);
+        buffer = resized;
+    }
+
+    /**
+     * Gives memory back for clients that went idle or whose recent traffic is far below the buffer size.
+     *
+     * @return true if the buffer is still larger than its initial size
+     */
+    public boolean shrinkIfIdle(long now) {
+        if (!isOversized()) {
+            return false;
+        }
+        int used = buffer.position();
+        boolean idle = now - lastReadAt >= Configs.QUERY_BUFFER_IDLE_SHRINK_MS;
+        boolean mostlyUnused = buffer.capacity() / 4 > Math.max(peakUsage, initialSize);
+        if ((idle || (mostlyUnused && used == 0)) && used <= buffer.capacity() / 2) {
+            int target = initialSize;
+            while (target < used) {
+                target <<= 1;
+            }
+            if (target < buffer.capacity()) {
+                resize(target);
+            }
+        }
+        peakUsage = used;
+        return isOversized();
+    }
+}
@@ -60,8 +60,8 @@ public class RDBParser {
             checkEOF(opCode, "Reading op code");
 
             if (opCode == OP_AUX) {
-                String key = readString(reader);
-                String value = readString(reader);
+                ByteString key = readString(reader);
+                ByteString value = readString(reader);
                 LoggingService.logInfo("Auxiliary key: " + key + " value: " + value);
             } else if (opCode == OP_SELECTDB) {
                 int dbNo = getLengthAndEncoding(reader).length;
@@ -72,17 +72,17 @@ public class RDBParser {
                 int expirySecs = readInt(reader);
                 int valueType = reader.read();
                 checkEOF(valueType, "Reading value type");
-                String key = readString(reader);
+                ByteString key = readString(reader);
                 Object value = readValueByType(reader, valueType);
-                Cache.getInstance().putFromDB(key, new Cache.Value(value, Cache.TYPE_STRING), expirySecs * 1000L);
+                Cache.getInstance().putFromDB(key, toCacheValue(value), expirySecs * 1000L);
                 LoggingService.logInfo("Setting expiry for key: " + key + " value: " + value + " expiry (S): " + expirySecs);
             } else if (opCode == OP_EXPIRETIMEMS) {
                 long expiryMillis = readLong(reader);
                 int valueType = reader.read();
                 checkEOF(valueType, "Reading value type");
-                String key = readString(reader);
+                ByteString key = readString(reader);
                 Object value = readValueByType(reader, valueType);
-                Cache.getInstance().putFromDB(key, new Cache.Value(value, Cache.TYPE_STRING), expiryMillis);
+                Cache.getInstance().putFromDB(key, toCacheValue(value), expiryMillis);
                 LoggingService.logInfo("Setting expiry for key: " + key + " value: " + value + " expiry (MS): " + expiryMillis);
             } else if (opCode == OP_END) {
                 LoggingService.logInfo("End of file reached");
@@ -90,14 +90,21 @@ public class RDBParser {
             } else {
                 // This for a normal key value pair
                 checkEOF(opCode, "Reading value type");
-                String key = readString(reader);
+                ByteString key = readString(reader);
                 Object value = readValueByType(reader, opCode);
-                Cache.getInstance().putFromDB(key, new Cache.Value(value, Cache.TYPE_STRING), 0);
+                Cache.getInstance().putFromDB(key, toCacheValue(value), 0);
                 LoggingService.logInfo("Key: " + key + " value: " + value);
             }
         }
     }
 
+    /**
+     * @return the value to store for what was read, strings integer-encoded when they are integers
+     */
+    private static Cache.Value toCacheValue(Object value) {
+        return value instanceof ByteString string ? Cache.Value.ofString(string) : new Cache.Value(value, Cache.TYPE_STRING);
+    }
+
     private Object readValueByType(DataInputStream reader, int valueType) throws IOException {
         if (valueType == VALUE_TYPE_STRING) {
             return readString(reader);
@@ -111,7 +118,7 @@ public class RDBParser {
 
     private Object readSet(DataInputStream reader) throws IOException {
         int size = readLengthEncodedNum(reader);
-        Set<String> set = new HashSet<>(size);
+        Set<ByteString> set = new HashSet<>(size);
         for (int i = 0; i < size; i++) {
             set.add(readString(reader));
         }
@@ -120,7 +127,7 @@ public class RDBParser {
 
     private Object readList(DataInputStream reader) throws IOException {
         int size = readLengthEncodedNum(reader);
-        List<String> list = new ArrayList<>(size);
+        List<ByteString> list = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
             list.add(readString(reader));
         }
@@ -152,15 +159,15 @@ public class RDBParser {
         return num;
     }
 
-    private String readString(DataInputStream reader) throws IOException {
+    private ByteString readString(DataInputStream reader) throws IOException {
         LengthEncoding lengthEncoding = getLengthAndEncoding(reader);
         if (lengthEncoding.encoded) {
             if (lengthEncoding.length == ENC_8BIT_INT) {
-                return String.valueOf(readByte(reader));
+                return ByteString.valueOf(readByte(reader));
             } else if (lengthEncoding.length == ENC_16BIT_INT) {
-                return String.valueOf(readShort(reader));
+                return ByteString.valueOf(readShort(reader));
             } else if (lengthEncoding.length == ENC_32BIT_INT) {
-                return String.valueOf(readInt(reader));
+                return ByteString.valueOf(readInt(reader));
             } else if (lengthEncoding.length == ENC_COMPRESSED) {
                 LengthEncoding compressedLenEnc = getLengthAndEncoding(reader);
                 LengthEncoding uncompressedLenEnc = getLengthAndEncoding(reader);
@@ -175,7 +182,7 @@ public class RDBParser {
                 if (decode != uncompressedBytes.length) {
                     throw new IOException("Unexpected decode length: " + decode);
                 }
-                return new String(uncompressedBytes);
+                return ByteString.wrap(uncompressedBytes);
             } else {
                 throw new IOException("Unexpected encoded length: " + lengthEncoding.length);
             }
@@ -185,7 +192,7 @@ public class RDBParser {
             if (read != bytes.length) {
                 throw new IOException("Unexpected EOF reading string");
             }
-            return new String(bytes);
+            return ByteString.wrap(bytes);
         }
     }
 
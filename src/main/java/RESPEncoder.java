@@ -4,6 +4,32 @@ import java.util.List;
 import java.util.Map;
 
 public class RESPEncoder {
+    public static final byte[] CRLF = ascii("\r\n");
+    public static final byte[] OK = ascii("+OK\r\n");
+    public static final byte[] QUEUED = ascii("+QUEUED\r\n");
+    public static final byte[] NULL_BULK_STRING = ascii("$-1\r\n");
+    public static final byte[] EMPTY_ARRAY = ascii("*0\r\n");
+
+    private static final int SHARED_INTEGERS = 10000;
+    private static final byte[][] INTEGERS = new byte[SHARED_INTEGERS][];
+
+    static {
+        for (int i = 0; i < SHARED_INTEGERS; i++) {
+            INTEGERS[i] = ascii(":" + i + "\r\n");
+        }
+    }
+
+    /**
+     * @return the pre-encoded {@code :<value>\r\n} reply for values 0-9999, or null for other values.
+     * Shared arrays must not be modified.
+     */
+    public static byte[] sharedInteger(long value) {
+        return value >= 0 && value < SHARED_INTEGERS ? INTEGERS[(int) value] : null;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
 
     public static String encodeSimpleString(String s) {
         return "+" + s + "\r\n";
@@ -17,7 +43,30 @@ public class RESPEncoder {
         if (s == null) {
             return "$-1\r\n";
         }
-        return "$" + s.length() + "\r\n" + s + "\r\n";
+        return "$" + utf8Length(s) + "\r\n" + s + "\r\n";
+    }
+
+    /**
+     * Encodes an array of binary-safe bulk strings.
+     */
+    public static byte[] encodeBulkArray(List<ByteString> strings) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeHeader(out, '*', strings.size());
+        for (ByteString s : strings) {
+            writeBulkString(out, s);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the size in bytes of {@link #encodeBulkArray} for these strings, without encoding them
+     */
+    public static long bulkArrayLength(List<ByteString> strings) {
+        long length = headerLength(strings.size());
+        for (ByteString s : strings) {
+            length += headerLength(s.length()) + s.length() + 2;
+        }
+        return length;
     }
 
     public static String encodeStringArray(List<?> strings) {
@@ -68,33 +117,46 @@ public class RESPEncoder {
         return baos.toByteArray();
     }
 
-    public static String encodeArray(List<?> commandDocs) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("*").append(commandDocs.size()).append("\r\n");
-        for (Object command : commandDocs) {
-            if (command instanceof String) {
-                sb.append(encodeBulkString((String) command));
-            } else if (command instanceof Long || command instanceof Integer) {
-                sb.append(encodeInteger(((Number) command).longValue()));
-            } else if (command instanceof List<?>) {
-                sb.append(encodeArray((List<?>) command));
-            } else {
-                throw new IllegalArgumentException("Unsupported command type: " + command.getClass());
-            }
+    private static void writeBulkString(ByteArrayOutputStream out, ByteString s) {
+        writeHeader(out, '$', s.length());
+        out.write(s.array(), s.arrayOffset(), s.length());
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, char prefix, long value) {
+        out.write(prefix);
+        String digits = Long.toString(value);
+        for (int i = 0; i < digits.length(); i++) {
+            out.write(digits.charAt(i));
         }
-        return sb.toString();
+        out.write('\r');
+        out.write('\n');
     }
 
-    public static String encodeNull() {
-        return "$-1\r\n";
+    /**
+     * @return size of a {@code <prefix><value>\r\n} header for a non-negative value
+     */
+    private static int headerLength(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits + 3;
     }
 
-    public static String encodeRESPArray(List<String> results) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("*").append(results.size()).append("\r\n");
-        for (String result : results) {
-            sb.append(result);
+    private static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) >= 0x80) {
+                return s.getBytes(StandardCharsets.UTF_8).length;
+            }
         }
-        return sb.toString();
+        return length;
+    }
+
+    public static String encodeNull() {
+        return "$-1\r\n";
     }
 }
@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Byte-level RESP parser shared by client connections and the replication link.
+ * <p>
+ * A successful parse leaves the frame's arguments as views into the parsed buffer: an offset and a length
+ * per argument, kept in arrays that are reused from one frame to the next. Lengths and integers are read
+ * straight from the bytes, so parsing a frame allocates nothing; callers decide which arguments to
+ * materialize. The views are only valid until the buffer is modified, so anything that outlives the
+ * current read (for example a command handed to another thread) must be copied out first, which
+ * {@link #getBinaryArguments()} does with one array for the whole frame.
+ * <p>
+ * The buffer must be a heap buffer. Parse methods either consume one complete frame and return true, or
+ * leave the buffer position untouched and return false when more input is needed.
+ */
+public class RESPParser {
+    public static final long INCOMPLETE = Long.MIN_VALUE;
+
+    private static final int MAX_INLINE_LENGTH = 64 * 1024;
+    private static final int MAX_MULTIBULK_LENGTH = 1024 * 1024;
+    private static final long MAX_BULK_LENGTH = 512L * 1024 * 1024;
+
+    private byte[] source;
+    private int[] argOffsets = new int[16];
+    private int[] argLengths = new int[16];
+    private int argc;
+    private byte type;
+    private boolean nullValue;
+    private int frameLength;
+
+    private int frameStart;
+    private int pendingCommandLength;
+
+    /**
+     * @return the RESP type byte of the last parsed frame: '*' for arrays and commands (inline commands
+     * included), or '+', '-', ':' or '$'
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * @return true if the last frame was a null bulk string or null array
+     */
+    public boolean isNull() {
+        return nullValue;
+    }
+
+    public int getArgumentCount() {
+        return argc;
+    }
+
+    /**
+     * @return bytes consumed by the last parsed frame
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Length in bytes of the command the last {@link #parseCommand} call could not complete, counted up to
+     * the end of the bulk argument it was waiting for, or 0 when not known.
+     */
+    public int getPendingCommandLength() {
+        return pendingCommandLength;
+    }
+
+    public int getArgumentLength(int index) {
+        return argLengths[index];
+    }
+
+    public String getArgument(int index) {
+        return new String(source, argOffsets[index], argLengths[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a binary-safe copy of an argument, which stays valid after the buffer changes
+     */
+    public ByteString getBinaryArgument(int index) {
+        return ByteString.copyOf(source, argOffsets[index], argLengths[index]);
+    }
+
+    /**
+     * @return the arguments as {@link ByteString#slice slices} of one copy of the bytes they span, so they
+     * stay valid after the buffer changes at the cost of a single array per frame
+     */
+    public List<ByteString> getBinaryArguments() {
+        List<ByteString> args = new ArrayList<>(argc);
+        if (argc == 0) {
+            return args;
+        }
+        int start = argOffsets[0];
+        byte[] copy = Arrays.copyOfRange(source, start, argOffsets[argc - 1] + argLengths[argc - 1]);
+        for (int i = 0; i < argc; i++) {
+            args.add(ByteString.slice(copy, argOffsets[i] - start, argLengths[i]));
+        }
+        return args;
+    }
+
+    public List<String> getArguments() {
+        List<String> args = new ArrayList<>(argc);
+        for (int i = 0; i < argc; i++) {
+            args.add(getArgument(i));
+        }
+        return args;
+    }
+
+    /**
+     * Compares an argument with a lowercase ASCII word, ignoring the case of the argument.
+     */
+    public boolean argumentEqualsIgnoreCase(int index, String lowercase) {
+        int length = argLengths[index];
+        if (length != lowercase.length()) {
+            return false;
+        }
+        int offset = argOffsets[index];
+        for (int i = 0; i < length; i++) {
+            int b = source[offset + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowercase.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses one client request: a RESP array of bulk strings, or an inline command. Empty inline lines are
+     * skipped.
+     */
+    public boolean parseCommand(ByteBuffer buffer) throws IOException {
+        pendingCommandLength = 0;
+        while (true) {
+            if (!begin(buffer)) {
+                return false;
+            }
+            byte[] array = buffer.array();
+            int start = buffer.arrayOffset() + buffer.position();
+            int end = buffer.arrayOffset() + buffer.limit();
+            int next = array[start] == '*' ? parseArray(array, start, end) : parseInline(array, start, end);
+            if (next < 0) {
+                return false;
+            }
+            buffer.position(next - buffer.arrayOffset());
+            frameLength = next - start;
+            if (argc > 0) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Parses one message of any type a master sends to its replica: simple strings, errors, integers, bulk
+     * strings and arrays of bulk strings. Single values are exposed as argument 0.
+     */
+    public boolean parseMessage(ByteBuffer buffer) throws IOException {
+        pendingCommandLength = 0;
+        if (!begin(buffer)) {
+            return false;
+        }
+        byte[] array = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int end = buffer.arrayOffset() + buffer.limit();
+        int next;
+        switch (array[start]) {
+            case '*' -> next = parseArray(array, start, end);
+            case '+', '-', ':' -> next = parseSimple(array, start, end);
+            case '$' -> {
+                type = '$';
+                argc = 0;
+                next = parseBulk(array, start, end, 0);
+                if (next >= 0 && !nullValue) {
+                    argc = 1;
+                }
+            }
+            default -> throw new IOException("Unknown or unsupported RESP type: '" + (char) array[start] + "'");
+        }
+        if (next < 0) {
+            return false;
+        }
+        buffer.position(next - buffer.arrayOffset());
+        frameLength = next - start;
+        return true;
+    }
+
+    /**
+     * Reads a {@code <prefix><length>\r\n} line without its payload, as used by the RDB transfer that
+     * follows FULLRESYNC.
+     *
+     * @return the length, or {@link #INCOMPLETE} if the line has not fully arrived
+     */
+    public long parseLengthLine(ByteBuffer buffer, byte prefix) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return INCOMPLETE;
+        }
+        byte[] array = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int end = buffer.arrayOffset() + buffer.limit();
+        if (array[start] != prefix) {
+            throw new IOException("Malformed RESP: Expected '" + (char) prefix + "' prefix.");
+        }
+        int lineEnd = findCRLF(array, start + 1, end);
+        if (lineEnd < 0) {
+            return INCOMPLETE;
+        }
+        long length = parseLong(array, start + 1, lineEnd);
+        buffer.position(lineEnd + 2 - buffer.arrayOffset());
+        return length;
+    }
+
+    private boolean begin(ByteBuffer buffer) {
+        if (!buffer.hasArray()) {
+            throw new IllegalArgumentException("RESPParser needs a heap buffer");
+        }
+        argc = 0;
+        nullValue = false;
+        frameLength = 0;
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+        source = buffer.array();
+        frameStart = buffer.arrayOffset() + buffer.position();
+        return true;
+    }
+
+    /**
+     * @return index just past the array, or -1 if incomplete
+     */
+    private int parseArray(byte[] array, int start, int end) throws IOException {
+        type = '*';
+        int lineEnd = findCRLF(array, start + 1, end);
+        if (lineEnd < 0) {
+            checkLineLength(start, end, "multibulk count");
+            return -1;
+        }
+        long count = parseLong(array, start + 1, lineEnd);
+        if (count > MAX_MULTIBULK_LENGTH) {
+            throw new IOException("invalid multibulk length");
+        }
+        int pos = lineEnd + 2;
+        if (count < 0) {
+            nullValue = true;
+            return pos;
+        }
+        for (int i = 0; i < count; i++) {
+            if (pos >= end) {
+                return -1;
+            }
+            if (array[pos] != '$') {
+                throw new IOException("Malformed RESP: Expected '$' bulk string prefix, got '" + (char) array[pos] + "'.");
+            }
+            pos = parseBulk(array, pos, end, i);
+            if (pos < 0) {
+                return -1;
+            }
+            if (nullValue) {
+                throw new IOException("Malformed RESP: null bulk string inside a command.");
+            }
+            argc = i + 1;
+        }
+        return pos;
+    }
+
+    /**
+     * Parses {@code $<len>\r\n<data>\r\n} into argument slot {@code index}.
+     *
+     * @return index just past the bulk string, or -1 if incomplete
+     */
+    private int parseBulk(byte[] array, int start, int end, int index) throws IOException {
+        int lineEnd = findCRLF(array, start + 1, end);
+        if (lineEnd < 0) {
+            checkLineLength(start, end, "bulk length");
+            return -1;
+        }
+        long length = parseLong(array, start + 1, lineEnd);
+        if (length > MAX_BULK_LENGTH) {
+            throw new IOException("invalid bulk length");
+        }
+        int dataStart = lineEnd + 2;
+        if (length < 0) {
+            nullValue = true;
+            return dataStart;
+        }
+        long frameEnd = (long) dataStart + length + 2;
+        if (frameEnd > end) {
+            pendingCommandLength = (int) Math.min(Integer.MAX_VALUE, frameEnd - frameStart);
+            return -1;
+        }
+        if (array[dataStart + (int) length] != '\r' || array[dataStart + (int) length + 1] != '\n') {
+            throw new IOException("Malformed bulk string: Missing or invalid trailing \\r\\n after data.");
+        }
+        ensureCapacity(index + 1);
+        argOffsets[index] = dataStart;
+        argLengths[index] = (int) length;
+        return (int) frameEnd;
+    }
+
+    private int parseSimple(byte[] array, int start, int end) throws IOException {
+        type = array[start];
+        int lineEnd = findCRLF(array, start + 1, end);
+        if (lineEnd < 0) {
+            checkLineLength(start, end, "simple reply");
+            return -1;
+        }
+        argOffsets[0] = start + 1;
+        argLengths[0] = lineEnd - start - 1;
+        argc = 1;
+        return lineEnd + 2;
+    }
+
+    /**
+     * Splits an inline command on spaces and tabs. Lines may end with \r\n or a bare \n.
+     */
+    private int parseInline(byte[] array, int start, int end) throws IOException {
+        type = '*';
+        int newline = -1;
+        for (int i = start; i < end; i++) {
+            if (array[i] == '\n') {
+                newline = i;
+                break;
+            }
+        }
+        if (newline < 0) {
+            checkLineLength(start, end, "inline request");
+            return -1;
+        }
+        int lineEnd = newline > start && array[newline - 1] == '\r' ? newline - 1 : newline;
+        int pos = start;
+        while (pos < lineEnd) {
+            while (pos < lineEnd && isInlineSpace(array[pos])) {
+                pos++;
+            }
+            if (pos == lineEnd) {
+                break;
+            }
+            int argStart = pos;
+            while (pos < lineEnd && !isInlineSpace(array[pos])) {
+                pos++;
+            }
+            ensureCapacity(argc + 1);
+            argOffsets[argc] = argStart;
+            argLengths[argc] = pos - argStart;
+            argc++;
+        }
+        return newline + 1;
+    }
+
+    private static boolean isInlineSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static void checkLineLength(int start, int end, String what) throws IOException {
+        if (end - start > MAX_INLINE_LENGTH) {
+            throw new IOException("too big " + what);
+        }
+    }
+
+    /**
+     * @return index of the '\r' of the next CRLF at or after {@code from}, or -1 if there is none yet
+     */
+    private static int findCRLF(byte[] array, int from, int end) {
+        for (int i = from; i < end - 1; i++) {
+            if (array[i] == '\r' && array[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLong(byte[] array, int start, int end) throws IOException {
+        if (start == end) {
+            throw new IOException("Malformed RESP integer: empty");
+        }
+        boolean negative = array[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 18) {
+            throw new IOException("Malformed RESP integer: " + new String(array, start, end - start, StandardCharsets.US_ASCII));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = array[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Malformed RESP integer: " + new String(array, start, end - start, StandardCharsets.US_ASCII));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private void ensureCapacity(int count) {
+        if (count > argOffsets.length) {
+            int capacity = Math.max(count, argOffsets.length * 2);
+            argOffsets = Arrays.copyOf(argOffsets, capacity);
+            argLengths = Arrays.copyOf(argLengths, capacity);
+        }
+    }
+}
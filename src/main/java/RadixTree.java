@@ -0,0 +1,292 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.function.Predicate;
+
+/**
+ * Set of keys in a compressed radix tree, after Redis's rax, kept next to a shard's {@link Dict} when
+ * {@code key-index} is {@code radix} so that keys sharing a prefix can be found without visiting the others.
+ * <p>
+ * Each edge holds the run of bytes down to the next branch or key, so a chain of single-child nodes never
+ * forms: a node has either a key, or two or more children. Children are kept in an array sorted by their
+ * first byte, unsigned, so walking the tree depth first yields keys in lexicographic byte order. A node where
+ * a key ends holds the key itself, and walks hand out that instance rather than building it again.
+ * <p>
+ * Not thread-safe; callers hold the lock of the shard the tree belongs to.
+ */
+public final class RadixTree {
+    private static final byte[] NO_BYTES = new byte[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final class Node {
+        /** The bytes on the edge into this node. */
+        byte[] label;
+        /** The key ending at this node, or null. */
+        ByteString key;
+        /** The first byte of each child's label, in ascending unsigned order. */
+        byte[] childBytes = NO_BYTES;
+        Node[] children = NO_CHILDREN;
+
+        Node(byte[] label) {
+            this.label = label;
+        }
+
+        /**
+         * @return the index of the child whose label starts with {@code b}, or {@code -(insertion point) - 1}
+         */
+        int indexOf(byte b) {
+            int low = 0;
+            int high = childBytes.length - 1;
+            int target = b & 0xFF;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int value = childBytes[mid] & 0xFF;
+                if (value < target) {
+                    low = mid + 1;
+                } else if (value > target) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        void insertChild(int position, Node child) {
+            int count = children.length;
+            byte[] bytes = new byte[count + 1];
+            Node[] nodes = new Node[count + 1];
+            System.arraycopy(childBytes, 0, bytes, 0, position);
+            System.arraycopy(children, 0, nodes, 0, position);
+            bytes[position] = child.label[0];
+            nodes[position] = child;
+            System.arraycopy(childBytes, position, bytes, position + 1, count - position);
+            System.arraycopy(children, position, nodes, position + 1, count - position);
+            childBytes = bytes;
+            children = nodes;
+        }
+
+        void removeChild(int position) {
+            int count = children.length;
+            if (count == 1) {
+                childBytes = NO_BYTES;
+                children = NO_CHILDREN;
+                return;
+            }
+            byte[] bytes = new byte[count - 1];
+            Node[] nodes = new Node[count - 1];
+            System.arraycopy(childBytes, 0, bytes, 0, position);
+            System.arraycopy(children, 0, nodes, 0, position);
+            System.arraycopy(childBytes, position + 1, bytes, position, count - position - 1);
+            System.arraycopy(children, position + 1, nodes, position, count - position - 1);
+            childBytes = bytes;
+            children = nodes;
+        }
+    }
+
+    private final Node root = new Node(NO_BYTES);
+    private int size = 0;
+    private int nodes = 1;
+    private long labelBytes = 0;
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of nodes, the root included
+     */
+    public int nodeCount() {
+        return nodes;
+    }
+
+    /**
+     * @return the bytes of all edge labels
+     */
+    public long labelBytes() {
+        return labelBytes;
+    }
+
+    /**
+     * @return true if the key was not in the tree
+     */
+    public boolean insert(ByteString key) {
+        byte[] bytes = key.array();
+        int end = key.arrayOffset() + key.length();
+        Node node = root;
+        int i = key.arrayOffset();
+        while (i < end) {
+            int position = node.indexOf(bytes[i]);
+            if (position < 0) {
+                Node leaf = new Node(Arrays.copyOfRange(bytes, i, end));
+                leaf.key = key;
+                node.insertChild(-position - 1, leaf);
+                nodes++;
+                labelBytes += leaf.label.length;
+                size++;
+                return true;
+            }
+            Node child = node.children[position];
+            int common = commonPrefix(child.label, bytes, i, end);
+            if (common < child.label.length) {
+                // The key leaves the edge part way: split it at the branch.
+                Node branch = new Node(Arrays.copyOf(child.label, common));
+                child.label = Arrays.copyOfRange(child.label, common, child.label.length);
+                branch.childBytes = new byte[]{child.label[0]};
+                branch.children = new Node[]{child};
+                node.children[position] = branch;
+                nodes++;
+                child = branch;
+            }
+            node = child;
+            i += common;
+        }
+        if (node.key != null) {
+            return false;
+        }
+        node.key = key;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return true if the key was in the tree
+     */
+    public boolean remove(ByteString key) {
+        byte[] bytes = key.array();
+        int end = key.arrayOffset() + key.length();
+        Node parent = null;
+        int parentPosition = -1;
+        Node node = root;
+        int i = key.arrayOffset();
+        while (i < end) {
+            int position = node.indexOf(bytes[i]);
+            if (position < 0) {
+                return false;
+            }
+            Node child = node.children[position];
+            if (commonPrefix(child.label, bytes, i, end) < child.label.length) {
+                return false;
+            }
+            parent = node;
+            parentPosition = position;
+            node = child;
+            i += child.label.length;
+        }
+        if (node.key == null) {
+            return false;
+        }
+        node.key = null;
+        size--;
+        if (node == root) {
+            return true;
+        }
+        if (node.children.length == 0) {
+            parent.removeChild(parentPosition);
+            nodes--;
+            labelBytes -= node.label.length;
+            // The parent may be left as a keyless node with one child, which merges into it.
+            if (parent != root && parent.key == null && parent.children.length == 1) {
+                mergeWithOnlyChild(parent);
+            }
+        } else if (node.children.length == 1) {
+            mergeWithOnlyChild(node);
+        }
+        return true;
+    }
+
+    private void mergeWithOnlyChild(Node node) {
+        Node child = node.children[0];
+        byte[] label = Arrays.copyOf(node.label, node.label.length + child.label.length);
+        System.arraycopy(child.label, 0, label, node.label.length, child.label.length);
+        node.label = label;
+        node.key = child.key;
+        node.childBytes = child.childBytes;
+        node.children = child.children;
+        nodes--;
+    }
+
+    private static int commonPrefix(byte[] label, byte[] bytes, int offset, int end) {
+        int length = Math.min(label.length, end - offset);
+        int mismatch = Arrays.mismatch(label, 0, length, bytes, offset, offset + length);
+        return mismatch < 0 ? length : mismatch;
+    }
+
+    public void clear() {
+        root.key = null;
+        root.childBytes = NO_BYTES;
+        root.children = NO_CHILDREN;
+        size = 0;
+        nodes = 1;
+        labelBytes = 0;
+    }
+
+    /**
+     * Calls {@code action} for every key starting with {@code prefix}, in lexicographic byte order, visiting
+     * only the subtree below the prefix, until {@code action} returns false.
+     *
+     * @return true if every such key was passed, false if {@code action} stopped the walk
+     */
+    public boolean forEachWithPrefix(byte[] prefix, Predicate<ByteString> action) {
+        Walk walk = walk(prefix);
+        ByteString key;
+        while ((key = walk.next()) != null) {
+            if (!action.test(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a walk over the keys starting with {@code prefix}, in lexicographic byte order, that hands them
+     * out one at a time; the tree must not change until the walk is over
+     */
+    public Walk walk(byte[] prefix) {
+        Node node = root;
+        int i = 0;
+        while (i < prefix.length) {
+            int position = node.indexOf(prefix[i]);
+            if (position < 0) {
+                return new Walk(null);
+            }
+            Node child = node.children[position];
+            int length = Math.min(child.label.length, prefix.length - i);
+            if (!Arrays.equals(child.label, 0, length, prefix, i, i + length)) {
+                return new Walk(null);
+            }
+            node = child;
+            i += length;
+        }
+        return new Walk(node);
+    }
+
+    /**
+     * A depth-first walk below one node, holding the siblings still to visit on each level of the path.
+     */
+    public static final class Walk {
+        private final Deque<Node> pending = new ArrayDeque<>();
+
+        private Walk(Node from) {
+            if (from != null) {
+                pending.push(from);
+            }
+        }
+
+        /**
+         * @return the next key, or null once the walk is over
+         */
+        public ByteString next() {
+            while (!pending.isEmpty()) {
+                Node next = pending.pop();
+                for (int c = next.children.length - 1; c >= 0; c--) {
+                    pending.push(next.children[c]);
+                }
+                if (next.key != null) {
+                    return next.key;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -9,7 +9,6 @@ import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
-import java.util.function.Supplier;
 
 
 public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
@@ -20,27 +19,30 @@ public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
     private SocketChannel masterChannel;
 
     private final Consumer<ByteBuffer> queueWriteToMasterCallback;
-    private final Supplier<ByteBuffer> getMasterReadBufferCallback;
     private final CommandExecutor commandExecutor;
     private Consumer<Map.Entry<SocketChannel, ByteBuffer>> queueWriteToSlavesCallback;
+    private Consumer<SocketChannel> slaveRegisteredCallback;
 
     private int rdbBytesToRead = 0;
     private final ByteArrayOutputStream receivedRdbData = new ByteArrayOutputStream();
     private final Set<SocketChannel> connectedSlaves = Collections.synchronizedSet(new HashSet<>());
 
-    private final Queue<RESPDecoder.DecodedResult> bufferedReplicationCommands = new LinkedList<>();
+    private record ReplicatedCommand(List<ByteString> cmdAndArgs, int bytesProcessed) {
+    }
+
+    private final RESPParser parser = new RESPParser();
+    private final ReplyWriter discardedReplies = ReplyWriter.discarding();
+    private final Queue<ReplicatedCommand> bufferedReplicationCommands = new LinkedList<>();
     private long bytesProcessedInReplication = 0;
 
     private final Map<SocketChannel, Long> slaveAckOffsets = new ConcurrentHashMap<>();
 
     public ReplicationHandler(int port, Selector selector,
                               Consumer<ByteBuffer> queueWriteToMasterCallback,
-                              Supplier<ByteBuffer> getMasterReadBufferCallback,
                               CommandExecutor commandExecutor) {
         this.localServerPort = port;
         this.selector = selector;
         this.queueWriteToMasterCallback = queueWriteToMasterCallback;
-        this.getMasterReadBufferCallback = getMasterReadBufferCallback;
         this.commandExecutor = commandExecutor;
     }
 
@@ -48,11 +50,18 @@ public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
         this.queueWriteToSlavesCallback = callback;
     }
 
+    public void setSlaveRegisteredCallback(Consumer<SocketChannel> callback) {
+        this.slaveRegisteredCallback = callback;
+    }
+
     @Override
     public void registerSlaveChannel(SocketChannel slaveChannel) {
         connectedSlaves.add(slaveChannel);
         slaveAckOffsets.put(slaveChannel, 0L);
         LoggingService.logInfo("Registered new slave: " + slaveChannel);
+        if (slaveRegisteredCallback != null) {
+            slaveRegisteredCallback.accept(slaveChannel);
+        }
     }
 
     @Override
@@ -65,20 +74,21 @@ public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
     }
 
     @Override
-    public void replicateCommand(List<String> commandParts) {
+    public void replicateCommand(List<ByteString> commandParts) {
         if ("master".equalsIgnoreCase(Configs.getReplicationInfoAsString("role"))) {
-            String encodedCommand = RESPEncoder.encodeStringArray(commandParts);
-            ByteBuffer buffer = ByteBuffer.wrap(encodedCommand.getBytes(StandardCharsets.UTF_8));
+            ByteBuffer buffer = ByteBuffer.wrap(RESPEncoder.encodeBulkArray(commandParts));
 
-            for (SocketChannel slaveChannel : connectedSlaves) {
-                try {
-                    if (queueWriteToSlavesCallback != null) {
-                        queueWriteToSlavesCallback.accept(new AbstractMap.SimpleEntry<>(slaveChannel, buffer.duplicate()));
-                    } else {
-                        LoggingService.logWarn("queueWriteToSlavesCallback is not set. Cannot replicate command.");
+            synchronized (connectedSlaves) {
+                for (SocketChannel slaveChannel : connectedSlaves) {
+                    try {
+                        if (queueWriteToSlavesCallback != null) {
+                            queueWriteToSlavesCallback.accept(new AbstractMap.SimpleEntry<>(slaveChannel, buffer.duplicate()));
+                        } else {
+                            LoggingService.logWarn("queueWriteToSlavesCallback is not set. Cannot replicate command.");
+                        }
+                    } catch (Exception e) {
+                        LoggingService.logError("Error replicating command to slave " + slaveChannel + ": " + e.getMessage(), e);
                     }
-                } catch (Exception e) {
-                    LoggingService.logError("Error replicating command to slave " + slaveChannel + ": " + e.getMessage(), e);
                 }
             }
         }
@@ -162,6 +172,13 @@ public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
         state = ReplicationState.ERROR;
     }
 
+    /**
+     * @return the length of the message the last {@link #onRead} could not complete, or 0 when not known
+     */
+    public int getPendingMessageLength() {
+        return parser.getPendingCommandLength();
+    }
+
     public void onRead(SocketChannel channel, ByteBuffer buffer) {
         if (channel != masterChannel) {
             LoggingService.logWarn("onRead called for a channel that is not the master channel.");
@@ -178,49 +195,31 @@ public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
             }
 
             if (state == ReplicationState.AWAITING_RDB_BULK_STRING_HEADER) {
-                if (buffer.hasRemaining() && (char) buffer.get(buffer.position()) == '$') {
-                    String bulkStringHeader = readLine(buffer);
-                    if (bulkStringHeader == null) {
-                        return;
-                    }
-                    try {
-                        rdbBytesToRead = Integer.parseInt(bulkStringHeader.substring(1, bulkStringHeader.length() - 2));
-                        LoggingService.logInfo("Received RDB bulk string header. RDB size: " + rdbBytesToRead + " bytes.");
-                        state = ReplicationState.READING_RDB_BINARY;
-                        handleRdbBinaryRead(buffer);
-                        if (state == ReplicationState.READY_FOR_REPLICATION) {
-                            processBufferedAndRemainingCommands(buffer);
-                        }
-                        return;
-                    } catch (NumberFormatException | IndexOutOfBoundsException e) {
-                        throw new IOException("Malformed RDB bulk string length: '" + bulkStringHeader.trim() + "'", e);
-                    }
+                if (buffer.hasRemaining() && buffer.get(buffer.position()) == '$') {
+                    readRdbHeaderAndPayload(buffer);
+                    return;
                 }
             }
 
             while (buffer.hasRemaining()) {
-                buffer.mark();
-                RESPDecoder.DecodedResult decoded = RESPDecoder.decode(buffer);
-
-                Object decodedMessage = decoded.value;
-
-                if (decodedMessage == null) {
-                    buffer.reset();
+                if (!parser.parseMessage(buffer)) {
                     break;
                 }
+                if (parser.isNull()) {
+                    LoggingService.logWarn("Slave: Ignoring null reply from master in state " + state);
+                    continue;
+                }
 
                 if (state != ReplicationState.READY_FOR_REPLICATION) {
-                    if (decodedMessage instanceof List) {
-                        @SuppressWarnings("unchecked")
-                        List<String> cmdAndArgs = (List<String>) decodedMessage;
-
-                        if (isHandshakeResponse(decodedMessage)) {
-                            handleHandshakeCommandResponse(cmdAndArgs);
-                        } else {
-                            LoggingService.logInfo(String.format("Slave: Buffering command '%s' (received during handshake/RDB phase).", cmdAndArgs.getFirst()));
-                            bufferedReplicationCommands.add(decoded);
+                    if (parser.getType() == '*') {
+                        if (isHandshakeResponse()) {
+                            handleHandshakeCommandResponse(parser.getArguments());
+                        } else if (parser.getArgumentCount() > 0) {
+                            LoggingService.logInfo(String.format("Slave: Buffering command '%s' (received during handshake/RDB phase).", parser.getArgument(0)));
+                            bufferedReplicationCommands.add(new ReplicatedCommand(parser.getBinaryArguments(), parser.getFrameLength()));
                         }
-                    } else if (decodedMessage instanceof String rawResponse) {
+                    } else {
+                        String rawResponse = parser.getArgument(0);
                         LoggingService.logInfo("Received raw response from master (" + state + "): " + rawResponse.trim());
 
                         switch (state) {
@@ -255,24 +254,9 @@ public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
                                 if (rawResponse.startsWith("FULLRESYNC")) {
                                     LoggingService.logInfo("Received FULLRESYNC from master. Now awaiting RDB bulk string header.");
                                     state = ReplicationState.AWAITING_RDB_BULK_STRING_HEADER;
-                                    if (buffer.hasRemaining()) {
-                                        if ((char) buffer.get(buffer.position()) == '$') {
-                                            String bulkStringHeader = readLine(buffer);
-                                            if (bulkStringHeader != null) {
-                                                try {
-                                                    rdbBytesToRead = Integer.parseInt(bulkStringHeader.substring(1, bulkStringHeader.length() - 2));
-                                                    LoggingService.logInfo("Received RDB bulk string header. RDB size: " + rdbBytesToRead + " bytes.");
-                                                    state = ReplicationState.READING_RDB_BINARY;
-                                                    handleRdbBinaryRead(buffer);
-                                                    if (state == ReplicationState.READY_FOR_REPLICATION) {
-                                                        processBufferedAndRemainingCommands(buffer);
-                                                    }
-                                                    return;
-                                                } catch (NumberFormatException | IndexOutOfBoundsException e) {
-                                                    throw new IOException("Malformed RDB bulk string length: '" + bulkStringHeader.trim() + "'", e);
-                                                }
-                                            }
-                                        }
+                                    if (buffer.hasRemaining() && buffer.get(buffer.position()) == '$') {
+                                        readRdbHeaderAndPayload(buffer);
+                                        return;
                                     }
                                 } else {
                                     throw new IOException("Unexpected response to PSYNC: " + rawResponse);
@@ -282,12 +266,9 @@ public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
                                 LoggingService.logWarn("Received unexpected simple string from master in state: " + state + ": " + rawResponse);
                                 break;
                         }
-                    } else {
-                        LoggingService.logError("Slave: Expected simple string or command array during handshake, but received: " + decodedMessage.getClass().getSimpleName() + " (" + decodedMessage + ")");
-                        throw new IOException("Protocol error: Unexpected message type during handshake.");
                     }
                 } else {
-                    processReplicatedMessage(decoded);
+                    processReplicatedMessage();
                 }
             }
         } catch (IOException e) {
@@ -324,64 +305,76 @@ public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
         }
     }
 
+    /**
+     * Reads the {@code $<size>\r\n} header of the RDB transfer, then as much of the payload as has arrived.
+     */
+    private void readRdbHeaderAndPayload(ByteBuffer buffer) throws IOException {
+        long rdbSize = parser.parseLengthLine(buffer, (byte) '$');
+        if (rdbSize == RESPParser.INCOMPLETE) {
+            return;
+        }
+        if (rdbSize <= 0 || rdbSize > Integer.MAX_VALUE) {
+            throw new IOException("Malformed RDB bulk string length: " + rdbSize);
+        }
+        rdbBytesToRead = (int) rdbSize;
+        LoggingService.logInfo("Received RDB bulk string header. RDB size: " + rdbBytesToRead + " bytes.");
+        state = ReplicationState.READING_RDB_BINARY;
+        handleRdbBinaryRead(buffer);
+        if (state == ReplicationState.READY_FOR_REPLICATION) {
+            processBufferedAndRemainingCommands(buffer);
+        }
+    }
+
     private void processBufferedAndRemainingCommands(ByteBuffer buffer) throws IOException {
         while (!bufferedReplicationCommands.isEmpty()) {
-            RESPDecoder.DecodedResult decoded = bufferedReplicationCommands.poll();
-            processReplicatedMessage(decoded);
+            ReplicatedCommand command = bufferedReplicationCommands.poll();
+            processReplicatedCommand(command.cmdAndArgs(), command.bytesProcessed());
         }
         LoggingService.logInfo("All buffered commands applied. Replication handshake completed successfully!");
 
-        while (buffer.hasRemaining()) {
-            buffer.mark();
-            RESPDecoder.DecodedResult decoded = RESPDecoder.decode(buffer);
-            Object decodedMessage = decoded.value;
-            if (decodedMessage != null) {
-                processReplicatedMessage(decoded);
-            } else {
-                buffer.reset();
-                break;
+        while (buffer.hasRemaining() && parser.parseMessage(buffer)) {
+            if (!parser.isNull()) {
+                processReplicatedMessage();
             }
         }
     }
 
-    private void processReplicatedMessage(RESPDecoder.DecodedResult decoded) throws IOException {
-        if (decoded.value instanceof List) {
-            @SuppressWarnings("unchecked")
-            List<String> cmdAndArgs = (List<String>) decoded.value;
-            if (cmdAndArgs.isEmpty()) {
-                LoggingService.logWarn("Slave: Received empty command array from master.");
-                return;
-            }
-
-            String cmd = cmdAndArgs.getFirst().toLowerCase();
-            List<String> args = cmdAndArgs.subList(1, cmdAndArgs.size());
+    private void processReplicatedMessage() throws IOException {
+        if (parser.getType() != '*') {
+            LoggingService.logError("Slave: Expected command array for replication, but received type '" + (char) parser.getType() + "'");
+            throw new IOException("Protocol error: Expected array command during replication.");
+        }
+        processReplicatedCommand(parser.getBinaryArguments(), parser.getFrameLength());
+    }
 
-            LoggingService.logInfo(String.format("Slave: Processing replicated command '%s', args: %s", cmd, args));
+    private void processReplicatedCommand(List<ByteString> cmdAndArgs, int bytesProcessed) {
+        if (cmdAndArgs.isEmpty()) {
+            LoggingService.logWarn("Slave: Received empty command array from master.");
+            return;
+        }
 
-            if (cmd.equals("replconf") && !args.isEmpty() && args.getFirst().equalsIgnoreCase("getack")) {
-                String ackResponse = RESPEncoder.encodeStringArray(List.of("REPLCONF", "ACK", String.valueOf(bytesProcessedInReplication)));
-                queueWriteToMasterCallback.accept(ByteBuffer.wrap(ackResponse.getBytes(StandardCharsets.UTF_8)));
-                LoggingService.logInfo("Slave: Responded to REPLCONF GETACK with offset: " + bytesProcessedInReplication);
-            } else if (cmd.equals("replconf") && !args.isEmpty() && args.getFirst().equalsIgnoreCase("ack") && args.size() == 2) {
-                 try {
-                    long ackOffset = Long.parseLong(args.get(1));
-                    LoggingService.logWarn("Slave: Received REPLCONF ACK from master (unexpected for slave role): offset " + ackOffset);
-                } catch (NumberFormatException e) {
-                    LoggingService.logError("Invalid ACK offset in REPLCONF ACK from master: " + cmdAndArgs, e);
-                }
-            } else {
-                commandExecutor.executeCommand(null, cmd, args,
-                    (_) -> LoggingService.logFine("Slave: Suppressing string response for replicated cmd."),
-                    (_) -> LoggingService.logFine("Slave: Suppressing binary response for replicated cmd."), 0);
+        ByteString cmd = cmdAndArgs.getFirst();
+        List<ByteString> args = cmdAndArgs.subList(1, cmdAndArgs.size());
+
+        LoggingService.logFine(() -> "Slave: Processing replicated command '" + cmd + "', args: " + args);
+
+        if (cmd.equalsIgnoreCase("replconf") && !args.isEmpty() && args.getFirst().equalsIgnoreCase("getack")) {
+            String ackResponse = RESPEncoder.encodeStringArray(List.of("REPLCONF", "ACK", String.valueOf(bytesProcessedInReplication)));
+            queueWriteToMasterCallback.accept(ByteBuffer.wrap(ackResponse.getBytes(StandardCharsets.UTF_8)));
+            LoggingService.logFine(() -> "Slave: Responded to REPLCONF GETACK with offset: " + bytesProcessedInReplication);
+        } else if (cmd.equalsIgnoreCase("replconf") && !args.isEmpty() && args.getFirst().equalsIgnoreCase("ack") && args.size() == 2) {
+             try {
+                long ackOffset = args.get(1).parseLong();
+                LoggingService.logWarn("Slave: Received REPLCONF ACK from master (unexpected for slave role): offset " + ackOffset);
+            } catch (NumberFormatException e) {
+                LoggingService.logError("Invalid ACK offset in REPLCONF ACK from master: " + cmdAndArgs, e);
             }
-            bytesProcessedInReplication += decoded.bytesProcessed;
         } else {
-            LoggingService.logError("Slave: Expected command array for replication, but received: " + decoded.value.getClass().getSimpleName() + " (" + decoded.value + ")");
-            throw new IOException("Protocol error: Expected array command during replication.");
+            commandExecutor.executeCommand(null, cmd, args, discardedReplies, 0);
         }
+        bytesProcessedInReplication += bytesProcessed;
     }
 
-
     private void handleRdbBinaryRead(ByteBuffer buffer) throws IOException {
         if (rdbBytesToRead <= 0) {
             LoggingService.logError("handleRdbBinaryRead called with invalid rdbBytesToRead: " + rdbBytesToRead, null);
@@ -393,9 +386,8 @@ public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
         int bytesToReadThisPass = Math.min(buffer.remaining(), bytesRemainingInRdb);
 
         if (bytesToReadThisPass > 0) {
-            byte[] tempBytes = new byte[bytesToReadThisPass];
-            buffer.get(tempBytes);
-            receivedRdbData.write(tempBytes);
+            receivedRdbData.write(buffer.array(), buffer.arrayOffset() + buffer.position(), bytesToReadThisPass);
+            buffer.position(buffer.position() + bytesToReadThisPass);
             LoggingService.logInfo("Read " + bytesToReadThisPass + " bytes of RDB. Total received: " + receivedRdbData.size() + "/" + rdbBytesToRead);
         }
 
@@ -479,38 +471,12 @@ public class ReplicationHandler implements CommandExecutor.ReplicationNotifier {
         LoggingService.logInfo("Queued '" + commandDescription + "' command to master.");
     }
 
-    private String readLine(ByteBuffer buffer) {
-        StringBuilder sb = new StringBuilder();
-        int initialPos = buffer.position();
-        final int MAX_LINE_LENGTH = Configs.READ_BUFFER_SIZE * 2;
-
-        while (buffer.hasRemaining()) {
-            char c = (char) buffer.get();
-            sb.append(c);
-            if (sb.length() >= 2 && sb.substring(sb.length() - 2).equals("\r\n")) {
-                return sb.toString();
-            }
-            if (buffer.position() - initialPos > MAX_LINE_LENGTH) {
-                buffer.position(initialPos);
-                return null;
-            }
-        }
-        buffer.position(initialPos);
-        return null;
-    }
-
-    private boolean isHandshakeResponse(Object decodedMessage) {
-        if (decodedMessage instanceof String s) {
-            return s.equals("PONG") || s.equals("OK") || s.startsWith("FULLRESYNC");
-        }
-        if (decodedMessage instanceof List) {
-            @SuppressWarnings("unchecked")
-            List<String> cmdAndArgs = (List<String>) decodedMessage;
-            if (cmdAndArgs.size() >= 2 && "replconf".equalsIgnoreCase(cmdAndArgs.get(0))) {
-                String subCmd = cmdAndArgs.get(1).toLowerCase();
-                return subCmd.equals("ack");
-            }
-        }
-        return false;
+    /**
+     * @return true if the array the parser just read is a REPLCONF ACK, which belongs to the handshake
+     */
+    private boolean isHandshakeResponse() {
+        return parser.getArgumentCount() >= 2
+                && parser.argumentEqualsIgnoreCase(0, "replconf")
+                && parser.argumentEqualsIgnoreCase(1, "ack");
     }
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A reply that is encoded a piece at a time, so that a large result (KEYS, LRANGE, XRANGE, XREAD) never has
+ * to exist in encoded form all at once. A client's {@link ReplyWriter} asks for the next piece whenever the
+ * socket has drained its pending output, which bounds the output held for the reply to a few chunks.
+ * <p>
+ * The streams of KEYS and LRANGE ({@link Cache#streamKeys}, {@link Cache#streamRange}) read the keyspace in
+ * place, a piece at a time, so they hold no more than a chunk of elements while nothing changes what they read.
+ * Before a command changes it, the stream copies references to the elements it has yet to write. The reply
+ * thus stays the one the command saw, and the array header written first counts exactly the elements that
+ * follow. Only then does the stream hold references to every element still to be written.
+ * <p>
+ * The other streams walk data they were given up front, such as the stream entries of XRANGE and XREAD.
+ * That list is O(N) in the number of elements but shares the element bytes with the keyspace.
+ */
+public interface ReplyStream {
+
+    /**
+     * Writes the next piece of the reply, stopping at an element boundary once about
+     * {@link Configs#OUTPUT_CHUNK_SIZE} bytes have been written.
+     *
+     * @return true once the whole reply has been written
+     */
+    boolean writeNext(ReplyWriter out);
+
+    /**
+     * Called instead of further {@link #writeNext} calls when the reply is abandoned, for example because
+     * the client disconnected, so the stream can let go of what it reads.
+     */
+    default void close() {
+    }
+
+    /**
+     * @return a stream writing an array with one element per item, each encoded by {@code encoder}
+     */
+    static <T> ReplyStream array(List<T> items, BiConsumer<ReplyWriter, T> encoder) {
+        return new ArrayStream<>(items, encoder);
+    }
+
+    /**
+     * @return a stream writing a small value in one piece
+     */
+    static ReplyStream value(Consumer<ReplyWriter> encoder) {
+        return out -> {
+            encoder.accept(out);
+            return true;
+        };
+    }
+
+    /**
+     * @return a stream writing the given streams one after another
+     */
+    static ReplyStream sequence(List<ReplyStream> parts) {
+        return new SequenceStream(parts);
+    }
+
+    final class ArrayStream<T> implements ReplyStream {
+        private final List<T> items;
+        private final BiConsumer<ReplyWriter, T> encoder;
+        private int next = -1;
+
+        private ArrayStream(List<T> items, BiConsumer<ReplyWriter, T> encoder) {
+            this.items = items;
+            this.encoder = encoder;
+        }
+
+        @Override
+        public boolean writeNext(ReplyWriter out) {
+            long start = out.getBytesWritten();
+            if (next < 0) {
+                out.arrayHeader(items.size());
+                next = 0;
+            }
+            while (next < items.size()) {
+                encoder.accept(out, items.get(next++));
+                if (out.getBytesWritten() - start >= Configs.OUTPUT_CHUNK_SIZE) {
+                    break;
+                }
+            }
+            return next == items.size();
+        }
+    }
+
+    final class SequenceStream implements ReplyStream {
+        private final List<ReplyStream> parts;
+        private int next = 0;
+
+        private SequenceStream(List<ReplyStream> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public boolean writeNext(ReplyWriter out) {
+            long start = out.getBytesWritten();
+            while (next < parts.size() && out.getBytesWritten() - start < Configs.OUTPUT_CHUNK_SIZE) {
+                if (parts.get(next).writeNext(out)) {
+                    next++;
+                }
+            }
+            return next == parts.size();
+        }
+
+        @Override
+        public void close() {
+            for (int i = next; i < parts.size(); i++) {
+                parts.get(i).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes RESP replies straight into their destination, normally a client's {@link OutputBuffer}, without
+ * building intermediate Strings.
+ * <p>
+ * Frequent replies ({@code +OK}, {@code +QUEUED}, {@code $-1}, {@code *0} and integers 0-9999) come from the
+ * pre-encoded constants of {@link RESPEncoder}; other integers and length headers are formatted into a
+ * scratch array owned by the writer. A writer is therefore used by one thread at a time, which is the
+ * command thread for client writers.
+ * <p>
+ * Subclasses decide where the bytes go and what happens once a value has been written, for example
+ * scheduling a flush.
+ */
+public abstract class ReplyWriter {
+    private static final int MAX_LONG_DIGITS = 20;
+    private static final int COPY_BUFFER_SIZE = 512;
+
+    private final byte[] scratch = new byte[MAX_LONG_DIGITS + 3];
+    /** Carries native memory to {@link #append(byte[], int, int)}; made on first use. */
+    private byte[] copyBuffer;
+    private long bytesWritten = 0;
+
+    /**
+     * Appends encoded bytes. The array is not retained past the call unless it is immutable.
+     */
+    protected abstract void append(byte[] bytes, int offset, int length);
+
+    /**
+     * Appends bytes of native memory. This implementation copies them through a small array owned by the
+     * writer; writers whose destination is native memory too copy them there directly.
+     */
+    protected void append(MemorySegment source, long offset, int length) {
+        if (copyBuffer == null) {
+            copyBuffer = new byte[COPY_BUFFER_SIZE];
+        }
+        for (int done = 0; done < length; ) {
+            int n = Math.min(copyBuffer.length, length - done);
+            MemorySegment.copy(source, ValueLayout.JAVA_BYTE, offset + done, copyBuffer, 0, n);
+            append(copyBuffer, 0, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Called after every value written through the public methods, once its bytes are queued.
+     */
+    protected void afterWrite() {
+    }
+
+    /**
+     * @return a writer that drops everything, for commands whose replies nobody reads
+     */
+    public static ReplyWriter discarding() {
+        return new ReplyWriter() {
+            @Override
+            protected void append(byte[] bytes, int offset, int length) {
+            }
+        };
+    }
+
+    /**
+     * @return a view of this writer that writes streamed replies in one go, for replies that must follow each
+     * other without anything in between, such as those of the commands run by EXEC
+     */
+    public ReplyWriter contiguous() {
+        ReplyWriter target = this;
+        return new ReplyWriter() {
+            @Override
+            protected void append(byte[] bytes, int offset, int length) {
+                target.write(bytes, offset, length);
+            }
+
+            @Override
+            protected void append(MemorySegment source, long offset, int length) {
+                target.write(source, offset, length);
+            }
+
+            @Override
+            protected void afterWrite() {
+                target.afterWrite();
+            }
+        };
+    }
+
+    /**
+     * @return total number of bytes this writer has produced
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Called instead of a reply when the command parks the client (BLPOP, XREAD BLOCK, WAIT); the reply is
+     * written once the client is served or times out.
+     */
+    public void blocked() {
+    }
+
+    /**
+     * Writes a reply that is produced piece by piece. This implementation writes all of it right away;
+     * client writers override it to write more only as the socket drains.
+     */
+    public void stream(ReplyStream reply) {
+        while (!reply.writeNext(this)) {
+            afterWrite();
+        }
+        afterWrite();
+    }
+
+    public void ok() {
+        writeShared(RESPEncoder.OK);
+    }
+
+    public void queued() {
+        writeShared(RESPEncoder.QUEUED);
+    }
+
+    public void simpleString(String s) {
+        writeLine('+', s);
+    }
+
+    public void error(String message) {
+        writeLine('-', message);
+    }
+
+    public void integer(long value) {
+        byte[] shared = RESPEncoder.sharedInteger(value);
+        if (shared != null) {
+            writeShared(shared);
+        } else {
+            writeHeader(':', value);
+            afterWrite();
+        }
+    }
+
+    public void nullBulkString() {
+        writeShared(RESPEncoder.NULL_BULK_STRING);
+    }
+
+    public void emptyArray() {
+        writeShared(RESPEncoder.EMPTY_ARRAY);
+    }
+
+    public void bulkString(ByteString s) {
+        if (s == null) {
+            nullBulkString();
+            return;
+        }
+        writeBulk(s);
+        afterWrite();
+    }
+
+    /**
+     * Writes the decimal digits of {@code value} as a bulk string, as GET replies for an integer-encoded
+     * string, without allocating.
+     */
+    public void bulkInteger(long value) {
+        writeHeader('$', decimalLength(value));
+        writeNumber(value);
+        afterWrite();
+    }
+
+    /**
+     * Writes a stream entry ID, {@code <ms>-<seq>}, as a bulk string without building it as a String first.
+     */
+    public void bulkStreamId(long ms, long seq) {
+        writeHeader('$', decimalLength(ms) + 1 + decimalLength(seq));
+        int pos = formatNumber(ms);
+        // Leave out the CRLF formatNumber ends with and join the two numbers with a dash.
+        scratch[scratch.length - 2] = '-';
+        write(scratch, pos, scratch.length - 1 - pos);
+        writeNumber(seq);
+        afterWrite();
+    }
+
+    /**
+     * Writes a string held in an {@link OffHeapStore} slot, copying its bytes from native memory straight
+     * into the destination rather than through a heap copy. The caller holds the key's shard lock.
+     */
+    public void bulkString(OffHeapStore store, long handle) {
+        int length = store.length(handle);
+        writeHeader('$', length);
+        write(store.slab(handle), OffHeapStore.dataOffset(handle), length);
+        write(RESPEncoder.CRLF, 0, 2);
+        afterWrite();
+    }
+
+    public void bulkString(String s) {
+        if (s == null) {
+            nullBulkString();
+            return;
+        }
+        writeBulk(s.getBytes(StandardCharsets.UTF_8));
+        afterWrite();
+    }
+
+    /**
+     * Starts an array; the caller then writes exactly {@code size} elements.
+     */
+    public void arrayHeader(int size) {
+        if (size == 0) {
+            emptyArray();
+            return;
+        }
+        writeHeader('*', size);
+        afterWrite();
+    }
+
+    public void bulkArray(List<ByteString> elements) {
+        writeHeader('*', elements.size());
+        for (ByteString element : elements) {
+            writeBulk(element);
+        }
+        afterWrite();
+    }
+
+    /**
+     * Writes a nested array whose elements are ByteStrings, Strings, integers, nulls or further lists.
+     */
+    public void array(List<?> elements) {
+        writeArray(elements);
+        afterWrite();
+    }
+
+    /**
+     * Writes bytes that already are a complete RESP frame.
+     */
+    public void raw(byte[] encoded) {
+        write(encoded, 0, encoded.length);
+        afterWrite();
+    }
+
+    /**
+     * Writes a slice of already encoded RESP, such as the part of a shard's reply that goes into the
+     * client's reply. Client writers may queue a large slice without copying it, so it must not be modified
+     * afterwards.
+     */
+    public void raw(byte[] encoded, int offset, int length) {
+        write(encoded, offset, length);
+        afterWrite();
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        bytesWritten += length;
+        append(bytes, offset, length);
+    }
+
+    private void write(MemorySegment source, long offset, int length) {
+        bytesWritten += length;
+        append(source, offset, length);
+    }
+
+    private void writeArray(List<?> elements) {
+        writeHeader('*', elements.size());
+        for (Object element : elements) {
+            switch (element) {
+                case ByteString b -> writeBulk(b);
+                case String s -> writeBulk(s.getBytes(StandardCharsets.UTF_8));
+                case Long l -> writeHeader(':', l);
+                case Integer i -> writeHeader(':', i);
+                case List<?> l -> writeArray(l);
+                case null -> write(RESPEncoder.NULL_BULK_STRING, 0, RESPEncoder.NULL_BULK_STRING.length);
+                default ->
+                        throw new IllegalArgumentException("Unsupported array element: " + element);
+            }
+        }
+    }
+
+    private void writeShared(byte[] encoded) {
+        write(encoded, 0, encoded.length);
+        afterWrite();
+    }
+
+    private void writeLine(char prefix, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        scratch[0] = (byte) prefix;
+        write(scratch, 0, 1);
+        write(bytes, 0, bytes.length);
+        write(RESPEncoder.CRLF, 0, 2);
+        afterWrite();
+    }
+
+    private void writeBulk(ByteString s) {
+        writeHeader('$', s.length());
+        write(s.array(), s.arrayOffset(), s.length());
+        write(RESPEncoder.CRLF, 0, 2);
+    }
+
+    private void writeBulk(byte[] bytes) {
+        writeHeader('$', bytes.length);
+        write(bytes, 0, bytes.length);
+        write(RESPEncoder.CRLF, 0, 2);
+    }
+
+    /**
+     * Writes {@code <prefix><value>\r\n}, formatting the digits right to left into the scratch array.
+     */
+    private void writeHeader(char prefix, long value) {
+        int pos = formatNumber(value);
+        scratch[--pos] = (byte) prefix;
+        write(scratch, pos, scratch.length - pos);
+    }
+
+    /**
+     * Writes {@code <value>\r\n}.
+     */
+    private void writeNumber(long value) {
+        int pos = formatNumber(value);
+        write(scratch, pos, scratch.length - pos);
+    }
+
+    /**
+     * Formats {@code <value>\r\n} at the end of the scratch array.
+     *
+     * @return where it starts
+     */
+    private int formatNumber(long value) {
+        int pos = scratch.length;
+        scratch[--pos] = '\n';
+        scratch[--pos] = '\r';
+        if (value == Long.MIN_VALUE) {
+            byte[] digits = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+            pos -= digits.length;
+            System.arraycopy(digits, 0, scratch, pos, digits.length);
+        } else {
+            long remaining = Math.abs(value);
+            do {
+                scratch[--pos] = (byte) ('0' + remaining % 10);
+                remaining /= 10;
+            } while (remaining != 0);
+            if (value < 0) {
+                scratch[--pos] = '-';
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @return the number of characters of {@code value} in decimal, sign included
+     */
+    private static int decimalLength(long value) {
+        if (value == Long.MIN_VALUE) {
+            return MAX_LONG_DIGITS;
+        }
+        int length = value < 0 ? 2 : 1;
+        for (long remaining = Math.abs(value); remaining >= 10; remaining /= 10) {
+            length++;
+        }
+        return length;
+    }
+}
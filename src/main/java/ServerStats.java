@@ -0,0 +1,32 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Registry of the components that contribute fields to the INFO command, grouped by section.
+ */
+public class ServerStats {
+    private static final Map<String, List<Consumer<Map<String, Object>>>> providers = new ConcurrentHashMap<>();
+
+    private ServerStats() { }
+
+    public static void addProvider(String section, Consumer<Map<String, Object>> provider) {
+        providers.computeIfAbsent(section.toLowerCase(), _ -> new CopyOnWriteArrayList<>()).add(provider);
+    }
+
+    public static boolean hasSection(String section) {
+        return providers.containsKey(section.toLowerCase());
+    }
+
+    public static void collect(String section, Map<String, Object> info) {
+        List<Consumer<Map<String, Object>>> sectionProviders = providers.get(section.toLowerCase());
+        if (sectionProviders == null) {
+            return;
+        }
+        for (Consumer<Map<String, Object>> provider : sectionProviders) {
+            provider.accept(info);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends commands from the event loop to the {@link KeyspaceShard}s that own their keys and writes the replies
+ * back to each client in the order the client sent the commands.
+ * <p>
+ * Every client with commands in flight has a queue of entries. An entry is either a request sent to one
+ * shard, a request split across several shards whose replies are merged (KEYS on every shard; DEL, MGET and
+ * MSET with the keys each shard owns), or a command deferred until all earlier ones have completed. Commands
+ * that run on the event loop itself (PING, INFO, MULTI, WAIT...) are deferred that way, so they see the
+ * effects of the client's earlier commands, and so is everything behind them, since they can change how
+ * later commands are handled. Keyed commands behind keyed commands are sent right away: each shard runs its
+ * requests in order, so a client can pipeline across shards.
+ * <p>
+ * Used by the event loop thread only.
+ */
+public class ShardRouter implements AutoCloseable {
+
+    /**
+     * How the replies of a request split across shards make up the client's reply. A part replying anything
+     * but the expected type, such as an error, is written instead of the merged reply.
+     */
+    enum Merge {
+        /** The elements of the array replies, one part after the other (KEYS). */
+        CONCAT('*'),
+        /** The sum of the integer replies (DEL). */
+        SUM(':'),
+        /** The elements of the array replies, one per key, put back in the order of the keys (MGET). */
+        BY_KEY('*'),
+        /** The reply of the first part once all of them have replied +OK (MSET). */
+        ALL_OK('+');
+
+        final byte type;
+
+        Merge(char type) {
+            this.type = (byte) type;
+        }
+    }
+
+    static final class Entry {
+        final ReplyWriter client;
+        final KeyspaceShard.Reply[] parts;
+        final Runnable deferred;
+        final Merge merge;
+        /** For {@link Merge#BY_KEY}, the part answering each key, in key order. */
+        final int[] keyParts;
+        int remaining;
+
+        private Entry(ReplyWriter client, int parts, Runnable deferred, Merge merge, int[] keyParts) {
+            this.client = client;
+            this.parts = new KeyspaceShard.Reply[parts];
+            this.deferred = deferred;
+            this.merge = merge;
+            this.keyParts = keyParts;
+            this.remaining = parts;
+        }
+    }
+
+    private final KeyspaceShard[] shards;
+    private final Map<ReplyWriter, ArrayDeque<Entry>> inFlight = new IdentityHashMap<>();
+
+    public ShardRouter(int shardCount, Runnable wakeupEventLoop) {
+        shards = new KeyspaceShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new KeyspaceShard(i, shardCount, wakeupEventLoop);
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public void appendStats(Map<String, Object> info) {
+        info.put("keyspace_shard_threads", shards.length);
+        for (KeyspaceShard shard : shards) {
+            info.put("keyspace_shard_" + shard.getIndex() + "_requests", shard.getProcessedRequests());
+        }
+    }
+
+    public void setReplicationNotifier(CommandExecutor.ReplicationNotifier notifier) {
+        for (KeyspaceShard shard : shards) {
+            shard.setReplicationNotifier(notifier);
+        }
+    }
+
+    /**
+     * Moves the keys loaded at startup (from the RDB file) into the shards owning them. Called before the
+     * shards are started.
+     */
+    public void loadFrom(Cache cache) {
+        cache.moveTo(key -> shards[shardOf(key)].getCache());
+    }
+
+    public void start() {
+        for (KeyspaceShard shard : shards) {
+            shard.start();
+        }
+        LoggingService.logInfo("Started " + shards.length + " keyspace shards.");
+    }
+
+    public int shardOf(ByteString key) {
+        int h = key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    /**
+     * @return true if the client has no command in flight, so a command can run on the event loop right away
+     */
+    public boolean isIdle(ReplyWriter client) {
+        return !inFlight.containsKey(client);
+    }
+
+    /**
+     * @return true if a command of the client waits behind earlier ones, so later commands must wait too
+     */
+    public boolean hasDeferred(ReplyWriter client) {
+        ArrayDeque<Entry> queue = inFlight.get(client);
+        if (queue != null) {
+            for (Entry entry : queue) {
+                if (entry.deferred != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the command once all earlier commands of the client have completed.
+     */
+    public void defer(ReplyWriter client, Runnable command) {
+        queueFor(client).add(new Entry(client, 0, command, null, null));
+    }
+
+    /**
+     * Runs {@code work} on one shard and writes its reply to the client in turn.
+     */
+    public void submit(ReplyWriter client, int shard, BiConsumer<CommandExecutor, ReplyWriter> work) {
+        Entry entry = new Entry(client, 1, null, null, null);
+        queueFor(client).add(entry);
+        send(entry, 0, shards[shard], work);
+    }
+
+    /**
+     * Runs {@code work} on every shard and writes the concatenation of the array replies to the client, or
+     * the first error.
+     */
+    public void fanOut(ReplyWriter client, BiConsumer<CommandExecutor, ReplyWriter> work) {
+        Entry entry = new Entry(client, shards.length, null, Merge.CONCAT, null);
+        queueFor(client).add(entry);
+        for (int i = 0; i < shards.length; i++) {
+            send(entry, i, shards[i], work);
+        }
+    }
+
+    /**
+     * Runs {@code work.get(i)} on shard {@code targets[i]} for every i and writes the replies to the client
+     * merged as {@code merge} says. {@code keyParts} gives the part answering each key, in key order; only
+     * {@link Merge#BY_KEY} reads it.
+     */
+    public void split(ReplyWriter client, int[] targets, List<BiConsumer<CommandExecutor, ReplyWriter>> work, Merge merge,
+                      int[] keyParts) {
+        Entry entry = new Entry(client, targets.length, null, merge, keyParts);
+        queueFor(client).add(entry);
+        for (int i = 0; i < targets.length; i++) {
+            send(entry, i, shards[targets[i]], work.get(i));
+        }
+    }
+
+    private void send(Entry entry, int part, KeyspaceShard shard, BiConsumer<CommandExecutor, ReplyWriter> work) {
+        KeyspaceShard.Reply reply = new KeyspaceShard.Reply(entry, shard);
+        entry.parts[part] = reply;
+        shard.submit(new KeyspaceShard.Request(work, reply));
+    }
+
+    private ArrayDeque<Entry> queueFor(ReplyWriter client) {
+        return inFlight.computeIfAbsent(client, _ -> new ArrayDeque<>());
+    }
+
+    /**
+     * Collects the replies the shards have completed and writes every client's replies that are now next in
+     * line. Called by the event loop on every iteration.
+     */
+    public void drainCompletions() {
+        for (KeyspaceShard shard : shards) {
+            KeyspaceShard.Reply reply;
+            while ((reply = shard.pollCompletion()) != null) {
+                Entry entry = reply.entry;
+                if (--entry.remaining == 0) {
+                    writeReady(entry.client);
+                }
+            }
+        }
+    }
+
+    private void writeReady(ReplyWriter client) {
+        ArrayDeque<Entry> queue = inFlight.get(client);
+        while (queue != null && !queue.isEmpty()) {
+            Entry head = queue.peekFirst();
+            if (head.deferred == null) {
+                if (head.remaining > 0) {
+                    return;
+                }
+                queue.pollFirst();
+                writeReply(head);
+                continue;
+            }
+            // The deferred command runs as if it had just arrived with nothing in flight; whatever it sends
+            // to the shards goes ahead of the commands that were waiting behind it.
+            queue.pollFirst();
+            inFlight.remove(client);
+            head.deferred.run();
+            ArrayDeque<Entry> sent = inFlight.get(client);
+            if (sent != null) {
+                sent.addAll(queue);
+                queue = sent;
+            } else if (!queue.isEmpty()) {
+                inFlight.put(client, queue);
+            }
+        }
+        inFlight.remove(client);
+    }
+
+    /**
+     * Writes the reply of an entry whose parts have all completed. The parts' bytes go to the client as
+     * slices of the chunks the shards encoded them into; only the merged array header or sum is encoded here.
+     */
+    private static void writeReply(Entry entry) {
+        if (entry.parts.length == 1) {
+            entry.parts[0].cursor().writeRest(entry.client);
+            return;
+        }
+        KeyspaceShard.Reply.Cursor[] bodies = new KeyspaceShard.Reply.Cursor[entry.parts.length];
+        long total = 0;
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = entry.parts[i].cursor();
+            if (bodies[i].peek() != entry.merge.type) {
+                bodies[i].writeRest(entry.client);
+                return;
+            }
+            if (entry.merge != Merge.ALL_OK) {
+                // The length of an array, or the value of an integer.
+                total += bodies[i].readNumberLine();
+            }
+        }
+        switch (entry.merge) {
+            case CONCAT -> {
+                entry.client.arrayHeader((int) total);
+                for (KeyspaceShard.Reply.Cursor body : bodies) {
+                    body.writeRest(entry.client);
+                }
+            }
+            case SUM -> entry.client.integer(total);
+            case BY_KEY -> {
+                entry.client.arrayHeader(entry.keyParts.length);
+                for (int part : entry.keyParts) {
+                    bodies[part].writeElement(entry.client);
+                }
+            }
+            case ALL_OK -> bodies[0].writeRest(entry.client);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (KeyspaceShard shard : shards) {
+            shard.close();
+        }
+    }
+}
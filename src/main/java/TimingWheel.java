@@ -0,0 +1,181 @@
+/**
+ * Hierarchical timing wheel for the deadlines of blocked clients (BLPOP, XREAD BLOCK, WAIT).
+ * <p>
+ * Time is cut into ticks of {@link Configs#TIMER_TICK_MS}. Level 0 has one slot per tick for the next 64
+ * ticks, and every further level covers 64 times the span of the one below it. A timer is filed in the
+ * lowest level whose span reaches its deadline and moves down a level whenever the level below wraps
+ * around, so scheduling and cancelling are O(1) and every tick only looks at the one slot that is due.
+ * <p>
+ * Timers never fire before their deadline; they fire on the first {@link #advance(long)} at or after it.
+ * Not thread-safe: owned by the event loop thread. With command workers, whoever touches it holds the
+ * keyspace exclusively (see {@link CommandExecutor#runExclusively(Runnable)}).
+ */
+public class TimingWheel {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 6;
+
+    public static final class Timer {
+        private final long deadlineTick;
+        private final Runnable task;
+        private Timer prev;
+        private Timer next;
+        private boolean scheduled;
+        private int slotLevel;
+        private int slotIndex;
+
+        private Timer(long deadlineTick, Runnable task) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+    }
+
+    private final long tickMs;
+    private final Timer[][] slots = new Timer[LEVELS][WHEEL_SIZE];
+    private final int[] levelSizes = new int[LEVELS];
+    private long currentTick;
+    private int size = 0;
+
+    public TimingWheel(long tickMs, long nowMs) {
+        this.tickMs = tickMs;
+        this.currentTick = nowMs / tickMs;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedules the task to run on the event loop once {@code deadlineMs} has passed.
+     */
+    public Timer schedule(long deadlineMs, Runnable task) {
+        Timer timer = new Timer(Math.ceilDiv(deadlineMs, tickMs), task);
+        add(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Removes a timer that has not fired yet. Cancelling a fired or cancelled timer does nothing.
+     */
+    public void cancel(Timer timer) {
+        if (timer != null && timer.scheduled) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    /**
+     * Runs every task whose deadline is at or before {@code nowMs}.
+     *
+     * @return number of tasks that ran
+     */
+    public int advance(long nowMs) {
+        long nowTick = nowMs / tickMs;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, nowTick + 1);
+            return 0;
+        }
+        int fired = 0;
+        while (currentTick <= nowTick) {
+            int index = (int) (currentTick & WHEEL_MASK);
+            if (index == 0) {
+                cascade(1);
+            }
+            Timer timer;
+            while ((timer = slots[0][index]) != null) {
+                unlink(timer);
+                size--;
+                fired++;
+                timer.task.run();
+            }
+            currentTick++;
+            if (size == 0) {
+                currentTick = Math.max(currentTick, nowTick + 1);
+                break;
+            }
+        }
+        return fired;
+    }
+
+    /**
+     * @return milliseconds until the wheel next has work to do, or Long.MAX_VALUE when nothing is
+     * scheduled. Deadlines on the upper levels report the moment they move down, which can be earlier
+     * than the deadline itself.
+     */
+    public long millisUntilNextDeadline(long nowMs) {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        long nextTick = Long.MAX_VALUE;
+        if (levelSizes[0] > 0) {
+            nextTick = currentTick;
+            while (slots[0][(int) (nextTick & WHEEL_MASK)] == null) {
+                nextTick++;
+            }
+        }
+        if (size > levelSizes[0]) {
+            nextTick = Math.min(nextTick, (currentTick | WHEEL_MASK) + 1);
+        }
+        return Math.max(0, nextTick * tickMs - nowMs);
+    }
+
+    private void cascade(int level) {
+        if (level >= LEVELS) {
+            return;
+        }
+        int index = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        if (index == 0) {
+            cascade(level + 1);
+        }
+        Timer timer = slots[level][index];
+        slots[level][index] = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            levelSizes[level]--;
+            timer.scheduled = false;
+            add(timer);
+            timer = next;
+        }
+    }
+
+    private void add(Timer timer) {
+        long delta = Math.max(0, timer.deadlineTick - currentTick);
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        long tick = delta >= 1L << (WHEEL_BITS * LEVELS)
+                ? currentTick + (1L << (WHEEL_BITS * LEVELS)) - 1
+                : Math.max(timer.deadlineTick, currentTick);
+        int index = (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+
+        Timer head = slots[level][index];
+        timer.prev = null;
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        slots[level][index] = timer;
+        levelSizes[level]++;
+        timer.scheduled = true;
+        timer.slotLevel = level;
+        timer.slotIndex = index;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slotLevel][timer.slotIndex] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.scheduled = false;
+        levelSizes[timer.slotLevel]--;
+    }
+}